@@ -1,16 +1,40 @@
 package pt.up.fe.comp2023;
 
 import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.CommonTokenFactory;
 import org.antlr.v4.runtime.CommonTokenStream;
-import pt.up.fe.comp.jmm.ast.antlr.AntlrParser;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.UnbufferedCharStream;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+import pt.up.fe.comp.jmm.ast.JmmNode;
+import pt.up.fe.comp.jmm.ast.antlr.ThrowingErrorListener;
 import pt.up.fe.comp.jmm.parser.JmmParser;
 import pt.up.fe.comp.jmm.parser.JmmParserResult;
 import pt.up.fe.comp.jmm.report.Report;
 import pt.up.fe.comp.jmm.report.ReportType;
 import pt.up.fe.comp.jmm.report.Stage;
+import pt.up.fe.specs.util.SpecsSystem;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 
 /**
  * Copyright 2022 SPeCS.
@@ -34,18 +58,66 @@ public class AParser implements JmmParser {
 
     @Override
     public JmmParserResult parse(String jmmCode, String startingRule, Map<String, String> config) {
+        // Convert code string into a character stream
+        return parse(new ANTLRInputStream(jmmCode), startingRule, config);
+    }
+
+    public JmmParserResult parse(Path file, Map<String, String> config) {
+        return parse(file, getDefaultRule(), config);
+    }
+
+    /**
+     * Parses a source file as it is read, never holding the whole of it: the characters are dropped once the lexer has
+     * made tokens of them, the tokens copying their text.
+     */
+    public JmmParserResult parse(Path file, String startingRule, Map<String, String> config) {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return parse(new UnbufferedCharStream(reader), startingRule, config);
+        } catch (IOException e) {
+            return JmmParserResult.newError(Report.newError(Stage.SYNTATIC, -1, -1, "Could not read " + file, e));
+        }
+    }
+
+    private JmmParserResult parse(CharStream input, String startingRule, Map<String, String> config) {
         try {
-            // Convert code string into a character stream
-            var input = new ANTLRInputStream(jmmCode);
             // Transform characters into tokens using the lexer
             var lex = new pt.up.fe.comp2023.JavammLexer(input);
+            // An unbuffered stream can no longer give the text of a token once the lexer has moved past it
+            if (input instanceof UnbufferedCharStream)
+                lex.setTokenFactory(new SharedTextTokenFactory());
             // Wrap lexer around a token stream
             var tokens = new CommonTokenStream(lex);
             // Transforms tokens into a parse tree
             var parser = new pt.up.fe.comp2023.JavammParser(tokens);
 
+            /*
+             * parserMode=ll predicts in full LL from the start. By default SLL prediction, much cheaper on the
+             * expression rule, is tried first and gives up at the first error instead of recovering: that means
+             * either a real syntax error or input only full LL can tell apart, so the same tokens are parsed again in
+             * LL with the usual error reporting. The prediction caches (DFA) of the generated parser are static and
+             * shared by every parse in the JVM, in both modes.
+             */
+            if (!"ll".equals(config.get("parserMode"))) {
+                parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+                parser.removeErrorListeners();
+                parser.setErrorHandler(new BailErrorStrategy());
+                try {
+                    Optional<JmmNode> root = parseRule(lex, parser, startingRule);
+                    if (root.isPresent())
+                        return new JmmParserResult(root.get(), Collections.emptyList(), config);
+                } catch (RuntimeException e) {
+                    if (!isBailOut(e))
+                        throw e;
+                }
+                tokens.seek(0);
+                parser.reset();
+                parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+                parser.setErrorHandler(new DefaultErrorStrategy());
+                parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            }
+
             // Convert ANTLR CST to JmmNode AST
-            return AntlrParser.parse(lex, parser, startingRule)
+            return parseRule(lex, parser, startingRule)
                     // If there were no errors and a root node was generated, create a JmmParserResult with the node
                     .map(root -> new JmmParserResult(root, Collections.emptyList(), config))
                     // If there were errors, create an error JmmParserResult without root node
@@ -57,4 +129,41 @@ public class AParser implements JmmParser {
             return JmmParserResult.newError(Report.newError(Stage.SYNTATIC, -1, -1, "Exception during parsing", e));
         }
     }
+
+    // As AntlrParser.parse, with the tree converted by ParseTreeConverter
+    private static Optional<JmmNode> parseRule(Lexer lex, Parser parser, String ruleName) {
+        lex.removeErrorListeners();
+        lex.addErrorListener(new ThrowingErrorListener());
+        var tree = (ParseTree) SpecsSystem.invoke(parser, ruleName);
+        if (parser.getNumberOfSyntaxErrors() > 0)
+            return Optional.empty();
+        return Optional.of(ParseTreeConverter.convert(tree, parser));
+    }
+
+    // Copies the text of every token, once for all the tokens with the same text
+    private static class SharedTextTokenFactory extends CommonTokenFactory {
+        private final Map<String, String> texts = new HashMap<>();
+
+        SharedTextTokenFactory() {
+            super(true);
+        }
+
+        @Override
+        public CommonToken create(Pair<TokenSource, CharStream> source, int type, String text, int channel, int start,
+                                  int stop, int line, int charPositionInLine) {
+            CommonToken token = super.create(source, type, text, channel, start, stop, line, charPositionInLine);
+            String copied = token.getText();
+            if (copied != null)
+                token.setText(texts.computeIfAbsent(copied, key -> key));
+            return token;
+        }
+    }
+
+    // The bail strategy cancels with the error it met, the lexer cancels with a message only and stays an error
+    private static boolean isBailOut(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause())
+            if (cause instanceof ParseCancellationException && cause.getCause() instanceof RecognitionException)
+                return true;
+        return false;
+    }
 }
@@ -2,6 +2,7 @@ package pt.up.fe.comp2023;
 
 import pt.up.fe.comp.jmm.analysis.JmmAnalysis;
 import pt.up.fe.comp.jmm.analysis.JmmSemanticsResult;
+import pt.up.fe.comp.jmm.ast.JmmNode;
 import pt.up.fe.comp.jmm.parser.JmmParserResult;
 import pt.up.fe.comp2023.ast.ASymbolTable;
 import pt.up.fe.comp2023.ast.SemanticVisitor;
@@ -10,15 +11,22 @@ import pt.up.fe.comp2023.ast.SymbolTableBuilder;
 public class Analysis implements JmmAnalysis {
     @Override
     public JmmSemanticsResult semanticAnalysis(JmmParserResult jmmParserResult) {
+        return semanticAnalysis(jmmParserResult, buildSymbolTable(jmmParserResult.getRootNode()));
+    }
 
-        //Builds the symbol table to be edited in semantic analysis
-        ASymbolTable symbolTable = new ASymbolTable();
-        SymbolTableBuilder buildVisitor = new SymbolTableBuilder();
-        buildVisitor.visit(jmmParserResult.getRootNode(), symbolTable);
-
+    /** Checks the tree against a symbol table already built, which may hold more methods than the tree. */
+    public JmmSemanticsResult semanticAnalysis(JmmParserResult jmmParserResult, ASymbolTable symbolTable) {
         SemanticVisitor visitor = new SemanticVisitor();
-        visitor.visit(jmmParserResult.getRootNode(), symbolTable);
+        PhaseStats.measure("semantic analysis", () -> visitor.visit(jmmParserResult.getRootNode(), symbolTable));
 
         return new JmmSemanticsResult(jmmParserResult, symbolTable, visitor.getReports());
     }
+
+    public static ASymbolTable buildSymbolTable(JmmNode root) {
+        //Builds the symbol table to be edited in semantic analysis
+        ASymbolTable symbolTable = new ASymbolTable();
+        SymbolTableBuilder buildVisitor = new SymbolTableBuilder();
+        PhaseStats.measure("symbol table", () -> buildVisitor.visit(root, symbolTable));
+        return symbolTable;
+    }
 }
@@ -0,0 +1,114 @@
+package pt.up.fe.comp2023;
+
+import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp2023.jasmin.BytecodeResult;
+import pt.up.fe.specs.util.SpecsIo;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Compiles many files at once on a work-stealing pool, one task per file.
+ * Every task builds its own pipeline, so the visitors never share state between files.
+ * For each file the output folder gets the OLLIR code, the Jasmin code and the class file, and reports.txt gathers the
+ * reports of every file in the order they were given.
+ */
+public class BatchCompiler {
+    private final Map<String, String> config;
+    private final File outputDir;
+    private final int threads;
+
+    public BatchCompiler(Map<String, String> config, File outputDir, int threads) {
+        // Class files are written by the bytecode backend, the Jasmin assembler is not safe to run concurrently
+        this.config = new HashMap<>(config);
+        this.config.put("backend", "bytecode");
+        this.config.put("debug", "false");
+        this.outputDir = outputDir;
+        this.threads = threads;
+    }
+
+    /** Expands folders into the .jmm files inside them, sorted by path. */
+    public static List<File> collectInputs(List<String> paths) {
+        List<File> inputs = new ArrayList<>();
+        for (String path : paths) {
+            File file = new File(path);
+            if (file.isDirectory())
+                SpecsIo.getFilesRecursive(file, "jmm").stream().sorted().forEach(inputs::add);
+            else if (file.isFile())
+                inputs.add(file);
+            else
+                throw new RuntimeException("Expected a path to an existing input file or folder, got '" + file + "'.");
+        }
+        return inputs;
+    }
+
+    /** Returns the number of files that failed to compile. */
+    public int compile(List<File> inputs) {
+        SpecsIo.mkdir(outputDir);
+        long start = System.nanoTime();
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<ForkJoinTask<Outcome>> tasks = new ArrayList<>();
+        try {
+            // The course library caches reflective lookups in a plain HashMap, so the first file is compiled alone
+            // to fill that cache before the others read it concurrently
+            for (File input : inputs) {
+                ForkJoinTask<Outcome> task = pool.submit(() -> compileFile(input));
+                if (tasks.isEmpty())
+                    task.join();
+                tasks.add(task);
+            }
+
+            StringBuilder summary = new StringBuilder();
+            int failed = 0;
+            for (int i = 0; i < inputs.size(); i++) {
+                Outcome outcome = tasks.get(i).join();
+                if (outcome.failed)
+                    failed++;
+                summary.append(inputs.get(i).getPath()).append("\n").append(outcome.reports).append("\n");
+            }
+            SpecsIo.write(new File(outputDir, "reports.txt"), summary.toString());
+
+            long elapsed = (System.nanoTime() - start) / 1_000_000;
+            System.out.println("Compiled " + (inputs.size() - failed) + " of " + inputs.size() + " files in " + elapsed
+                    + " ms on " + threads + " threads, " + failed + " failed");
+            return failed;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static class Outcome {
+        boolean failed;
+        final StringBuilder reports = new StringBuilder();
+    }
+
+    // Compiles a single file and writes its outputs
+    private Outcome compileFile(File input) {
+        Outcome outcome = new Outcome();
+        StringBuilder reports = outcome.reports;
+        try {
+            Pipeline.Result result = new Pipeline().compile(input.toPath(), config);
+            outcome.failed = result.hasErrors();
+            for (Report report : result.getReports())
+                reports.append("  ").append(report).append("\n");
+            if (result.getStats() != null)
+                reports.append(result.getStats().format(config)).append("\n");
+
+            if (result.getOllirResult() != null) {
+                String className = result.getOllirResult().getOllirClass().getClassName();
+                SpecsIo.write(new File(outputDir, className + ".ollir"), result.getOllirCode());
+            }
+            if (result.getJasminResult() instanceof BytecodeResult bytecode) {
+                SpecsIo.write(new File(outputDir, bytecode.getClassName() + ".j"), bytecode.getJasminCode());
+                bytecode.compile(outputDir);
+            }
+        } catch (RuntimeException e) {
+            outcome.failed = true;
+            reports.append("  Exception during compilation: ").append(e).append("\n");
+        }
+        return outcome;
+    }
+}
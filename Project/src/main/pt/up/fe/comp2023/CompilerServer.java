@@ -0,0 +1,209 @@
+package pt.up.fe.comp2023;
+
+import com.google.gson.*;
+import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp2023.jasmin.BytecodeResult;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-lived compiler, so the JVM start, the ANTLR ATN deserialization and the JIT warmup are paid once for every
+ * compilation instead of once per file.
+ * Requests and responses are JSON objects, one per line, read from stdin and written to stdout, or exchanged over a
+ * local socket with -port=N (one thread per connection).
+ * <p>
+ * Request:  {"id": 1, "code": "class A {...}", "config": {"optimize": "true", "backend": "bytecode"}}
+ * Response: {"id": 1, "ok": true, "ollir": "...", "jasmin": "...", "classBytes": "base64", "reports": [...]}
+ * <p>
+ * {"command": "shutdown"} stops the server.
+ */
+public class CompilerServer {
+    // Compiled a few times on start so the first real request already runs warm code
+    private static final String WARMUP_CODE = """
+            import io;
+            class Warmup {
+                int field;
+                public int sum(int[] values) {
+                    int i; int total;
+                    i = 0; total = 0;
+                    while (i < values.length) { total = total + values[i] * 2; i = i + 1; }
+                    return total;
+                }
+                public static void main(String[] args) {
+                    Warmup w; int[] values;
+                    w = new Warmup(); values = new int[10];
+                    if (w.sum(values) < 1 && !false) io.println(1); else io.println(0);
+                }
+            }
+            """;
+    private static final int WARMUP_ROUNDS = 5;
+
+    private final Pipeline pipeline = new Pipeline();
+    private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws IOException {
+        int port = -1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (String arg : args) {
+            if (arg.startsWith("-port="))
+                port = Launcher.parsePort(arg.substring(6));
+            else if (arg.startsWith("-threads="))
+                threads = Launcher.parseThreads(arg.substring(9));
+        }
+
+        CompilerServer server = new CompilerServer();
+        if (port == -1) {
+            // Responses own stdout, anything else the compiler prints goes to stderr
+            PrintStream responses = new PrintStream(new FileOutputStream(FileDescriptor.out), true, StandardCharsets.UTF_8);
+            System.setOut(System.err);
+            server.warmup();
+            server.serve(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)), responses);
+        } else {
+            server.warmup();
+            server.listen(port, threads);
+        }
+    }
+
+    public void warmup() {
+        Map<String, String> config = defaultConfig();
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            config.put("optimize", round % 2 == 0 ? "false" : "true");
+            config.put("registerAllocation", round % 2 == 0 ? "-1" : "0");
+            config.put("backend", round % 2 == 0 ? "jasmin" : "bytecode");
+            pipeline.compile(WARMUP_CODE, config);
+        }
+    }
+
+    private void listen(int port, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("Compiler server listening on port " + serverSocket.getLocalPort());
+            int localPort = serverSocket.getLocalPort();
+            while (running) {
+                Socket socket = serverSocket.accept();
+                if (!running) {
+                    socket.close();
+                    break;
+                }
+                executor.submit(() -> {
+                    try (socket) {
+                        serve(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)),
+                                new PrintStream(socket.getOutputStream(), true, StandardCharsets.UTF_8));
+                        // A shutdown request only ends its own connection loop, wake the accept loop to stop it too
+                        if (!running)
+                            wake(localPort);
+                    } catch (IOException e) {
+                        System.err.println("Connection failed: " + e.getMessage());
+                    }
+                });
+            }
+        } catch (IOException e) {
+            if (running)
+                throw e;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // Connects to the server so that its accept() returns and the loop sees it has to stop
+    private static void wake(int port) {
+        try {
+            new Socket(InetAddress.getLoopbackAddress(), port).close();
+        } catch (IOException e) {
+            // The server is no longer accepting, which is all the connection was for
+        }
+    }
+
+    /** Answers every request read from the input, until it ends or a shutdown is requested. */
+    public void serve(BufferedReader input, PrintStream output) throws IOException {
+        String line;
+        while (running && (line = input.readLine()) != null) {
+            if (line.isBlank())
+                continue;
+            output.println(gson.toJson(handle(line)));
+        }
+    }
+
+    public JsonObject handle(String line) {
+        JsonObject response = new JsonObject();
+        JsonObject request;
+        try {
+            request = JsonParser.parseString(line).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            response.addProperty("ok", false);
+            response.addProperty("error", "Malformed request: " + e.getMessage());
+            return response;
+        }
+        if (request.has("id"))
+            response.add("id", request.get("id"));
+
+        if (request.has("command")) {
+            String command = request.get("command").getAsString();
+            response.addProperty("ok", command.equals("shutdown") || command.equals("ping"));
+            if (command.equals("shutdown"))
+                running = false;
+            else if (!command.equals("ping"))
+                response.addProperty("error", "Unknown command " + command);
+            return response;
+        }
+        if (!request.has("code")) {
+            response.addProperty("ok", false);
+            response.addProperty("error", "Request without code");
+            return response;
+        }
+
+        Map<String, String> config = defaultConfig();
+        if (request.has("config"))
+            for (Map.Entry<String, JsonElement> option : request.getAsJsonObject("config").entrySet())
+                config.put(option.getKey(), option.getValue().getAsString());
+
+        try {
+            Pipeline.Result result = pipeline.compile(request.get("code").getAsString(), config);
+            response.addProperty("ok", !result.hasErrors());
+            if (result.getOllirResult() != null)
+                response.addProperty("ollir", result.getOllirCode());
+            if (result.getJasminResult() != null)
+                response.addProperty("jasmin", result.getJasminResult().getJasminCode());
+            if (result.getJasminResult() instanceof BytecodeResult bytecode)
+                response.addProperty("classBytes", Base64.getEncoder().encodeToString(bytecode.getClassBytes()));
+            response.add("reports", toJson(result));
+        } catch (RuntimeException e) {
+            response.addProperty("ok", false);
+            response.addProperty("error", "Exception during compilation: " + e);
+        }
+        return response;
+    }
+
+    private static JsonArray toJson(Pipeline.Result result) {
+        JsonArray reports = new JsonArray();
+        for (Report report : result.getReports()) {
+            JsonObject json = new JsonObject();
+            json.addProperty("type", report.getType().name());
+            json.addProperty("stage", report.getStage().name());
+            json.addProperty("line", report.getLine());
+            json.addProperty("column", report.getColumn());
+            json.addProperty("message", report.getMessage());
+            reports.add(json);
+        }
+        return reports;
+    }
+
+    // Same defaults as the command line
+    private static Map<String, String> defaultConfig() {
+        Map<String, String> config = new HashMap<>();
+        config.put("optimize", "false");
+        config.put("registerAllocation", "-1");
+        config.put("debug", "false");
+        return config;
+    }
+}
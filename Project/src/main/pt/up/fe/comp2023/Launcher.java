@@ -1,20 +1,15 @@
 package pt.up.fe.comp2023;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-import pt.up.fe.comp.TestUtils;
-import pt.up.fe.comp.jmm.analysis.JmmSemanticsResult;
 import pt.up.fe.comp.jmm.jasmin.JasminResult;
-import pt.up.fe.comp.jmm.ollir.OllirResult;
-import pt.up.fe.comp.jmm.parser.JmmParserResult;
 import pt.up.fe.comp.jmm.report.Report;
 import pt.up.fe.comp2023.ast.ASymbolTable;
-import pt.up.fe.comp2023.ast.SymbolTableBuilder;
-import pt.up.fe.comp2023.jasmin.Backend;
-import pt.up.fe.specs.util.SpecsIo;
 import pt.up.fe.specs.util.SpecsLogs;
 import pt.up.fe.specs.util.SpecsSystem;
 
@@ -27,6 +22,18 @@ public class Launcher {
         // Parse arguments as a map with predefined options
         var config = parseArgs(args);
 
+        // Several inputs, or a folder, are compiled in parallel without running them
+        List<String> inputs = Arrays.asList(config.get("inputFiles").split(File.pathSeparator));
+        if (inputs.size() > 1 || new File(inputs.get(0)).isDirectory()) {
+            int threads = Integer.parseInt(config.get("threads"));
+            BatchCompiler batch = new BatchCompiler(config, new File(config.get("outputDir")), threads);
+            int failed = batch.compile(BatchCompiler.collectInputs(inputs));
+            // Scripts and build tools only see the exit status, so any file that fails fails the whole run
+            if (failed > 0)
+                System.exit(1);
+            return;
+        }
+
         // Get input file
         File inputFile = new File(config.get("inputFile"));
 
@@ -35,99 +42,33 @@ public class Launcher {
             throw new RuntimeException("Expected a path to an existing input file, got '" + inputFile + "'.");
         }
 
-        // Read contents of input file
-        String code = SpecsIo.read(inputFile);
-
-        System.out.println("\nStarted parsing stage...");
-        AParser parser = new AParser();
-        JmmParserResult parserResult = parser.parse(code, config);
+        Pipeline.Result result = new Pipeline().compile(inputFile.toPath(), config);
 
         // Prints the reports
-        for(Report report : parserResult.getReports())
+        for(Report report : result.getReports())
             System.out.println(report);
 
-        // Check if there are parsing errors
-        long errors = TestUtils.getNumErrors(parserResult.getReports());
-        if(errors > 0){
-            System.out.println("Aborting...");
-            return;
-        }
-
-        // Print AST
-        System.out.println("Printing AST...\n");
-        System.out.println(parserResult.getRootNode().toTree());
-        System.out.println("Parsing done.\n");
-
-        System.out.println("Started Analysis stage...");
-        ASymbolTable symbolTable = new ASymbolTable();
-        SymbolTableBuilder buildVisitor = new SymbolTableBuilder();
-        buildVisitor.visit(parserResult.getRootNode(), symbolTable);
-        System.out.println("Printing Symbol Table...\n");
-        System.out.println(symbolTable.print());
-        System.out.println("Symbol Table done.");
-
-        Analysis analysisStage = new Analysis();
-        JmmSemanticsResult semanticsResult = analysisStage.semanticAnalysis(parserResult);
-
-        // Prints the reports
-        for(Report report : semanticsResult.getReports())
-            System.out.println(report);
+        if (result.getStats() != null)
+            System.out.println(result.getStats().format(config));
 
-        // Check if there are parsing errors
-        errors = TestUtils.getNumErrors(semanticsResult.getReports());
-        if(errors > 0){
+        // Check if there are errors
+        if(result.hasErrors()){
             System.out.println("Aborting...");
             return;
         }
 
-        Optimization ollir = new Optimization();
-        if (config.get("optimize") != null && config.get("optimize").equals("true")) {
-            System.out.println("Starting AST Optimizations");
-            semanticsResult = ollir.optimize(semanticsResult);
-
-            // Print AST
-            System.out.println("Printing revised AST...\n");
-            System.out.println(parserResult.getRootNode().toTree());
-            System.out.println("Parsing done.\n");
-        }
-
-        System.out.println("Starting Ollir...\n");
-        OllirResult test = ollir.toOllir(semanticsResult);
-
-        System.out.println("Ollir done.\n");
-
-        if (!config.get("registerAllocation").equals("-1")) {
-            System.out.println("Starting Register Optimizations\n");
-            test = ollir.optimize(test);
-
-            // Prints the reports
-            for(Report report : test.getReports())
-                System.out.println(report);
-
-            // Check if there are parsing errors
-            errors = TestUtils.getNumErrors(test.getReports());
-            if(errors > 0){
-                System.out.println("Aborting...");
-                return;
-            }
-        }
-        System.out.println("Starting with Jasmin.\n");
-
-        JasminResult jasminResult = new Backend().toJasmin(test);
-
-        System.out.println("Jasmin done.\n");
-
-        if(jasminResult.getReports().size() > 0) {
-            System.out.println("Jasmin reports:");
-
-            for (Report report : jasminResult.getReports()) {
-                System.out.println(report);
-            }
+        if ("true".equals(config.get("debug"))) {
+            System.out.println("Printing AST...\n");
+            System.out.println(result.getSemanticsResult().getRootNode().toTree());
+            System.out.println("Printing Symbol Table...\n");
+            System.out.println(((ASymbolTable) result.getSemanticsResult().getSymbolTable()).print());
         }
 
-
         System.out.println("Running Jasmin Code...\n");
-        jasminResult.compile(new File("out"));
+        // The bytecode backend already holds the class file and runs it in this JVM
+        JasminResult jasminResult = result.getJasminResult();
+        if (!"bytecode".equals(config.get("backend")))
+            jasminResult.compile(new File("out"));
         jasminResult.run();
 
     }
@@ -143,6 +84,24 @@ public class Launcher {
         // Create config
         Map<String, String> config = new HashMap<>();
         config.put("inputFile", args[0]);
+
+        // Every argument that is not an option is an input, a folder stands for the .jmm files inside it
+        List<String> inputs = new ArrayList<>();
+        for (String arg : args)
+            if (!arg.startsWith("-"))
+                inputs.add(arg);
+        config.put("inputFiles", String.join(File.pathSeparator, inputs));
+
+        String outputDir = "out";
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (String arg : args) {
+            if (arg.startsWith("-out="))
+                outputDir = arg.substring(5);
+            else if (arg.startsWith("-threads="))
+                threads = parseThreads(arg.substring(9));
+        }
+        config.put("outputDir", outputDir);
+        config.put("threads", String.valueOf(threads));
         if (Arrays.stream(args).anyMatch("-o"::equals))
             config.put("optimize", "true");
         else
@@ -158,9 +117,73 @@ public class Launcher {
             }
         config.put("registerAllocation", regNum);
 
-        config.put("debug", "false");
+        // Largest method, in OLLIR instructions, that -o inlines into its callers, 0 turns inlining off
+        for (String arg : args)
+            if (arg.startsWith("-inline=")) {
+                String value = arg.substring(8);
+                Integer.parseInt(value);
+                config.put("inlineSize", value);
+            }
+
+        // The peephole pass runs with -o by default, -peephole runs it on its own
+        if (Arrays.stream(args).anyMatch("-peephole"::equals))
+            config.put("peephole", "true");
+
+        if (Arrays.stream(args).anyMatch("-bytecode"::equals))
+            config.put("backend", "bytecode");
+
+        // -parser=ll parses in full LL only, the default tries SLL first
+        for (String arg : args)
+            if (arg.startsWith("-parser=")) {
+                String mode = arg.substring(8);
+                if (!mode.equals("ll") && !mode.equals("sll"))
+                    throw new RuntimeException("Unknown parser mode '" + mode + "', expected ll or sll.");
+                config.put("parserMode", mode);
+            }
+
+        // -cache=dir keeps the compiled methods in dir and reuses the ones that did not change
+        for (String arg : args)
+            if (arg.startsWith("-cache="))
+                config.put("cacheDir", arg.substring(7));
+
+        // -stats prints the time and memory each phase took, -stats=json prints them as JSON
+        for (String arg : args)
+            if (arg.equals("-stats"))
+                config.put("stats", "table");
+            else if (arg.startsWith("-stats=")) {
+                String format = arg.substring(7);
+                if (!format.equals("table") && !format.equals("json"))
+                    throw new RuntimeException("Unknown stats format '" + format + "', expected table or json.");
+                config.put("stats", format);
+            }
+
+        // -d prints the intermediate results of every stage
+        config.put("debug", Arrays.stream(args).anyMatch("-d"::equals) ? "true" : "false");
 
         return config;
     }
 
+    // -threads= and -port= are shared with the CompilerServer, bad values fail with a message instead of an exception
+    static int parseThreads(String value) {
+        int threads = parseInt(value, -1);
+        if (threads < 1)
+            throw new RuntimeException("Invalid number of threads '" + value + "', expected a positive integer.");
+        return threads;
+    }
+
+    static int parsePort(String value) {
+        int port = parseInt(value, -1);
+        if (port < 0 || port > 65535)
+            throw new RuntimeException("Invalid port '" + value + "', expected an integer from 0 to 65535.");
+        return port;
+    }
+
+    private static int parseInt(String value, int invalid) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return invalid;
+        }
+    }
+
 }
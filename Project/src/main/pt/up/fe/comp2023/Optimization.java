@@ -8,12 +8,18 @@ import pt.up.fe.comp.jmm.report.Report;
 import pt.up.fe.comp.jmm.report.ReportType;
 import pt.up.fe.comp.jmm.report.Stage;
 import pt.up.fe.comp2023.ast.ASymbolTable;
+import pt.up.fe.comp2023.inlining.Inliner;
+import pt.up.fe.comp2023.inlining.TailCallElimination;
 import pt.up.fe.comp2023.ollir.OllirVisitor;
 import pt.up.fe.comp2023.optimizations.FoldingVisitor;
-import pt.up.fe.comp2023.regAlloc.GraphColoring;
-import pt.up.fe.comp2023.regAlloc.LVAnalysis;
 import pt.up.fe.comp2023.optimizations.PropagationVisitor;
+import pt.up.fe.comp2023.regAlloc.DeadCodeElimination;
 import pt.up.fe.comp2023.regAlloc.RegisterAllocation;
+import pt.up.fe.comp2023.ssa.ConstantPropagation;
+import pt.up.fe.comp2023.ssa.LoopInvariantCodeMotion;
+import pt.up.fe.comp2023.ssa.SSAForm;
+import pt.up.fe.comp2023.ssa.StrengthReduction;
+import pt.up.fe.comp2023.ssa.ValueNumbering;
 
 import java.util.ArrayList;
 import java.util.Map;
@@ -21,18 +27,23 @@ import java.util.Map;
 public class Optimization implements JmmOptimization {
     @Override
     public OllirResult optimize(OllirResult ollirResult) {
-        if (ollirResult.getConfig().get("registerAllocation") == null || ollirResult.getConfig().get("registerAllocation").equals(-1))
+        if ("true".equals(ollirResult.getConfig().get("optimize")))
+            PhaseStats.measure("ollir optimization", () -> optimizeOllir(ollirResult));
+
+        if (ollirResult.getConfig().get("registerAllocation") == null || ollirResult.getConfig().get("registerAllocation").equals("-1"))
             return ollirResult;
 
         for (Method method: ollirResult.getOllirClass().getMethods()) {
-            RegisterAllocation allocation = new RegisterAllocation(method);
-            int regNeeded = allocation.determineRegisters();
             int regNum = Integer.parseInt(ollirResult.getConfig().get("registerAllocation"));
+            RegisterAllocation allocation = new RegisterAllocation(method);
+            // Liveness is measured by the allocation itself, spills included
+            int regNeeded = PhaseStats.measure("coloring",
+                    () -> regNum == 0 ? allocation.determineRegisters() : allocation.determineRegisters(regNum));
             if (regNum != 0 && regNeeded > regNum) {
                 String msg = "Method " + method.getMethodName() + " requires at least " + String.valueOf(regNeeded) + " registers";
                 ollirResult.getReports().add(new Report(ReportType.ERROR, Stage.OPTIMIZATION, -1, msg));
             }
-            else {
+            else if ("true".equals(ollirResult.getConfig().get("debug"))) {
                 System.out.println("Register Allocation for method " + method.getMethodName());
                 for (String var : method.getVarTable().keySet())
                     System.out.println("Variable " + var + " set to use register " + method.getVarTable().get(var).getVirtualReg());
@@ -42,26 +53,62 @@ public class Optimization implements JmmOptimization {
 
         return ollirResult;
     }
+
+    private void optimizeOllir(OllirResult ollirResult) {
+        boolean sccp = !"ast".equals(ollirResult.getConfig().get("constantPropagation"));
+        // Before inlining, a method left with no recursive calls can then be inlined
+        new TailCallElimination(ollirResult.getOllirClass()).run();
+        // Inlined bodies go through the passes below along with the rest of their caller
+        int inlineSize = getInt(ollirResult.getConfig(), "inlineSize", Inliner.DEFAULT_SIZE);
+        if (inlineSize > 0)
+            new Inliner(ollirResult.getOllirClass(), inlineSize,
+                    getInt(ollirResult.getConfig(), "inlineBudget", Inliner.DEFAULT_BUDGET)).run();
+        for (Method method : ollirResult.getOllirClass().getMethods()) {
+            SSAForm ssa = new SSAForm(method);
+            if (sccp)
+                new ConstantPropagation(ssa).run();
+            new ValueNumbering(ssa).run();
+            new LoopInvariantCodeMotion(ssa).run();
+            new StrengthReduction(ssa).run();
+            ssa.destruct();
+            new DeadCodeElimination(method).run();
+        }
+    }
+
+    private static int getInt(Map<String, String> config, String key, int fallback) {
+        String value = config.get(key);
+        return value == null ? fallback : Integer.parseInt(value);
+    }
+
     @Override
     public JmmSemanticsResult optimize(JmmSemanticsResult jmmSemanticsResult) {
         if (jmmSemanticsResult.getConfig().get("optimize") == null || !jmmSemanticsResult.getConfig().get("optimize").equals("true")) {
             return jmmSemanticsResult;
         }
-        while (true) {
-            FoldingVisitor visitor = new FoldingVisitor();
-            visitor.visit(jmmSemanticsResult.getRootNode(), (ASymbolTable) jmmSemanticsResult.getSymbolTable());
-            PropagationVisitor propagationVisitor = new PropagationVisitor();
-            propagationVisitor.visit(jmmSemanticsResult.getRootNode(), (ASymbolTable) jmmSemanticsResult.getSymbolTable());
-            if (!visitor.wasUpdated() && !propagationVisitor.wasUpdated())
-                break;
-        }
+        // Constants are propagated on the OLLIR code in SSA form, the AST passes only run when asked for
+        if (!"ast".equals(jmmSemanticsResult.getConfig().get("constantPropagation")))
+            return jmmSemanticsResult;
+        // Each run of the phase is one iteration
+        boolean updated = true;
+        while (updated)
+            updated = PhaseStats.measure("ast optimization", () -> foldAndPropagate(jmmSemanticsResult));
         return jmmSemanticsResult;
     }
+
+    // Whether either pass changed the tree
+    private static boolean foldAndPropagate(JmmSemanticsResult jmmSemanticsResult) {
+        FoldingVisitor visitor = new FoldingVisitor();
+        visitor.visit(jmmSemanticsResult.getRootNode(), (ASymbolTable) jmmSemanticsResult.getSymbolTable());
+        PropagationVisitor propagationVisitor = new PropagationVisitor();
+        propagationVisitor.visit(jmmSemanticsResult.getRootNode(), (ASymbolTable) jmmSemanticsResult.getSymbolTable());
+        return visitor.wasUpdated() || propagationVisitor.wasUpdated();
+    }
     @Override
     public OllirResult toOllir(JmmSemanticsResult jmmSemanticsResult) {
         OllirVisitor ov = new OllirVisitor(jmmSemanticsResult.getSymbolTable());
-        ov.visit(jmmSemanticsResult.getRootNode());
-        System.out.println(ov.getCode());
-        return new OllirResult(jmmSemanticsResult, ov.getCode(), new ArrayList<>());
+        PhaseStats.measure("ollir generation", () -> ov.visit(jmmSemanticsResult.getRootNode()));
+        if ("true".equals(jmmSemanticsResult.getConfig().get("debug")))
+            System.out.println(ov.getCode());
+        return PhaseStats.measure("ollir parsing", () -> new OllirResult(jmmSemanticsResult, ov.getCode(), new ArrayList<>()));
     }
 }
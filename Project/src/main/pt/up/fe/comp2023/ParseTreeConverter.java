@@ -0,0 +1,154 @@
+package pt.up.fe.comp2023;
+
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import pt.up.fe.comp.jmm.ast.JmmNode;
+import pt.up.fe.comp.jmm.ast.JmmNodeImpl;
+import pt.up.fe.comp.jmm.ast.NodePosition;
+import pt.up.fe.comp.jmm.ast.antlr.AntlrNodeAttrReplacer;
+import pt.up.fe.comp.jmm.ast.antlr.AntlrParser;
+import pt.up.fe.comp.jmm.ast.antlr.JmmNodeCleanup;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds from an ANTLR parse tree the same JmmNode tree as the converter of AntlrParser: one node per rule context,
+ * its kind the context class without "Context", the positions of its first and last tokens, and an attribute for each
+ * public field of the context, tokens by their text.
+ * <p>
+ * That converter looks the context classes up by reflection again on every node and then walks the whole tree twice
+ * more. Here each class is looked up once and kept for every later parse, and the passes that replace subtrees held
+ * in attributes and drop the nodes of the ignore list only run when the tree has any. Lines and columns
+ * with the same number share its string.
+ */
+public class ParseTreeConverter {
+    private static final Map<Class<?>, NodeClass> nodeClasses = new ConcurrentHashMap<>();
+
+    private record NodeClass(String kind, List<String> hierarchy, List<Field> fields) {
+    }
+
+    private final Parser parser;
+    private final List<String> numbers = new ArrayList<>();  // The same string for every position with a number
+    private boolean holdsTrees = false;
+
+    private ParseTreeConverter(Parser parser) {
+        this.parser = parser;
+    }
+
+    public static JmmNode convert(ParseTree tree, Parser parser) {
+        ParseTreeConverter converter = new ParseTreeConverter(parser);
+        JmmNode root = converter.convertNode(tree);
+        if (converter.holdsTrees) {
+            Map<ParseTree, JmmNode> converted = new HashMap<>();
+            mapNodes(tree, root, converted);
+            new AntlrNodeAttrReplacer(converted, parser).visit(root);
+        }
+        List<String> ignoreList = AntlrParser.getIgnoreList(parser);
+        if (!ignoreList.isEmpty())
+            new JmmNodeCleanup(ignoreList).visit(root);
+        return root;
+    }
+
+    private JmmNode convertNode(ParseTree tree) {
+        JmmNodeImpl node;
+        if (tree instanceof TerminalNode terminal) {
+            Token token = terminal.getSymbol();
+            node = new JmmNodeImpl(parser.getVocabulary().getSymbolicName(token.getType()));
+            addPosition(node, tree);
+            node.put("value", token.getText());
+        } else if (tree instanceof ParserRuleContext context) {
+            NodeClass nodeClass = nodeClasses.computeIfAbsent(context.getClass(), ParseTreeConverter::describe);
+            node = new JmmNodeImpl(nodeClass.kind());
+            node.setHierarchy(nodeClass.hierarchy());
+            addPosition(node, tree);
+            addFields(node, context, nodeClass.fields());
+        } else
+            throw new RuntimeException("Expected node to be of class '" + ParserRuleContext.class + "', but got '"
+                    + tree.getClass() + "'");
+
+        // Tokens are only kept as attributes
+        for (int i = 0; i < tree.getChildCount(); i++)
+            if (!(tree.getChild(i) instanceof TerminalNode))
+                node.add(convertNode(tree.getChild(i)));
+        return node;
+    }
+
+    // The children of a node are those of its tree without the tokens, in the same order
+    private static void mapNodes(ParseTree tree, JmmNode node, Map<ParseTree, JmmNode> converted) {
+        converted.put(tree, node);
+        int next = 0;
+        for (int i = 0; i < tree.getChildCount(); i++)
+            if (!(tree.getChild(i) instanceof TerminalNode))
+                mapNodes(tree.getChild(i), node.getJmmChild(next++), converted);
+    }
+
+    private void addPosition(JmmNodeImpl node, ParseTree tree) {
+        Token start = parser.getTokenStream().get(tree.getSourceInterval().a);
+        Token end = parser.getTokenStream().get(tree.getSourceInterval().b);
+        node.put(NodePosition.LINE_START.getKey(), number(start.getLine()));
+        node.put(NodePosition.COL_START.getKey(), number(start.getCharPositionInLine()));
+        node.put(NodePosition.LINE_END.getKey(), number(end.getLine()));
+        node.put(NodePosition.COL_END.getKey(), number(end.getCharPositionInLine()));
+    }
+
+    private String number(int n) {
+        if (n < 0)
+            return Integer.toString(n);
+        while (numbers.size() <= n)
+            numbers.add(Integer.toString(numbers.size()));
+        return numbers.get(n);
+    }
+
+    private void addFields(JmmNodeImpl node, ParserRuleContext context, List<Field> fields) {
+        for (Field field : fields) {
+            try {
+                Object value = field.get(context);
+                if (field.getType().isAssignableFrom(Token.class)) {
+                    // A label on a token not matched leaves no attribute
+                    if (value != null)
+                        node.put(field.getName(), ((Token) value).getText());
+                    continue;
+                }
+                value = textOf(value);
+                holdsTrees |= value instanceof ParseTree;
+                node.putObject(field.getName(), value);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("Could not access field '" + field.getName() + "' from node " + context);
+            }
+        }
+    }
+
+    private static Object textOf(Object value) {
+        if (value instanceof Token token)
+            return token.getText();
+        if (value instanceof List<?> list) {
+            List<Object> texts = new ArrayList<>();
+            for (Object element : list)
+                texts.add(textOf(element));
+            return texts;
+        }
+        return value;
+    }
+
+    // The context classes from the node's own up to, but not including, ParserRuleContext
+    private static NodeClass describe(Class<?> contextClass) {
+        List<String> hierarchy = new ArrayList<>();
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> current = contextClass; !current.equals(ParserRuleContext.class); current = current.getSuperclass()) {
+            String name = current.getSimpleName();
+            if (!name.endsWith("Context"))
+                throw new RuntimeException("Expected classname to end with 'Context' " + name);
+            hierarchy.add(name.substring(0, name.length() - "Context".length()));
+            for (Field field : current.getDeclaredFields())
+                if (Modifier.isPublic(field.getModifiers()))
+                    fields.add(field);
+        }
+        return new NodeClass(hierarchy.get(0), Collections.unmodifiableList(hierarchy), List.copyOf(fields));
+    }
+}
@@ -0,0 +1,142 @@
+package pt.up.fe.comp2023;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Wall time, CPU time and bytes allocated by each phase of one compilation, taken from the ThreadMXBean of the thread
+ * that runs it. The stats being collected are kept per thread, so the stages measure themselves with measure() and
+ * nothing has to be passed down to them; with no stats being collected, measure() only runs the work.
+ * <p>
+ * A phase measured inside another only counts for the inner one, so the phases add up to the whole compilation but
+ * for the work done outside any of them. A phase run several times, once per method or per fixpoint iteration, adds
+ * up over the runs and counts them.
+ */
+public class PhaseStats {
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final ThreadLocal<PhaseStats> current = new ThreadLocal<>();
+
+    private static class Totals {
+        int runs;
+        long wall, cpu, bytes;
+    }
+
+    // A phase running, with what the phases run inside it took so far
+    private record Frame(String phase, long[] start, long[] inner) {
+    }
+
+    private final Map<String, Totals> phases = new LinkedHashMap<>();  // In the order they first ran
+    private final Deque<Frame> running = new ArrayDeque<>();
+    private final Totals total = new Totals();
+
+    /** Runs a compilation on this thread, measuring the phases it goes through. */
+    public <T> T collect(Supplier<T> compilation) {
+        PhaseStats outer = current.get();
+        current.set(this);
+        long[] start = sample();
+        try {
+            return compilation.get();
+        } finally {
+            long[] spent = since(start);
+            total.runs++;
+            total.wall += spent[0];
+            total.cpu += spent[1];
+            total.bytes += spent[2];
+            if (outer == null)
+                current.remove();
+            else
+                current.set(outer);
+        }
+    }
+
+    public static <T> T measure(String phase, Supplier<T> work) {
+        PhaseStats stats = current.get();
+        if (stats == null)
+            return work.get();
+        stats.running.push(new Frame(phase, sample(), new long[3]));
+        try {
+            return work.get();
+        } finally {
+            stats.end();
+        }
+    }
+
+    public static void measure(String phase, Runnable work) {
+        measure(phase, () -> {
+            work.run();
+            return null;
+        });
+    }
+
+    private void end() {
+        Frame frame = running.pop();
+        long[] spent = since(frame.start());
+        if (!running.isEmpty())
+            for (int i = 0; i < spent.length; i++)
+                running.peek().inner()[i] += spent[i];
+        Totals totals = phases.computeIfAbsent(frame.phase(), phase -> new Totals());
+        totals.runs++;
+        totals.wall += spent[0] - frame.inner()[0];
+        totals.cpu += spent[1] - frame.inner()[1];
+        totals.bytes += spent[2] - frame.inner()[2];
+    }
+
+    // Wall time and CPU time in nanoseconds and bytes allocated so far, -1 for what the JVM cannot tell
+    private static long[] sample() {
+        long cpu = threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+        long bytes = -1;
+        if (threads instanceof com.sun.management.ThreadMXBean allocation && allocation.isThreadAllocatedMemoryEnabled())
+            bytes = allocation.getCurrentThreadAllocatedBytes();
+        return new long[]{System.nanoTime(), cpu, bytes};
+    }
+
+    private static long[] since(long[] start) {
+        long[] now = sample();
+        long[] spent = new long[now.length];
+        for (int i = 0; i < now.length; i++)
+            spent[i] = start[i] < 0 || now[i] < 0 ? 0 : now[i] - start[i];
+        return spent;
+    }
+
+    /** One line per phase and one for the whole compilation, times in milliseconds and allocations in kilobytes. */
+    public String toTable() {
+        StringBuilder table = new StringBuilder(String.format("%-20s %6s %10s %10s %12s%n", "phase", "runs", "wall ms",
+                "cpu ms", "alloc KB"));
+        for (Map.Entry<String, Totals> phase : phases.entrySet())
+            appendRow(table, phase.getKey(), phase.getValue());
+        appendRow(table, "total", total);
+        return table.toString();
+    }
+
+    private static void appendRow(StringBuilder table, String phase, Totals totals) {
+        table.append(String.format("%-20s %6d %10.1f %10.1f %12d%n", phase, totals.runs, totals.wall / 1e6,
+                totals.cpu / 1e6, totals.bytes / 1024));
+    }
+
+    /** The same as the table, with times in nanoseconds and allocations in bytes. */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"phases\": [");
+        String separator = "";
+        for (Map.Entry<String, Totals> phase : phases.entrySet()) {
+            json.append(separator);
+            appendObject(json, phase.getKey(), phase.getValue());
+            separator = ", ";
+        }
+        json.append("], \"total\": ");
+        appendObject(json, "total", total);
+        return json.append('}').toString();
+    }
+
+    private static void appendObject(StringBuilder json, String phase, Totals totals) {
+        json.append("{\"phase\": \"").append(phase).append("\", \"runs\": ").append(totals.runs)
+                .append(", \"wallNanos\": ").append(totals.wall).append(", \"cpuNanos\": ").append(totals.cpu)
+                .append(", \"allocatedBytes\": ").append(totals.bytes).append('}');
+    }
+
+    /** JSON with -stats=json, the table otherwise. */
+    public String format(Map<String, String> config) {
+        return "json".equals(config.get("stats")) ? toJson() : toTable();
+    }
+}
@@ -0,0 +1,211 @@
+package pt.up.fe.comp2023;
+
+import org.specs.comp.ollir.Field;
+import pt.up.fe.comp.TestUtils;
+import pt.up.fe.comp.jmm.analysis.table.Symbol;
+import pt.up.fe.comp.jmm.analysis.JmmSemanticsResult;
+import pt.up.fe.comp.jmm.ast.JmmNode;
+import pt.up.fe.comp.jmm.jasmin.JasminBackend;
+import pt.up.fe.comp.jmm.jasmin.JasminResult;
+import pt.up.fe.comp.jmm.ollir.OllirResult;
+import pt.up.fe.comp.jmm.parser.JmmParserResult;
+import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp2023.ast.ASymbolTable;
+import pt.up.fe.comp2023.incremental.ClassFragments;
+import pt.up.fe.comp2023.incremental.MethodCache;
+import pt.up.fe.comp2023.incremental.MethodKeys;
+import pt.up.fe.comp2023.jasmin.Backend;
+import pt.up.fe.comp2023.jasmin.BytecodeBackend;
+import pt.up.fe.comp2023.jasmin.BytecodeResult;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Runs every stage of the compiler over one source, stopping at the first stage that reports errors.
+ * An instance can compile any number of sources one after the other, so the server keeps a single one. Batch mode
+ * compiles in parallel and builds one per file instead, see BatchCompiler.
+ */
+public class Pipeline {
+    private final AParser parser = new AParser();
+    private final Analysis analysis = new Analysis();
+    private final Optimization optimization = new Optimization();
+
+    public Result compile(String code, Map<String, String> config) {
+        return collectStats(config, () -> compile(PhaseStats.measure("parse", () -> parser.parse(code, config)), config));
+    }
+
+    // The file is parsed as it is read, see AParser
+    public Result compile(Path file, Map<String, String> config) {
+        return collectStats(config, () -> compile(PhaseStats.measure("parse", () -> parser.parse(file, config)), config));
+    }
+
+    // With stats set, the result holds what each phase of the compilation took
+    private Result collectStats(Map<String, String> config, Supplier<Result> compilation) {
+        if (config.get("stats") == null)
+            return compilation.get();
+        PhaseStats stats = new PhaseStats();
+        Result result = stats.collect(compilation);
+        result.stats = stats;
+        return result;
+    }
+
+    private Result compile(JmmParserResult parserResult, Map<String, String> config) {
+        if (config.get("cacheDir") != null && parserResult.getRootNode() != null)
+            return compileWithCache(parserResult, config);
+        return compile(parserResult, null, config);
+    }
+
+    // Builds the symbol table from the tree unless one is given
+    private Result compile(JmmParserResult parserResult, ASymbolTable symbolTable, Map<String, String> config) {
+        Result result = new Result();
+
+        result.parserResult = parserResult;
+        result.reports = result.parserResult.getReports();
+        if (TestUtils.getNumErrors(result.reports) > 0)
+            return result;
+
+        JmmSemanticsResult semanticsResult = symbolTable == null ? analysis.semanticAnalysis(result.parserResult)
+                : analysis.semanticAnalysis(result.parserResult, symbolTable);
+        result.reports = semanticsResult.getReports();
+        if (TestUtils.getNumErrors(result.reports) > 0)
+            return result;
+        result.semanticsResult = optimization.optimize(semanticsResult);
+
+        OllirResult ollirResult = optimization.toOllir(result.semanticsResult);
+        result.ollirResult = optimization.optimize(ollirResult);
+        result.ollirCode = result.ollirResult.getOllirCode();
+        result.reports = result.ollirResult.getReports();
+        if (TestUtils.getNumErrors(result.reports) > 0)
+            return result;
+
+        JasminBackend backend = "bytecode".equals(config.get("backend")) ? new BytecodeBackend() : new Backend();
+        result.jasminResult = PhaseStats.measure("jasmin emission", () -> backend.toJasmin(result.ollirResult));
+        result.reports = result.jasminResult.getReports();
+        return result;
+    }
+
+    /*
+     * With cacheDir set, the methods found in the cache leave the tree while the rest of the class goes through the
+     * stages, against the symbol table of the whole class, and come back as cached OLLIR and Jasmin into the results.
+     * With inlining, the methods the compiled ones may inline are compiled along with them. The methods compiled
+     * without errors are then cached, except those using fields their compilation added to the class.
+     */
+    private Result compileWithCache(JmmParserResult parserResult, Map<String, String> config) {
+        JmmNode root = parserResult.getRootNode();
+        JmmNode classNode = root.getJmmChild(root.getNumChildren() - 1);
+        ASymbolTable symbolTable = Analysis.buildSymbolTable(root);
+        MethodKeys keys = new MethodKeys(classNode, symbolTable, config);
+        if (!keys.areNamesUnique())
+            return compile(parserResult, symbolTable, config);
+
+        MethodCache cache = new MethodCache(Path.of(config.get("cacheDir")));
+        Map<String, MethodCache.Entry> cached = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String method : keys.getMethods()) {
+            MethodCache.Entry entry = cache.get(keys.getKey(method));
+            if (entry != null)
+                cached.put(method, entry);
+            else
+                missing.add(method);
+        }
+        Set<String> compiled = keys.getDependencies(missing);
+
+        Map<Integer, JmmNode> removed = new TreeMap<>();
+        for (int i = classNode.getNumChildren() - 1; i >= 0; i--) {
+            String method = MethodKeys.getName(classNode.getJmmChild(i));
+            if (method != null && !compiled.contains(method))
+                removed.put(i, classNode.removeJmmChild(i));
+        }
+        Result result;
+        try {
+            result = compile(parserResult, symbolTable, config);
+        } finally {
+            for (Map.Entry<Integer, JmmNode> method : removed.entrySet())
+                classNode.add(method.getValue(), method.getKey());
+        }
+        if (result.hasErrors())
+            return result;
+
+        // Fields the compilation added to the class, the spill fields of the methods that did not fit in -r registers
+        Set<String> addedFields = new HashSet<>();
+        for (Field field : result.ollirResult.getOllirClass().getFields())
+            addedFields.add(field.getFieldName());
+        for (Symbol field : symbolTable.getFields())
+            addedFields.remove(field.getName());
+
+        ClassFragments ollir = ClassFragments.ofOllir(result.ollirCode);
+        ClassFragments jasmin = ClassFragments.ofJasmin(result.jasminResult.getJasminCode());
+        List<String> ollirMethods = new ArrayList<>();
+        List<String> jasminMethods = new ArrayList<>(List.of(jasmin.getMethod("<init>")));
+        for (String method : keys.getMethods()) {
+            MethodCache.Entry entry = cached.get(method);
+            if (entry == null) {
+                entry = new MethodCache.Entry(ollir.getMethod(method), jasmin.getMethod(method));
+                // Taken from the cache, the method would miss the fields, which only its own compilation adds
+                if (Collections.disjoint(ClassFragments.getFieldsUsed(entry.jasmin()), addedFields))
+                    cache.put(keys.getKey(method), entry);
+            }
+            ollirMethods.add(entry.ollir());
+            jasminMethods.add(entry.jasmin());
+        }
+
+        result.ollirCode = ollir.join(ollirMethods);
+        JasminResult compiledClass = result.jasminResult;
+        result.jasminResult = new JasminResult(compiledClass.getClassName(), jasmin.join(jasminMethods),
+                compiledClass.getReports(), compiledClass.getConfig());
+        if (compiledClass instanceof BytecodeResult)
+            result.jasminResult = new BytecodeResult(result.jasminResult,
+                    BytecodeBackend.assemble(result.ollirResult.getOllirClass(), jasminMethods));
+        return result;
+    }
+
+    /**
+     * Results of the stages that ran, the later ones are null when an earlier stage failed.
+     * The reports of each stage include the ones of the stages before it.
+     */
+    public static class Result {
+        private JmmParserResult parserResult;
+        private JmmSemanticsResult semanticsResult;
+        private OllirResult ollirResult;
+        private String ollirCode;
+        private JasminResult jasminResult;
+        private List<Report> reports;
+        private PhaseStats stats;
+
+        public JmmParserResult getParserResult() {
+            return parserResult;
+        }
+
+        public JmmSemanticsResult getSemanticsResult() {
+            return semanticsResult;
+        }
+
+        public OllirResult getOllirResult() {
+            return ollirResult;
+        }
+
+        /** OLLIR of the whole class, while with a cache the OLLIR result only has the methods compiled this time. */
+        public String getOllirCode() {
+            return ollirCode;
+        }
+
+        public JasminResult getJasminResult() {
+            return jasminResult;
+        }
+
+        public List<Report> getReports() {
+            return reports;
+        }
+
+        /** Null unless the stats option was set. */
+        public PhaseStats getStats() {
+            return stats;
+        }
+
+        public boolean hasErrors() {
+            return TestUtils.getNumErrors(reports) > 0;
+        }
+    }
+}
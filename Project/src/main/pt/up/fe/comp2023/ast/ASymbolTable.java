@@ -14,11 +14,13 @@ public class ASymbolTable implements SymbolTable {
     String className;
     String superName;
     List<Symbol> fields;
+    Map<String, Integer> fieldSlots;
     Map<String, MethodInfo> methods;
 
     public ASymbolTable(){
         imports = new ArrayList<>();
         fields = new ArrayList<>();
+        fieldSlots = new HashMap<>();
         methods = new HashMap<>();
     }
 
@@ -55,6 +57,7 @@ public class ASymbolTable implements SymbolTable {
     }
 
     public void addField(Symbol field){
+        fieldSlots.putIfAbsent(field.getName(), fields.size());
         fields.add(field);
     }
 
@@ -82,6 +85,19 @@ public class ASymbolTable implements SymbolTable {
         return methods.get(s).getVariables();
     }
 
+    /**
+     * What a name stands for inside a method, in the order Java looks it up: locals, parameters, then fields.
+     * Returns null when it is none of them (imports, the superclass, unknown names).
+     */
+    public VarInfo resolve(String method, String var) {
+        MethodInfo info = methods.get(method);
+        VarInfo result = info == null ? null : info.resolve(var);
+        if (result != null)
+            return result;
+        Integer slot = fieldSlots.get(var);
+        return slot == null ? null : new VarInfo(VarInfo.Kind.FIELD, slot, fields.get(slot).getType());
+    }
+
     //Constant Propagation
     public void setVarVal(String method, String var, String val) {
         methods.get(method).setVarVal(var, val);
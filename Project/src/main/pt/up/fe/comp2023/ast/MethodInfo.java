@@ -4,7 +4,10 @@ import pt.up.fe.comp.jmm.analysis.table.Symbol;
 import pt.up.fe.comp.jmm.analysis.table.Type;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class MethodInfo {
     private String name;
@@ -12,15 +15,22 @@ public class MethodInfo {
     private final List<Symbol> parameters;
     private final List<Symbol> variables;
 
-    private final List<Boolean> varUsed;
+    // Name -> position in the lists above, the first declaration wins like in a scan of the list
+    private final Map<String, Integer> parameterSlots;
+    private final Map<String, Integer> variableSlots;
 
-    private final List<String> varVal;
+    // Constant propagation state of every local, by slot
+    private boolean[] varUsed;
+    private String[] varVal;
 
     public MethodInfo(){
         parameters = new ArrayList<>();
         variables = new ArrayList<>();
-        varUsed = new ArrayList<>();
-        varVal = new ArrayList<>();
+        parameterSlots = new HashMap<>();
+        variableSlots = new HashMap<>();
+        varUsed = new boolean[4];
+        varVal = new String[4];
+        Arrays.fill(varVal, "");
     }
 
     public String getName(){
@@ -44,6 +54,7 @@ public class MethodInfo {
     }
 
     public void addParameter(Symbol parameter){
+        parameterSlots.putIfAbsent(parameter.getName(), parameters.size());
         parameters.add(parameter);
     }
 
@@ -52,49 +63,54 @@ public class MethodInfo {
     }
 
     public void addVariable(Symbol var){
+        variableSlots.putIfAbsent(var.getName(), variables.size());
         variables.add(var);
-        varUsed.add(false);
-        varVal.add("");
+        if (variables.size() > varUsed.length) {
+            int length = varUsed.length;
+            varUsed = Arrays.copyOf(varUsed, length * 2);
+            varVal = Arrays.copyOf(varVal, length * 2);
+            Arrays.fill(varVal, length, varVal.length, "");
+        }
+    }
+
+    /** The local or parameter a name stands for, locals first, or null when it is neither. */
+    public VarInfo resolve(String var) {
+        Integer slot = variableSlots.get(var);
+        if (slot != null)
+            return new VarInfo(VarInfo.Kind.LOCAL, slot, variables.get(slot).getType());
+        slot = parameterSlots.get(var);
+        if (slot != null)
+            return new VarInfo(VarInfo.Kind.PARAMETER, slot, parameters.get(slot).getType());
+        return null;
     }
 
     //Constant Propagation
     public boolean wasVarUsed(String var) {
-        for (int i = 0; i < variables.size(); i++) {
-            if (variables.get(i).getName().equals(var))
-                return varUsed.get(i);
-        }
-        return false;
+        Integer slot = variableSlots.get(var);
+        return slot != null && varUsed[slot];
     }
 
     public void setVarUsed(String var, Boolean bool) {
-        for (int i = 0; i < variables.size(); i++) {
-            if (variables.get(i).getName().equals(var))
-                varUsed.set(i, bool);
-        }
+        Integer slot = variableSlots.get(var);
+        if (slot != null)
+            varUsed[slot] = bool;
     }
 
     public String getVarValue(String var) {
-        for (int i = 0; i < variables.size(); i++) {
-            if (variables.get(i).getName().equals(var))
-                return varVal.get(i);
-        }
-        return "";
+        Integer slot = variableSlots.get(var);
+        return slot == null ? "" : varVal[slot];
     }
 
     public void setVarVal(String var, String val) {
-        for (int i = 0; i < variables.size(); i++) {
-            if (variables.get(i).getName().equals(var)) {
-                varVal.set(i, val);
-                varUsed.set(i, true);
-            }
+        Integer slot = variableSlots.get(var);
+        if (slot != null) {
+            varVal[slot] = val;
+            varUsed[slot] = true;
         }
-
     }
 
     public void resetVarInfo() {
-        for (int i = 0; i < varVal.size(); i++) {
-            varVal.set(i, "");
-            varUsed.set(i, false);
-        }
+        Arrays.fill(varVal, "");
+        Arrays.fill(varUsed, false);
     }
 }
@@ -266,24 +266,19 @@ public class SemanticVisitor extends AJmmVisitor<ASymbolTable, Type> {
     }
 
     private Type isVariable(String variable, ASymbolTable st, String line) {  // Organized in descending priority
-        for (Symbol localVariable : st.getLocalVariables(currentMethod)) {
-            if (localVariable.getName().equals(variable))                   // Local Variable
-                return localVariable.getType();
-        }   for (Symbol parameter : st.getParameters(currentMethod)) {
-            if (parameter.getName().equals(variable))                       // Method Parameter
-                return parameter.getType();
-        }   for (Symbol classField : st.getFields()) {
-            if (classField.getName().equals(variable)) {                    // Class Field
-                if(currentMethod.equals("main")){
-                    if (st.getImports().contains(variable) || (st.getSuper() != null && st.getSuper().equals(variable)))
-                        return new Type(variable, false); //Variable could still be one of the lower priority options
-                    else {
-                        addReport("Can't try to use class fields inside a static method", line);
-                        return new Type(variable, false);
-                    }
+        VarInfo info = st.resolve(currentMethod, variable);                 // Local Variable, Method Parameter
+        if (info != null && !info.isField())
+            return info.type();
+        if (info != null) {                                                 // Class Field
+            if(currentMethod.equals("main")){
+                if (st.getImports().contains(variable) || (st.getSuper() != null && st.getSuper().equals(variable)))
+                    return new Type(variable, false); //Variable could still be one of the lower priority options
+                else {
+                    addReport("Can't try to use class fields inside a static method", line);
+                    return new Type(variable, false);
                 }
-                return classField.getType();
             }
+            return info.type();
         }   if (st.getImports().contains(variable)) {                       // Imported Class
             return new Type(variable, false);
         }   if(st.getSuper() != null && st.getSuper().equals(variable))     // Implicit Superclass
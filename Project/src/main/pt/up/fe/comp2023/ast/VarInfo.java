@@ -0,0 +1,19 @@
+package pt.up.fe.comp2023.ast;
+
+import pt.up.fe.comp.jmm.analysis.table.Type;
+
+/**
+ * What a name stands for inside a method: a local, a parameter or a field of the class, its position in the list it
+ * was declared in, and its type.
+ */
+public record VarInfo(Kind kind, int slot, Type type) {
+    public enum Kind { LOCAL, PARAMETER, FIELD }
+
+    public boolean isField() {
+        return kind == Kind.FIELD;
+    }
+
+    public boolean isParameter() {
+        return kind == Kind.PARAMETER;
+    }
+}
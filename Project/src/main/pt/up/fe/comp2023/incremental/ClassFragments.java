@@ -0,0 +1,75 @@
+package pt.up.fe.comp2023.incremental;
+
+import java.util.*;
+
+/**
+ * The code of a class, in OLLIR or Jasmin as the compiler writes them, split into the code of each method and the code
+ * around the methods, so that methods compiled at different times can be put back together into one class.
+ */
+public class ClassFragments {
+    private static final String OLLIR_METHOD = "\n\n\t.method ";
+    private static final String OLLIR_END = "\n}";
+    private static final String JASMIN_METHOD = "\n.method ";
+
+    private final String header;
+    private final Map<String, String> methods = new LinkedHashMap<>();  // Name -> code, in class order
+    private final String footer;
+
+    // The methods start at the given positions and the last one runs to the footer
+    private ClassFragments(String code, List<Integer> starts, int end) {
+        this.header = code.substring(0, starts.isEmpty() ? end : starts.get(0));
+        for (int i = 0; i < starts.size(); i++) {
+            String method = code.substring(starts.get(i), i + 1 < starts.size() ? starts.get(i + 1) : end);
+            methods.put(getName(method), method);
+        }
+        this.footer = code.substring(end);
+    }
+
+    /** Methods open with a blank line and a tab before .method, the constructor stays with the fields. */
+    public static ClassFragments ofOllir(String code) {
+        int end = code.lastIndexOf(OLLIR_END);
+        List<Integer> starts = new ArrayList<>();
+        for (int at = code.indexOf(OLLIR_METHOD); at != -1 && at < end; at = code.indexOf(OLLIR_METHOD, at + 1))
+            starts.add(at);
+        return new ClassFragments(code, starts, end);
+    }
+
+    /** Methods run from a .method line to the blank line after .end method, the constructor being <init>. */
+    public static ClassFragments ofJasmin(String code) {
+        List<Integer> starts = new ArrayList<>();
+        for (int at = code.indexOf(JASMIN_METHOD); at != -1; at = code.indexOf(JASMIN_METHOD, at + 1))
+            starts.add(at + 1);
+        return new ClassFragments(code, starts, code.length());
+    }
+
+    public String getMethod(String name) {
+        return methods.get(name);
+    }
+
+    /** Names of the fields a method of Jasmin code reads or writes, on any class. */
+    public static Set<String> getFieldsUsed(String method) {
+        Set<String> fields = new HashSet<>();
+        for (String line : method.split("\n")) {
+            line = line.strip();
+            if (!line.startsWith("getfield ") && !line.startsWith("putfield "))
+                continue;
+            String field = line.substring("getfield ".length()).strip().split("\\s+")[0];
+            fields.add(field.substring(field.lastIndexOf('/') + 1));
+        }
+        return fields;
+    }
+
+    /** The class around these methods instead of its own. */
+    public String join(Collection<String> methods) {
+        StringBuilder code = new StringBuilder(header);
+        for (String method : methods)
+            code.append(method);
+        return code.append(footer).toString();
+    }
+
+    // The word before the parameters on the first line, after the access and the other modifiers
+    private static String getName(String method) {
+        String declaration = method.substring(0, method.indexOf('(')).strip();
+        return declaration.substring(declaration.lastIndexOf(' ') + 1);
+    }
+}
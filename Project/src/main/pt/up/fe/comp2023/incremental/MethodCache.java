@@ -0,0 +1,56 @@
+package pt.up.fe.comp2023.incremental;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Compiled methods kept in a folder between compilations, the OLLIR and the Jasmin of each in files named by its key.
+ * A file is written whole under another name and then moved in place, so compilations running at the same time, in
+ * batch mode or in the server, never read half of one.
+ */
+public class MethodCache {
+    /** OLLIR and Jasmin of a method, as the compiler writes them inside a class. */
+    public record Entry(String ollir, String jasmin) {
+    }
+
+    private final Path dir;
+
+    public MethodCache(Path dir) {
+        this.dir = dir;
+    }
+
+    /** The method with the given key, or null when there is none or it cannot be read. */
+    public Entry get(String key) {
+        Path ollir = dir.resolve(key + ".ollir");
+        Path jasmin = dir.resolve(key + ".j");
+        if (!Files.isRegularFile(ollir) || !Files.isRegularFile(jasmin))
+            return null;
+        try {
+            return new Entry(Files.readString(ollir, StandardCharsets.UTF_8), Files.readString(jasmin, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public void put(String key, Entry entry) {
+        try {
+            Files.createDirectories(dir);
+            write(dir.resolve(key + ".ollir"), entry.ollir());
+            write(dir.resolve(key + ".j"), entry.jasmin());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(Path file, String content) throws IOException {
+        Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            Files.writeString(temp, content, StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package pt.up.fe.comp2023.incremental;
+
+import pt.up.fe.comp.jmm.ast.JmmNode;
+import pt.up.fe.comp.jmm.ast.NodePosition;
+import pt.up.fe.comp2023.ast.ASymbolTable;
+import pt.up.fe.comp2023.inlining.Inliner;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Keys of the methods of a class in the compilation cache. The key of a method hashes all its compiled code depends
+ * on: its subtree without the source positions, the class as the symbol table has it (imports, superclass, fields and
+ * the signature of every method) and the options. With inlining, the code of a method also holds the methods it
+ * calls, and the ones these call, so their subtrees go in as well. Calls are matched by name only, whatever the object
+ * they are made on.
+ * <p>
+ * With a register budget, a method that does not fit may spill to fields of the class or to an array, depending on
+ * whether it may be called again while it runs. Every key then also holds the calls between all the methods of the
+ * class, so any change to them compiles the class again.
+ */
+public class MethodKeys {
+    private static final Set<String> POSITIONS = new HashSet<>();
+    // Options that only say where results go or how they are shown
+    private static final Set<String> OUTPUT_OPTIONS = Set.of("inputFile", "inputFiles", "outputDir", "threads", "debug",
+            "cacheDir", "parserMode", "backend", "stats");
+
+    // Entries written by another build of the compiler are not reused, as far as a build can be told apart
+    private static final String COMPILER = describeCompiler();
+
+    static {
+        for (NodePosition position : NodePosition.values())
+            POSITIONS.add(position.getKey());
+    }
+
+    private final Map<String, String> trees = new LinkedHashMap<>();     // Name -> subtree as text, in class order
+    private final Map<String, Set<String>> calls = new HashMap<>();      // Name -> methods of the class it calls
+    private final Map<String, String> keys = new HashMap<>();
+    private final boolean inlining;
+    private final boolean spilling;
+    private boolean namesUnique = true;
+
+    public MethodKeys(JmmNode classNode, ASymbolTable symbolTable, Map<String, String> config) {
+        String inlineSize = config.get("inlineSize");
+        this.inlining = "true".equals(config.get("optimize"))
+                && (inlineSize == null ? Inliner.DEFAULT_SIZE : Integer.parseInt(inlineSize)) > 0;
+        String registers = config.get("registerAllocation");
+        this.spilling = registers != null && Integer.parseInt(registers) > 0;
+
+        for (JmmNode child : classNode.getChildren()) {
+            String name = getName(child);
+            if (name == null)
+                continue;
+            StringBuilder text = new StringBuilder();
+            describe(child, text);
+            namesUnique &= trees.put(name, text.toString()) == null;
+        }
+        for (JmmNode child : classNode.getChildren()) {
+            String name = getName(child);
+            if (name != null)
+                calls.put(name, findCalls(child, new HashSet<>()));
+        }
+
+        String context = COMPILER + describeClass(symbolTable) + describeOptions(config);
+        if (spilling)
+            context += describeCalls();
+        for (String method : trees.keySet()) {
+            StringBuilder text = new StringBuilder(context);
+            for (String dependency : getDependencies(List.of(method)))
+                text.append(dependency).append(':').append(trees.get(dependency)).append('\n');
+            keys.put(method, hash(text.toString()));
+        }
+    }
+
+    /** Name of the method a node declares, or null if it is no method. */
+    public static String getName(JmmNode node) {
+        return switch (node.getKind()) {
+            case "Method" -> node.get("methodName");
+            case "MainMethod" -> "main";
+            default -> null;
+        };
+    }
+
+    /** Methods of the class, in the order they are declared. */
+    public Set<String> getMethods() {
+        return trees.keySet();
+    }
+
+    public String getKey(String method) {
+        return keys.get(method);
+    }
+
+    /** Whether no two methods share a name, the cache can only tell methods apart by name. */
+    public boolean areNamesUnique() {
+        return namesUnique;
+    }
+
+    /** The given methods and, with inlining, all the methods they may take code from, in the order they are declared. */
+    public Set<String> getDependencies(Collection<String> methods) {
+        Set<String> found = new HashSet<>(methods);
+        if (inlining) {
+            Deque<String> work = new ArrayDeque<>(methods);
+            while (!work.isEmpty())
+                for (String callee : calls.get(work.pop()))
+                    if (found.add(callee))
+                        work.push(callee);
+        }
+        Set<String> ordered = new LinkedHashSet<>(trees.keySet());
+        ordered.retainAll(found);
+        return ordered;
+    }
+
+    private Set<String> findCalls(JmmNode node, Set<String> found) {
+        if (node.getKind().equals("MethodCall") && node.getJmmChild(1).getKind().equals("Identifier")
+                && trees.containsKey(node.getJmmChild(1).get("value")))
+            found.add(node.getJmmChild(1).get("value"));
+        for (JmmNode child : node.getChildren())
+            findCalls(child, found);
+        return found;
+    }
+
+    // Kind, attributes in name order and children, positions left out so moving a method keeps its key
+    private static void describe(JmmNode node, StringBuilder text) {
+        text.append(node.getKind()).append('{');
+        List<String> attributes = new ArrayList<>(node.getAttributes());
+        Collections.sort(attributes);
+        for (String attribute : attributes)
+            if (!POSITIONS.contains(attribute))
+                text.append(attribute).append('=').append(node.getOptionalObject(attribute).orElse(null)).append(';');
+        for (JmmNode child : node.getChildren())
+            describe(child, text);
+        text.append('}');
+    }
+
+    private static String describeClass(ASymbolTable symbolTable) {
+        StringBuilder text = new StringBuilder();
+        text.append("imports ").append(symbolTable.getImports()).append('\n');
+        text.append("class ").append(symbolTable.getClassName()).append(" extends ").append(symbolTable.getSuper())
+                .append('\n');
+        text.append("fields ").append(symbolTable.getFields()).append('\n');
+        List<String> methods = new ArrayList<>(symbolTable.getMethods());
+        Collections.sort(methods);
+        for (String method : methods)
+            text.append("method ").append(method).append(' ').append(symbolTable.getReturnType(method)).append(' ')
+                    .append(symbolTable.getParameters(method)).append('\n');
+        return text.toString();
+    }
+
+    private String describeCalls() {
+        StringBuilder text = new StringBuilder();
+        for (String method : trees.keySet())
+            text.append("calls ").append(method).append(' ').append(new TreeSet<>(calls.get(method))).append('\n');
+        return text.toString();
+    }
+
+    private static String describeOptions(Map<String, String> config) {
+        Map<String, String> options = new TreeMap<>(config);
+        options.keySet().removeAll(OUTPUT_OPTIONS);
+        return "options " + options + '\n';
+    }
+
+    // The size and time of the jar the compiler runs from, nothing for a folder of classes
+    private static String describeCompiler() {
+        try {
+            Path location = Path.of(MethodKeys.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if (Files.isRegularFile(location))
+                return "compiler " + Files.size(location) + " " + Files.getLastModifiedTime(location) + '\n';
+        } catch (Exception e) {
+            // No location to go by
+        }
+        return "";
+    }
+
+    private static String hash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package pt.up.fe.comp2023.inlining;
+
+import org.specs.comp.ollir.*;
+
+import java.util.*;
+
+/**
+ * Calls between the methods of the compiled class.
+ * Only invokevirtual on an object of the class itself has a target the compiler can see, every other call (imports,
+ * the superclass, constructors) is left out. Methods are grouped in strongly connected components, a method is
+ * recursive when its component has a cycle, and the components come out callees first.
+ */
+public class CallGraph {
+    private final ClassUnit ollirClass;
+    private final Map<String, Method> methods = new LinkedHashMap<>();
+    private final Map<String, Set<String>> callees = new HashMap<>();
+    private final Set<String> recursive = new HashSet<>();
+    private final List<Method> bottomUp = new ArrayList<>();
+
+    // Tarjan's algorithm state
+    private final Map<String, Integer> index = new HashMap<>();
+    private final Map<String, Integer> lowLink = new HashMap<>();
+    private final Deque<String> stack = new ArrayDeque<>();
+    private final Set<String> onStack = new HashSet<>();
+
+    public CallGraph(ClassUnit ollirClass) {
+        this.ollirClass = ollirClass;
+        for (Method method : ollirClass.getMethods())
+            if (!method.isConstructMethod())
+                methods.put(method.getMethodName(), method);
+
+        for (Method method : methods.values()) {
+            Set<String> targets = new LinkedHashSet<>();
+            for (Instruction inst : method.getInstructions()) {
+                Method target = getTarget(getCall(inst));
+                if (target != null)
+                    targets.add(target.getMethodName());
+            }
+            callees.put(method.getMethodName(), targets);
+        }
+
+        for (String name : methods.keySet())
+            if (!index.containsKey(name))
+                connect(name);
+    }
+
+    /** The call an instruction makes, on its own or as the value of an assignment, or null. */
+    public static CallInstruction getCall(Instruction inst) {
+        if (inst instanceof CallInstruction call)
+            return call;
+        if (inst instanceof AssignInstruction assign && assign.getRhs() instanceof CallInstruction call)
+            return call;
+        return null;
+    }
+
+    /** Method of the class a call runs, or null when the target is not known. */
+    public Method getTarget(CallInstruction call) {
+        if (call == null || call.getInvocationType() != CallType.invokevirtual
+                || !(call.getFirstArg().getType() instanceof ClassType type)
+                || !type.getName().equals(ollirClass.getClassName())
+                || !(call.getSecondArg() instanceof LiteralElement name))
+            return null;
+        Method method = methods.get(name.getLiteral().replace("\"", ""));
+        int args = call.getListOfOperands() == null ? 0 : call.getListOfOperands().size();
+        if (method == null || method.isStaticMethod() || method.getParams().size() != args)
+            return null;
+        return method;
+    }
+
+    public Set<String> getCallees(String method) {
+        return callees.getOrDefault(method, Set.of());
+    }
+
+    public boolean isRecursive(String method) {
+        return recursive.contains(method);
+    }
+
+    /** Methods ordered so that every method comes after the ones it calls, recursion aside. */
+    public List<Method> bottomUp() {
+        return bottomUp;
+    }
+
+    private void connect(String name) {
+        int number = index.size();
+        index.put(name, number);
+        lowLink.put(name, number);
+        stack.push(name);
+        onStack.add(name);
+
+        for (String callee : callees.get(name)) {
+            if (!index.containsKey(callee)) {
+                connect(callee);
+                lowLink.put(name, Math.min(lowLink.get(name), lowLink.get(callee)));
+            } else if (onStack.contains(callee))
+                lowLink.put(name, Math.min(lowLink.get(name), index.get(callee)));
+        }
+
+        if (!lowLink.get(name).equals(index.get(name)))
+            return;
+        List<String> component = new ArrayList<>();
+        String member;
+        do {
+            member = stack.pop();
+            onStack.remove(member);
+            component.add(member);
+        } while (!member.equals(name));
+        if (component.size() > 1 || callees.get(name).contains(name))
+            recursive.addAll(component);
+        for (String method : component)
+            bottomUp.add(methods.get(method));
+    }
+}
@@ -0,0 +1,143 @@
+package pt.up.fe.comp2023.inlining;
+
+import org.specs.comp.ollir.*;
+
+import java.util.*;
+
+/**
+ * Inlines calls between the methods of the compiled class.
+ * Methods are visited callees first, so a body is copied with its own calls already inlined. A call is inlined when
+ * its target is not recursive, has at most maxSize instructions, and the caller has not yet grown by budget
+ * instructions. The copy gets fresh variables and labels, the arguments are copied into the renamed parameters,
+ * this becomes the receiver of the call, and every return assigns the result and jumps past the copy.
+ * <p>
+ * Calls on an object of the class are bound at compile time, which holds as long as no other class overrides the
+ * methods of this one.
+ */
+public class Inliner {
+    public static final int DEFAULT_SIZE = 30;
+    public static final int DEFAULT_BUDGET = 200;
+
+    private final ClassUnit ollirClass;
+    private final int maxSize;
+    private final int budget;
+    private int inlined = 0;
+    private int copies = 0;
+
+    public Inliner(ClassUnit ollirClass, int maxSize, int budget) {
+        this.ollirClass = ollirClass;
+        this.maxSize = maxSize;
+        this.budget = budget;
+    }
+
+    public boolean run() {
+        CallGraph graph = new CallGraph(ollirClass);
+        for (Method caller : graph.bottomUp()) {
+            List<Instruction> instructions = caller.getInstructions();
+            int grown = 0;
+            for (int at = 0; at + 1 < instructions.size(); at++) {
+                CallInstruction call = CallGraph.getCall(instructions.get(at));
+                Method callee = graph.getTarget(call);
+                if (callee == null || graph.isRecursive(callee.getMethodName()))
+                    continue;
+                int size = callee.getInstructions().size();
+                if (size > maxSize || grown + size > budget)
+                    continue;
+                // The copy already holds the calls the callee kept, skip over it
+                int added = inline(caller, at, call, callee);
+                grown += size;
+                at += added - 1;
+                inlined++;
+            }
+        }
+        return inlined > 0;
+    }
+
+    public int getInlined() {
+        return inlined;
+    }
+
+    // Replaces the call at the given position by a copy of the callee, returns the number of instructions it took
+    private int inline(Method caller, int at, CallInstruction call, Method callee) {
+        List<Instruction> instructions = caller.getInstructions();
+        Instruction site = instructions.get(at);
+        Instruction after = instructions.get(at + 1);
+        int copy = copies++;
+
+        Map<String, String> names = new HashMap<>();
+        int nextReg = 0;
+        for (Descriptor descriptor : caller.getVarTable().values())
+            nextReg = Math.max(nextReg, descriptor.getVirtualReg() + 1);
+        for (Map.Entry<String, Descriptor> entry : callee.getVarTable().entrySet()) {
+            if (entry.getKey().equals("this") || entry.getValue().getScope() == VarScope.FIELD)
+                continue;
+            String name = entry.getKey() + "_" + callee.getMethodName() + copy;
+            while (caller.getVarTable().containsKey(name))
+                name += "_";
+            caller.getVarTable().put(name, new Descriptor(VarScope.LOCAL, nextReg++, entry.getValue().getVarType()));
+            names.put(entry.getKey(), name);
+        }
+
+        Map<String, String> labels = new HashMap<>();
+        for (String label : callee.getLabels().keySet())
+            labels.put(label, uniqueLabel(caller, label + "_" + callee.getMethodName() + copy));
+        String end = uniqueLabel(caller, "Inline" + copy + "_end");
+        boolean jumpsToEnd = false;
+
+        Renamer renamer = new Renamer(names, call.getFirstArg());
+        List<Instruction> body = new ArrayList<>();
+        List<Element> params = callee.getParams();
+        for (int i = 0; i < params.size(); i++) {
+            Operand param = (Operand) params.get(i);
+            Type type = param.getType();
+            body.add(new AssignInstruction(new Operand(names.get(param.getName()), type), type,
+                    new SingleOpInstruction(call.getListOfOperands().get(i))));
+        }
+
+        Element dest = site instanceof AssignInstruction assign ? assign.getDest() : null;
+        Map<Instruction, Instruction> first = new IdentityHashMap<>();
+        List<Instruction> code = callee.getInstructions();
+        for (int i = 0; i < code.size(); i++) {
+            Instruction inst = code.get(i);
+            int start = body.size();
+            if (inst instanceof ReturnInstruction ret) {
+                if (ret.hasReturnValue() && dest != null) {
+                    AssignInstruction assign = (AssignInstruction) site;
+                    body.add(new AssignInstruction(Renamer.duplicate(dest), assign.getTypeOfAssign(),
+                            new SingleOpInstruction(renamer.copy(ret.getOperand()))));
+                }
+                if (i + 1 < code.size()) {
+                    body.add(new GotoInstruction(end));
+                    jumpsToEnd = true;
+                }
+            } else
+                body.add(renamer.copy(inst, labels));
+            // A return with nothing to assign at the very end leaves no instruction, labels on it fall to the end
+            first.put(inst, start < body.size() ? body.get(start) : null);
+        }
+
+        for (Map.Entry<String, Instruction> label : callee.getLabels().entrySet()) {
+            Instruction target = first.get(label.getValue());
+            if (target == null)
+                target = after;
+            caller.addLabel(labels.get(label.getKey()), target);
+        }
+        if (jumpsToEnd)
+            caller.addLabel(end, after);
+
+        Instruction replacement = body.isEmpty() ? after : body.get(0);
+        for (Map.Entry<String, Instruction> label : caller.getLabels().entrySet())
+            if (label.getValue() == site)
+                label.setValue(replacement);
+        instructions.remove(at);
+        instructions.addAll(at, body);
+        return body.size();
+    }
+
+    static String uniqueLabel(Method method, String label) {
+        String unique = label;
+        while (method.getLabels().containsKey(unique))
+            unique += "_";
+        return unique;
+    }
+}
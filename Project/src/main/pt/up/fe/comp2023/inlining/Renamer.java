@@ -0,0 +1,113 @@
+package pt.up.fe.comp2023.inlining;
+
+import org.specs.comp.ollir.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies the instructions of a callee into its caller. Variables are renamed to the caller's fresh names, this becomes
+ * the receiver of the call, and jumps follow the renamed labels. Every copy gets operands of its own, passes that
+ * rename operands in place rely on no two instructions sharing one.
+ */
+class Renamer {
+    private final Map<String, String> names;
+    private final Element receiver;
+
+    Renamer(Map<String, String> names, Element receiver) {
+        this.names = names;
+        this.receiver = receiver;
+    }
+
+    Instruction copy(Instruction inst, Map<String, String> labels) {
+        return switch (inst.getInstType()) {
+            case ASSIGN -> {
+                AssignInstruction assign = (AssignInstruction) inst;
+                yield new AssignInstruction(copy(assign.getDest()), assign.getTypeOfAssign(), copy(assign.getRhs(), labels));
+            }
+            case CALL -> {
+                CallInstruction call = (CallInstruction) inst;
+                // invokestatic and new name a class in their first argument, not a variable
+                Element first = call.getInvocationType() == CallType.invokestatic || call.getInvocationType() == CallType.NEW
+                        ? duplicate(call.getFirstArg()) : copy(call.getFirstArg());
+                if (call.getListOfOperands() == null)
+                    yield new CallInstruction(call.getInvocationType(), first, call.getReturnType());
+                ArrayList<Element> args = new ArrayList<>();
+                for (Element arg : call.getListOfOperands())
+                    args.add(copy(arg));
+                if (call.getSecondArg() == null)
+                    yield new CallInstruction(call.getInvocationType(), first, args, call.getReturnType());
+                yield new CallInstruction(call.getInvocationType(), first, duplicate(call.getSecondArg()), args, call.getReturnType());
+            }
+            case GOTO -> new GotoInstruction(labels.get(((GotoInstruction) inst).getLabel()));
+            case BRANCH -> {
+                CondBranchInstruction branch;
+                if (inst instanceof SingleOpCondInstruction single)
+                    branch = new SingleOpCondInstruction((SingleOpInstruction) copy(single.getCondition(), labels));
+                else
+                    branch = new OpCondInstruction((OpInstruction) copy(((OpCondInstruction) inst).getCondition(), labels));
+                branch.setLabel(labels.get(((CondBranchInstruction) inst).getLabel()));
+                yield branch;
+            }
+            // The second operand of a field access is the field, which keeps its name
+            case PUTFIELD -> {
+                PutFieldInstruction put = (PutFieldInstruction) inst;
+                yield new PutFieldInstruction(copy(put.getFirstOperand()), duplicate(put.getSecondOperand()),
+                        copy(put.getThirdOperand()), put.getFieldType());
+            }
+            case GETFIELD -> {
+                GetFieldInstruction get = (GetFieldInstruction) inst;
+                yield new GetFieldInstruction(copy(get.getFirstOperand()), duplicate(get.getSecondOperand()), get.getFieldType());
+            }
+            case UNARYOPER -> {
+                UnaryOpInstruction unary = (UnaryOpInstruction) inst;
+                yield new UnaryOpInstruction(copy(unary.getOperation()), copy(unary.getOperand()));
+            }
+            case BINARYOPER -> {
+                BinaryOpInstruction binary = (BinaryOpInstruction) inst;
+                yield new BinaryOpInstruction(copy(binary.getLeftOperand()), copy(binary.getOperation()),
+                        copy(binary.getRightOperand()));
+            }
+            case NOPER -> new SingleOpInstruction(copy(((SingleOpInstruction) inst).getSingleOperand()));
+            default -> throw new RuntimeException("Cannot inline instruction " + inst);
+        };
+    }
+
+    Element copy(Element element) {
+        if (element instanceof ArrayOperand array) {
+            List<Element> indexes = new ArrayList<>();
+            for (Element index : array.getIndexOperands())
+                indexes.add(copy(index));
+            return new ArrayOperand(rename(array.getName()), array.getType(), indexes);
+        }
+        if (element instanceof Operand operand && operand.getName().equals("this"))
+            return duplicate(receiver);
+        if (element instanceof Operand operand)
+            return new Operand(rename(operand.getName()), operand.getType());
+        return duplicate(element);
+    }
+
+    private String rename(String name) {
+        return names.getOrDefault(name, name);
+    }
+
+    private static Operation copy(Operation operation) {
+        return new Operation(operation.getOpType(), operation.getTypeInfo());
+    }
+
+    /** Same element, as a new object. */
+    static Element duplicate(Element element) {
+        if (element instanceof ArrayOperand array) {
+            List<Element> indexes = new ArrayList<>();
+            for (Element index : array.getIndexOperands())
+                indexes.add(duplicate(index));
+            return new ArrayOperand(array.getName(), array.getType(), indexes);
+        }
+        if (element instanceof Operand operand)
+            return new Operand(operand.getName(), operand.getType());
+        if (element instanceof LiteralElement literal)
+            return new LiteralElement(literal.getLiteral(), literal.getType());
+        return element;
+    }
+}
@@ -0,0 +1,157 @@
+package pt.up.fe.comp2023.inlining;
+
+import org.specs.comp.ollir.*;
+
+import java.util.*;
+
+/**
+ * Turns self-recursive calls in tail position into loops.
+ * A call is in tail position when it is made on this to the method itself and every instruction from it to a return
+ * only jumps or copies the result along, the return then giving back that result (or nothing, for void methods). The
+ * call becomes an assignment of the arguments to the parameters and a jump back to the first instruction.
+ * <p>
+ * Like the inliner, this takes the method a call on this runs to be the one of this class.
+ */
+public class TailCallElimination {
+    private final ClassUnit ollirClass;
+    private int eliminated = 0;
+
+    public TailCallElimination(ClassUnit ollirClass) {
+        this.ollirClass = ollirClass;
+    }
+
+    public boolean run() {
+        CallGraph graph = new CallGraph(ollirClass);
+        for (Method method : ollirClass.getMethods()) {
+            if (method.isConstructMethod() || method.isStaticMethod())
+                continue;
+            List<Instruction> instructions = method.getInstructions();
+            for (int at = 0; at < instructions.size(); at++) {
+                CallInstruction call = CallGraph.getCall(instructions.get(at));
+                if (call == null || graph.getTarget(call) != method
+                        || !(call.getFirstArg() instanceof Operand receiver) || !receiver.getName().equals("this")
+                        || !inTailPosition(method, at))
+                    continue;
+                at += eliminate(method, at, call) - 1;
+                eliminated++;
+            }
+        }
+        return eliminated > 0;
+    }
+
+    public int getEliminated() {
+        return eliminated;
+    }
+
+    // Follows the instructions after the call until a return, only through jumps and copies of the result
+    private static boolean inTailPosition(Method method, int at) {
+        List<Instruction> instructions = method.getInstructions();
+        Map<Instruction, Integer> index = new IdentityHashMap<>();
+        for (int i = 0; i < instructions.size(); i++)
+            index.put(instructions.get(i), i);
+
+        String result = null;
+        if (instructions.get(at) instanceof AssignInstruction assign) {
+            if (assign.getDest() instanceof ArrayOperand || !(assign.getDest() instanceof Operand dest))
+                return false;
+            result = dest.getName();
+        }
+
+        Set<Integer> visited = new HashSet<>();
+        int next = at + 1;
+        while (next < instructions.size() && visited.add(next)) {
+            Instruction inst = instructions.get(next);
+            if (inst instanceof GotoInstruction jump) {
+                Integer target = index.get(method.getLabels().get(jump.getLabel()));
+                if (target == null)
+                    return false;
+                next = target;
+            } else if (inst instanceof AssignInstruction assign && result != null && isCopyOf(assign, result))
+                result = ((Operand) assign.getDest()).getName();
+            else if (inst instanceof ReturnInstruction ret) {
+                if (!ret.hasReturnValue())
+                    return result == null;
+                return result != null && ret.getOperand() instanceof Operand operand
+                        && !(operand instanceof ArrayOperand) && operand.getName().equals(result);
+            } else
+                return false;
+            if (!(inst instanceof GotoInstruction))
+                next++;
+        }
+        return false;
+    }
+
+    private static boolean isCopyOf(AssignInstruction assign, String var) {
+        return assign.getDest() instanceof Operand dest && !(dest instanceof ArrayOperand)
+                && assign.getRhs() instanceof SingleOpInstruction copy
+                && copy.getSingleOperand() instanceof Operand source && !(source instanceof ArrayOperand)
+                && source.getName().equals(var);
+    }
+
+    // Replaces the call by the parameter assignments and the jump back, returns the number of instructions it took
+    private static int eliminate(Method method, int at, CallInstruction call) {
+        List<Instruction> instructions = method.getInstructions();
+        Instruction site = instructions.get(at);
+        List<Element> params = method.getParams();
+        List<Element> args = call.getListOfOperands() == null ? List.of() : call.getListOfOperands();
+
+        Set<String> paramNames = new HashSet<>();
+        for (Element param : params)
+            paramNames.add(((Operand) param).getName());
+
+        // The parameters take their new values together, an argument that reads another parameter is saved first
+        List<Instruction> code = new ArrayList<>();
+        List<Element> values = new ArrayList<>();
+        for (int i = 0; i < params.size(); i++) {
+            Element arg = args.get(i);
+            Operand param = (Operand) params.get(i);
+            if (arg instanceof Operand operand && !(operand instanceof ArrayOperand)
+                    && paramNames.contains(operand.getName()) && !operand.getName().equals(param.getName())) {
+                Operand saved = new Operand(newLocal(method, operand.getName() + "_tail", arg.getType()), arg.getType());
+                code.add(new AssignInstruction(saved, arg.getType(), new SingleOpInstruction(Renamer.duplicate(arg))));
+                values.add(Renamer.duplicate(saved));
+            } else
+                values.add(arg);
+        }
+        for (int i = 0; i < params.size(); i++) {
+            Operand param = (Operand) params.get(i);
+            Element value = values.get(i);
+            if (value instanceof Operand operand && !(operand instanceof ArrayOperand) && operand.getName().equals(param.getName()))
+                continue;
+            code.add(new AssignInstruction(new Operand(param.getName(), param.getType()), param.getType(),
+                    new SingleOpInstruction(Renamer.duplicate(value))));
+        }
+        GotoInstruction jump = new GotoInstruction(null);
+        code.add(jump);
+
+        for (Map.Entry<String, Instruction> label : method.getLabels().entrySet())
+            if (label.getValue() == site)
+                label.setValue(code.get(0));
+        instructions.remove(at);
+        instructions.addAll(at, code);
+
+        // Labelled after the replacement, which may itself be the first instruction
+        Instruction first = instructions.get(0);
+        String start = null;
+        for (Map.Entry<String, Instruction> label : method.getLabels().entrySet())
+            if (label.getValue() == first)
+                start = label.getKey();
+        if (start == null) {
+            start = Inliner.uniqueLabel(method, "Start");
+            method.addLabel(start, first);
+        }
+        jump.setLabel(start);
+        return code.size();
+    }
+
+    private static String newLocal(Method method, String base, Type type) {
+        int nextReg = 0;
+        for (Descriptor descriptor : method.getVarTable().values())
+            nextReg = Math.max(nextReg, descriptor.getVirtualReg() + 1);
+        String name = base;
+        while (method.getVarTable().containsKey(name))
+            name += "_";
+        method.getVarTable().put(name, new Descriptor(VarScope.LOCAL, nextReg, type));
+        return name;
+    }
+}
@@ -5,6 +5,8 @@ import pt.up.fe.comp.jmm.jasmin.JasminBackend;
 import pt.up.fe.comp.jmm.jasmin.JasminResult;
 import pt.up.fe.comp.jmm.ollir.OllirResult;
 import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp.jmm.report.ReportType;
+import pt.up.fe.comp.jmm.report.Stage;
 
 import java.util.*;
 
@@ -17,21 +19,41 @@ public class Backend implements JasminBackend {
     private String superClass; // Need to save the superclass to use in invoke special
 
     private int conditionNum = 0;
-    private int currentStack = 0;
 
-    private int limitStack = 0;
+    private boolean debug;
+    private PeepholeOptimizer peephole; // Only set when the peephole pass is enabled
+    private final Map<Method, String> methodText = new LinkedHashMap<>(); // Jasmin of each method, in class order
 
     @Override
     public JasminResult toJasmin(OllirResult ollirResult) {
         this.ollirClass = ollirResult.getOllirClass();
         this.jasminCode = new StringBuilder();
+        this.methodText.clear();
         List<Report> reports = new ArrayList<>();
 
+        // The peephole pass follows -o unless it is turned on or off on its own
+        Map<String, String> config = ollirResult.getConfig();
+        this.debug = "true".equals(config.get("debug"));
+        String peepholeOption = config.get("peephole");
+        if (peepholeOption == null)
+            peepholeOption = config.get("optimize");
+        this.peephole = "true".equals(peepholeOption) ? new PeepholeOptimizer() : null;
+
         this.generator();
 
+        if (this.peephole != null)
+            for (Map.Entry<String, Integer> hits : this.peephole.getHits().entrySet())
+                reports.add(new Report(ReportType.LOG, Stage.GENERATION, -1,
+                        "Peephole " + hits.getKey() + ": " + hits.getValue()));
+
         return new JasminResult(ollirResult, this.jasminCode.toString(), reports);
     }
 
+    /** Jasmin of each method, from .method to .end method, used to assemble the class file directly. */
+    public Map<Method, String> getMethodText() {
+        return this.methodText;
+    }
+
     /**
      * Generates the Jasmin code from the OLLIR code.
      * Calls the main functions for each part of the Jasmin code
@@ -42,8 +64,8 @@ public class Backend implements JasminBackend {
         this.generateFields();
         this.generateMethods();
 
-        // Uncomment this line to see the generated jasmin code
-        System.out.println("\n" + this.jasminCode.toString() + "\n");
+        if (this.debug)
+            System.out.println("\n" + this.jasminCode.toString() + "\n");
     }
 
     /**
@@ -114,6 +136,7 @@ public class Backend implements JasminBackend {
      */
     private void generateMethods() {
         for(Method method : this.ollirClass.getMethods()) {
+            int start = this.jasminCode.length();
             this.jasminCode.append(".method ");
 
             this.jasminCode.append(getAccessModifier(method.getMethodAccessModifier()));
@@ -129,19 +152,12 @@ public class Backend implements JasminBackend {
             else
                 this.jasminCode.append(method.getMethodName().replace("\"", ""));
 
-            this.jasminCode.append("(");
-
-            for(Element param : method.getParams())
-                this.jasminCode.append(getTypeDescriptor(param.getType()));
-
-            this.jasminCode.append(")");
-
-            this.jasminCode.append(getTypeDescriptor(method.getReturnType())).append("\n");
+            this.jasminCode.append(getMethodDescriptor(method)).append("\n");
 
             this.jasminCode.append(this.getMethodStatements(method));
 
             this.jasminCode.append(".end method\n\n");
-
+            this.methodText.put(method, this.jasminCode.substring(start));
         }
     }
 
@@ -153,14 +169,16 @@ public class Backend implements JasminBackend {
      *      <statements>
      */
     private String getMethodStatements(Method method) {
-        int limitLocals = getLimitLocals(method);
-        this.currentStack = 0;
-        this.limitStack = 0;
+        List<String> instructions = List.of(this.getStatementInstructions(method).split("\n"));
+        if (this.peephole != null)
+            instructions = this.peephole.optimize(instructions);
+        String statementInstructions = String.join("\n", instructions) + "\n";
 
-        String statementInstructions = this.getStatementInstructions(method);
+        int paramSlots = method.getParams().size() + (method.isStaticMethod() ? 0 : 1);
+        StackAnalyzer stackAnalyzer = new StackAnalyzer(statementInstructions, paramSlots);
 
-        return ".limit stack " + this.limitStack + "\n" +
-                ".limit locals " + limitLocals + "\n" +
+        return ".limit stack " + stackAnalyzer.getMaxStack() + "\n" +
+                ".limit locals " + stackAnalyzer.getMaxLocals() + "\n" +
                 statementInstructions;
     }
 
@@ -189,8 +207,6 @@ public class Backend implements JasminBackend {
             else if(instruction.getInstType() == InstructionType.CALL
                     && ((CallInstruction) instruction).getReturnType().getTypeOfElement() != ElementType.VOID)  {
                 stringBuilder.append("pop\n");
-
-                this.updateStackLimits(-1);
             }
         }
 
@@ -230,9 +246,11 @@ public class Backend implements JasminBackend {
     private String getAssignInstruction(AssignInstruction instruction, HashMap<String, Descriptor> varTable) {
         StringBuilder stringBuilder = new StringBuilder();
 
-        if(instruction.getDest() instanceof ArrayOperand arrayOperand) {
-            this.updateStackLimits(1);
+        // Copies between coalesced variables share the register, nothing to do
+        if(isRegisterCopy(instruction, varTable))
+            return "";
 
+        if(instruction.getDest() instanceof ArrayOperand arrayOperand) {
             stringBuilder.append("aload").append(getVariableIndex(arrayOperand.getName(), varTable)).append("\n");
             stringBuilder.append(this.addToStack(arrayOperand.getIndexOperands().get(0), varTable));
         } else if (instruction.getRhs().getInstType() == InstructionType.BINARYOPER) {
@@ -243,16 +261,18 @@ public class Backend implements JasminBackend {
             if (operationType == OperationType.ADD || operationType == OperationType.SUB) {
                 boolean left = binaryOpInstruction.getLeftOperand().isLiteral();
                 boolean right = binaryOpInstruction.getRightOperand().isLiteral();
-                if( !(left == right)) {
+                Element variable = left ? binaryOpInstruction.getRightOperand() : binaryOpInstruction.getLeftOperand();
+                // c - x is not a step of x
+                if( !(left == right) && !(variable instanceof ArrayOperand) && !(left && operationType == OperationType.SUB)) {
                     LiteralElement literal = (LiteralElement) (left ? binaryOpInstruction.getLeftOperand() : binaryOpInstruction.getRightOperand());
-                    String operandName = ((Operand) (left ? binaryOpInstruction.getRightOperand() : binaryOpInstruction.getLeftOperand())).getName();
+                    String operandName = ((Operand) variable).getName();
 
-                    if(operandName.equals(((Operand)instruction.getDest()).getName())) {
+                    // Matched by register, so that a step between two coalesced variables is an iinc too
+                    if(sameRegister(operandName, ((Operand)instruction.getDest()).getName(), varTable)) {
                         int value = Integer.parseInt(literal.getLiteral());
 
                         if (operationType == OperationType.SUB)
-                            if (value > 0)
-                                value = - value;
+                            value = - value;
 
                         if(isByte(value)) {
                             return "iinc " + varTable.get(operandName).getVirtualReg() + " " + value + "\n";
@@ -268,6 +288,29 @@ public class Backend implements JasminBackend {
         return stringBuilder.toString();
     }
 
+    private static boolean sameRegister(String first, String second, HashMap<String, Descriptor> varTable) {
+        if(first.equals(second))
+            return true;
+        Descriptor a = varTable.get(first);
+        Descriptor b = varTable.get(second);
+        return a != null && b != null && a.getScope() != VarScope.FIELD && b.getScope() != VarScope.FIELD
+                && a.getVirtualReg() == b.getVirtualReg();
+    }
+
+    private boolean isRegisterCopy(AssignInstruction instruction, HashMap<String, Descriptor> varTable) {
+        if(instruction.getDest() instanceof ArrayOperand || instruction.getRhs().getInstType() != InstructionType.NOPER)
+            return false;
+
+        Element source = ((SingleOpInstruction) instruction.getRhs()).getSingleOperand();
+        if(source.isLiteral() || source instanceof ArrayOperand || !(source instanceof Operand sourceOperand))
+            return false;
+
+        Descriptor dest = varTable.get(((Operand) instruction.getDest()).getName());
+        Descriptor src = varTable.get(sourceOperand.getName());
+        return dest != null && src != null && dest.getScope() != VarScope.FIELD
+                && dest.getVirtualReg() == src.getVirtualReg();
+    }
+
     /**
      * Generates the Call instruction.
      * Verifies which type of invocation we are dealing with:
@@ -281,14 +324,11 @@ public class Backend implements JasminBackend {
     private String getCallInstruction(CallInstruction instruction, HashMap<String, Descriptor> varTable) {
         StringBuilder stringBuilder = new StringBuilder();
 
-        int popValue = 0;
-
         switch (instruction.getInvocationType()) {
             case invokevirtual -> {
                 stringBuilder.append(this.addToStack(instruction.getFirstArg(), varTable));
 
                 for(Element element: instruction.getListOfOperands()) {
-                    popValue--;
                     stringBuilder.append(this.addToStack(element, varTable));
                 }
                 // From here
@@ -307,10 +347,6 @@ public class Backend implements JasminBackend {
                     stringBuilder.append(getTypeDescriptor(element.getType()));
 
                 stringBuilder.append(")").append(getTypeDescriptor(instruction.getReturnType())).append("\n");
-
-                if (instruction.getReturnType().getTypeOfElement() == ElementType.VOID)
-                    popValue--;
-
             }
             case invokespecial -> {
                 stringBuilder.append(this.addToStack(instruction.getFirstArg(), varTable));
@@ -327,14 +363,9 @@ public class Backend implements JasminBackend {
                     stringBuilder.append(getTypeDescriptor(element.getType()));
 
                 stringBuilder.append(")").append(getTypeDescriptor(instruction.getReturnType())).append("\n");
-
-                if (instruction.getReturnType().getTypeOfElement() == ElementType.VOID)
-                    popValue--;
-
             }
             case invokestatic -> {
                 for (Element element : instruction.getListOfOperands()) {
-                    popValue--;
                     stringBuilder.append(this.addToStack(element, varTable));
                 }
 
@@ -347,19 +378,12 @@ public class Backend implements JasminBackend {
                 }
 
                 stringBuilder.append(")").append(getTypeDescriptor(instruction.getReturnType())).append("\n");
-
-                if (instruction.getReturnType().getTypeOfElement() != ElementType.VOID)
-                    popValue++;
-
             }
             case NEW -> {
-                popValue++;
-
                 ElementType elementType = instruction.getReturnType().getTypeOfElement();
 
                 if(elementType.equals(ElementType.OBJECTREF)) {
                     for (Element element : instruction.getListOfOperands()) {
-                        popValue--;
                         stringBuilder.append(addToStack(element, varTable));
                     }
 
@@ -368,7 +392,6 @@ public class Backend implements JasminBackend {
                 }
                 else if(elementType.equals(ElementType.ARRAYREF)) {
                     for (Element element : instruction.getListOfOperands()) {
-                        popValue--;
                         stringBuilder.append(addToStack(element, varTable));
                     }
 
@@ -388,8 +411,6 @@ public class Backend implements JasminBackend {
             }
         }
 
-        this.updateStackLimits(popValue);
-
         return stringBuilder.toString();
     }
 
@@ -405,8 +426,8 @@ public class Backend implements JasminBackend {
      * Generates the Branch instruction.
      * First verifies the instruction condition:
      *    BinaryOper
-     *      LTH and GTE -> if_icmplt and if_icmpge or if_icmpge and if_icmplt
-     *      AND -> ifeq
+     *      LTH, GTE, GTH, LTE, EQ and NEQ -> if_icmpXX, or ifXX when one of the operands is the literal 0
+     *      AND -> ifne
      *    UnaryOper
      */
     private String getBranchInstruction(CondBranchInstruction instruction, HashMap<String, Descriptor> varTable) {
@@ -427,49 +448,31 @@ public class Backend implements JasminBackend {
                 BinaryOpInstruction binaryOperation = (BinaryOpInstruction) condition;
 
                 switch (binaryOperation.getOperation().getOpType()) {
-                    case LTH, GTE-> {
-                        operation = (binaryOperation.getOperation().getOpType() == OperationType.GTE) ? "if_icmpge" : "if_icmplt";
+                    case LTH, GTE, GTH, LTE, EQ, NEQ -> {
+                        operation = getOperation(binaryOperation.getOperation());
 
                         Element left = binaryOperation.getLeftOperand();
                         Element right = binaryOperation.getRightOperand();
-                        int value = 0;
-                        Element other = null;
-
-                        if(left instanceof LiteralElement literalElement) {
-                            value = Integer.parseInt(literalElement.getLiteral());
-                            other = right;
-
-                            operation = (binaryOperation.getOperation().getOpType() == OperationType.GTE) ? "ifle" : "ifgt";
-                        } else if(right instanceof LiteralElement literalElement) {
-                            value = Integer.parseInt(literalElement.getLiteral());
-                            other = left;
 
-                            operation = (binaryOperation.getOperation().getOpType() == OperationType.GTE) ? "ifge" : "iflt";
-                        }
-
-                        if(value == 0 && other != null) {
-                            stringBuilder.append(this.addToStack(other, varTable));
+                        if(isZero(right)) {
+                            stringBuilder.append(this.addToStack(left, varTable));
+                            operation = "if" + operation.substring("if_icmp".length());
+                        } else if(isZero(left)) {
+                            // 0 < x is x > 0, so the comparison is mirrored rather than negated
+                            stringBuilder.append(this.addToStack(right, varTable));
+                            operation = "if" + mirrorComparison(operation.substring("if_icmp".length()));
                         } else {
-                            assert left != null;
-                            assert right != null;
                             stringBuilder.append(this.addToStack(left, varTable))
                                     .append(this.addToStack(right, varTable));
-                            operation = (binaryOperation.getOperation().getOpType() == OperationType.GTE) ? "if_icmpge" : "if_icmplt";
                         }
-                        if(operation.equals("if_icmpge") || operation.equals("if_icmplt"))
-                            this.updateStackLimits(-1);
                     }
                     case ANDB -> {
-                        operation = "ifeq";
-                        stringBuilder.append(this.getInstruction(condition, varTable));
-                    }
-                    case NEQ -> {
                         operation = "ifne";
-                        stringBuilder.append(this.addToStack(binaryOperation.getLeftOperand(), varTable))
-                                .append(this.addToStack(binaryOperation.getRightOperand(), varTable));
+                        stringBuilder.append(this.getInstruction(condition, varTable));
                     }
                     default -> {
-                        System.out.println("Binary operation not implemented yet: " + binaryOperation.getOperation().getOpType());
+                        if (this.debug)
+                            System.out.println("Binary operation not implemented yet: " + binaryOperation.getOperation().getOpType());
                         stringBuilder.append(this.getInstruction(condition, varTable));
                         operation = "ifne";
                         ; // still need to check the other cases
@@ -493,12 +496,15 @@ public class Backend implements JasminBackend {
             }
         }
 
-        this.updateStackLimits(-1);
 
         stringBuilder.append(operation).append(" ").append(instruction.getLabel()).append("\n");
         return stringBuilder.toString();
     }
 
+    private static boolean isZero(Element element) {
+        return element instanceof LiteralElement literalElement && literalElement.getLiteral().equals("0");
+    }
+
     /**
      * Generates the Return instruction.
      * First verifies if the instruction has a return type.
@@ -531,12 +537,10 @@ public class Backend implements JasminBackend {
     private String getPutFieldInstruction(PutFieldInstruction instruction, HashMap<String, Descriptor> varTable) {
         String ret =  addToStack(instruction.getFirstOperand(), varTable) +
                 addToStack(instruction.getThirdOperand(), varTable) + "putfield " +
-                getClassName(((Operand) instruction.getFirstOperand()).getName(), this.ollirClass) +
+                getFieldOwner(instruction.getFirstOperand()) +
                 "/" + ((Operand)instruction.getSecondOperand()).getName() + " " +
                 getTypeDescriptor(instruction.getSecondOperand().getType()) + "\n";
 
-        this.updateStackLimits(-2);
-
         return ret;
     }
 
@@ -547,11 +551,22 @@ public class Backend implements JasminBackend {
     private String getGetFieldInstruction(GetFieldInstruction instruction, HashMap<String, Descriptor> varTable) {
         // Does it need to update the stack?
         return addToStack(instruction.getFirstOperand(), varTable) + "getfield " +
-                getClassName(((Operand) instruction.getFirstOperand()).getName(), this.ollirClass) +
+                getFieldOwner(instruction.getFirstOperand()) +
                 "/" + ((Operand)instruction.getSecondOperand()).getName() + " " +
                 getTypeDescriptor(instruction.getSecondOperand().getType()) + "\n";
     }
 
+    /**
+     * Class that declares a field, named by the object it is accessed through.
+     * Inlined methods access fields through a variable holding the object instead of this.
+     */
+    private String getFieldOwner(Element object) {
+        String name = ((Operand) object).getName();
+        if (!name.equals("this") && object.getType() instanceof ClassType classType)
+            name = classType.getName();
+        return getClassName(name, this.ollirClass);
+    }
+
     private String getUnaryOperationInstruction(UnaryOpInstruction instruction, HashMap<String, Descriptor> varTable) {
         StringBuilder stringBuilder = new StringBuilder();
 
@@ -560,8 +575,6 @@ public class Backend implements JasminBackend {
         stringBuilder.append(this.addToStack(instruction.getOperand(), varTable))
                 .append(getOperation(operation));
 
-        System.out.println("UNARY: " + operation.getOpType());
-
         if(operation.getOpType() == OperationType.NOTB)
             stringBuilder.append(this.getBooleanOperation());
 
@@ -581,22 +594,17 @@ public class Backend implements JasminBackend {
                 .append(this.addToStack(rightElement, varTable))
                 .append(getOperation(operation));
 
-        System.out.println("Binary: " + operation.getOpType());
-
         if(isBooleanOperation(operation.getOpType()))
             stringBuilder.append(this.getBooleanOperation());
 
         stringBuilder.append("\n");
 
-        this.updateStackLimits(-1);
-
         return stringBuilder.toString();
     }
 
     private String addToStack(Element element, HashMap<String, Descriptor> varTable) {
         StringBuilder stringBuilder = new StringBuilder();
         ElementType elementType = element.getType().getTypeOfElement();
-        this.updateStackLimits(1);
         if(element instanceof LiteralElement literalElement) {
             if(elementType == ElementType.INT32 || elementType == ElementType.BOOLEAN) {
                 int value = Integer.parseInt(literalElement.getLiteral());
@@ -621,8 +629,6 @@ public class Backend implements JasminBackend {
             stringBuilder.append("aload").append(getVariableIndex(arrayOperand.getName(), varTable)).append("\n");
             stringBuilder.append(addToStack(arrayOperand.getIndexOperands().get(0), varTable));
             stringBuilder.append("iaload");
-
-            this.updateStackLimits(-1);
         } else if(element instanceof Operand operand) {
             String index = getVariableIndex(operand.getName(), varTable);
 
@@ -655,8 +661,6 @@ public class Backend implements JasminBackend {
     public String getStore(Operand destination, HashMap<String, Descriptor> varTable) {
         StringBuilder stringBuilder = new StringBuilder();
 
-        this.updateStackLimits(-1);
-
         switch (destination.getType().getTypeOfElement()) {
             case INT32, BOOLEAN -> {
                 if(varTable.get(destination.getName()).getVarType().getTypeOfElement() == ElementType.ARRAYREF) {
@@ -673,14 +677,4 @@ public class Backend implements JasminBackend {
 
         return stringBuilder.toString();
     }
-
-    private void updateStackLimits(int stackLimit) {
-        this.currentStack += stackLimit;
-
-        if(this.currentStack > this.limitStack)
-            this.limitStack = this.currentStack;
-        else if (this.currentStack < 0)
-            this.currentStack = 0;
-    }
-
 }
@@ -0,0 +1,90 @@
+package pt.up.fe.comp2023.jasmin;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp.jmm.jasmin.JasminBackend;
+import pt.up.fe.comp.jmm.jasmin.JasminResult;
+import pt.up.fe.comp.jmm.ollir.OllirResult;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Backend that writes the class file itself instead of leaving it to the Jasmin assembler.
+ * The instructions are selected by the Jasmin backend, so both produce the same code, and are then encoded from the
+ * Jasmin of each method, while the class and field declarations come from the OLLIR class.
+ * The result runs in-process through an in-memory class loader.
+ */
+public class BytecodeBackend implements JasminBackend {
+
+    @Override
+    public JasminResult toJasmin(OllirResult ollirResult) {
+        Backend backend = new Backend();
+        JasminResult jasminResult = backend.toJasmin(ollirResult);
+        return new BytecodeResult(jasminResult, assemble(ollirResult.getOllirClass(), backend.getMethodText().values()));
+    }
+
+    /**
+     * Class file of the given class with the given methods, each in Jasmin as the Jasmin backend writes it, which may
+     * come from earlier compilations of the class.
+     */
+    public static byte[] assemble(ClassUnit ollirClass, Collection<String> methods) {
+        int classAccess = getAccessFlags(ollirClass.getClassAccessModifier()) | ClassFileWriter.ACC_SUPER;
+        if (ollirClass.isStaticClass())
+            classAccess |= ClassFileWriter.ACC_STATIC;
+        if (ollirClass.isFinalClass())
+            classAccess |= ClassFileWriter.ACC_FINAL;
+        String superClass = ollirClass.getSuperClass() == null ? "java/lang/Object" : ollirClass.getSuperClass();
+        ClassFileWriter writer = new ClassFileWriter(classAccess, ollirClass.getClassName(),
+                JasminUtilities.getClassName(superClass, ollirClass));
+
+        // Like the .field directives of the Jasmin backend, which do not state an access modifier
+        for (Field field : ollirClass.getFields()) {
+            int access = 0;
+            if (field.isStaticField())
+                access |= ClassFileWriter.ACC_STATIC;
+            if (field.isFinalField())
+                access |= ClassFileWriter.ACC_FINAL;
+            writer.addField(access, field.getFieldName(), JasminUtilities.getTypeDescriptor(field.getFieldType()));
+        }
+
+        for (String method : methods)
+            addMethod(writer, method);
+
+        return writer.toByteArray();
+    }
+
+    /*
+     * The .method line, the stack and locals limits, then the instructions up to .end method. The access words and the
+     * descriptor are the same the class file takes.
+     */
+    private static void addMethod(ClassFileWriter writer, String method) {
+        List<String> lines = List.of(method.split("\n"));
+        String[] header = lines.get(0).substring(".method ".length()).split(" ");
+        int access = 0;
+        for (int i = 0; i < header.length - 1; i++)
+            access |= switch (header[i]) {
+                case "public" -> ClassFileWriter.ACC_PUBLIC;
+                case "private" -> ClassFileWriter.ACC_PRIVATE;
+                case "protected" -> ClassFileWriter.ACC_PROTECTED;
+                case "static" -> ClassFileWriter.ACC_STATIC;
+                case "final" -> ClassFileWriter.ACC_FINAL;
+                default -> throw new RuntimeException("Unexpected method modifier '" + header[i] + "'");
+            };
+        String signature = header[header.length - 1];
+        int descriptor = signature.indexOf('(');
+        int maxStack = Integer.parseInt(lines.get(1).substring(".limit stack ".length()));
+        int maxLocals = Integer.parseInt(lines.get(2).substring(".limit locals ".length()));
+        List<String> instructions = lines.subList(3, lines.lastIndexOf(".end method"));
+        writer.addMethod(access, signature.substring(0, descriptor), signature.substring(descriptor), instructions,
+                maxStack, maxLocals);
+    }
+
+    // Same mapping as the Jasmin backend, where the default access is public
+    private static int getAccessFlags(AccessModifiers accessModifier) {
+        return switch (accessModifier) {
+            case PRIVATE -> ClassFileWriter.ACC_PRIVATE;
+            case PROTECTED -> ClassFileWriter.ACC_PROTECTED;
+            default -> ClassFileWriter.ACC_PUBLIC;
+        };
+    }
+}
@@ -0,0 +1,128 @@
+package pt.up.fe.comp2023.jasmin;
+
+import pt.up.fe.comp.jmm.jasmin.JasminResult;
+import pt.up.fe.specs.util.SpecsIo;
+import pt.up.fe.specs.util.system.ProcessOutputAsString;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Jasmin result that already carries the class file, so running it needs neither the assembler nor another JVM.
+ * The program runs in this process, with its output captured and still echoed to the console like a forked run.
+ * main runs on a thread of its own, and a program still running when the time is up is abandoned with a return value
+ * of -1: the streams are restored and the next program can run. A thread cannot be killed, so the abandoned one is
+ * only interrupted and keeps running as a daemon, printing to whatever the system streams are by then.
+ */
+public class BytecodeResult extends JasminResult {
+    private static final long TIMEOUT_MS = 5_000;  // Same limit as a forked run
+
+    private final byte[] classBytes;
+
+    public BytecodeResult(JasminResult jasminResult, byte[] classBytes) {
+        super(jasminResult.getClassName(), jasminResult.getJasminCode(), jasminResult.getReports(),
+                jasminResult.getConfig());
+        this.classBytes = classBytes;
+    }
+
+    public byte[] getClassBytes() {
+        return classBytes;
+    }
+
+    /** Writes the class file as it is, nothing is assembled. */
+    @Override
+    public File compile(File outputDir) {
+        File classFile = new File(outputDir, getClassName() + ".class");
+        SpecsIo.mkdir(outputDir);
+        try (OutputStream out = new FileOutputStream(classFile)) {
+            out.write(classBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return classFile;
+    }
+
+    @Override
+    public ProcessOutputAsString runWithFullOutput(List<String> args, List<String> classpath, String input) {
+        ClassLoader loader = new InMemoryClassLoader(Map.of(getClassName(), classBytes), classpath);
+
+        // System streams are global, so only one program runs at a time
+        synchronized (BytecodeResult.class) {
+            PrintStream console = System.out, consoleErr = System.err;
+            InputStream consoleIn = System.in;
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream(), stderr = new ByteArrayOutputStream();
+            int returnValue = 0;
+
+            System.setOut(new PrintStream(new Tee(stdout, console), true));
+            System.setErr(new PrintStream(new Tee(stderr, consoleErr), true));
+            if (input != null)
+                System.setIn(new ByteArrayInputStream(input.getBytes()));
+            try {
+                Throwable[] failure = new Throwable[1];
+                Thread program = new Thread(() -> {
+                    try {
+                        loader.loadClass(getClassName())
+                                .getMethod("main", String[].class)
+                                .invoke(null, (Object) args.toArray(new String[0]));
+                    } catch (InvocationTargetException e) {
+                        failure[0] = e.getCause();
+                    } catch (ReflectiveOperationException | LinkageError e) {
+                        failure[0] = e;
+                    }
+                }, getClassName() + ".main");
+                program.setDaemon(true);
+                program.start();
+                try {
+                    program.join(TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                if (program.isAlive()) {
+                    program.interrupt();
+                    System.err.println("Program timed out after " + TIMEOUT_MS + "ms");
+                    returnValue = -1;
+                } else if (failure[0] != null) {
+                    failure[0].printStackTrace();
+                    returnValue = 1;
+                }
+            } finally {
+                System.out.flush();
+                System.err.flush();
+                System.setOut(console);
+                System.setErr(consoleErr);
+                System.setIn(consoleIn);
+            }
+            return new ProcessOutputAsString(returnValue, stdout.toString(), stderr.toString());
+        }
+    }
+
+    private static class Tee extends OutputStream {
+        private final OutputStream first, second;
+
+        Tee(OutputStream first, OutputStream second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            first.write(b);
+            second.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            first.write(b, off, len);
+            second.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            first.flush();
+            second.flush();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package pt.up.fe.comp2023.jasmin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * Writes a class file straight from Jasmin instructions, without the Jasmin assembler or any file in between.
+ * Uses version 45.3, the same as Jasmin, so the methods need no stack map frames.
+ * Only the instructions the backend emits are supported.
+ */
+public class ClassFileWriter {
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_PRIVATE = 0x0002;
+    public static final int ACC_PROTECTED = 0x0004;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    private static final Map<String, Integer> OPCODES = new HashMap<>();
+    static {
+        String[] simple = {"nop", "aconst_null", "iconst_m1", "iconst_0", "iconst_1", "iconst_2", "iconst_3",
+                "iconst_4", "iconst_5"};
+        for (int i = 0; i < simple.length; i++)
+            OPCODES.put(simple[i], i);
+        for (int i = 0; i < 4; i++) {
+            OPCODES.put("iload_" + i, 0x1a + i);
+            OPCODES.put("aload_" + i, 0x2a + i);
+            OPCODES.put("istore_" + i, 0x3b + i);
+            OPCODES.put("astore_" + i, 0x4b + i);
+        }
+        OPCODES.putAll(Map.ofEntries(
+                Map.entry("bipush", 0x10), Map.entry("sipush", 0x11), Map.entry("ldc", 0x12), Map.entry("ldc_w", 0x13),
+                Map.entry("iload", 0x15), Map.entry("aload", 0x19), Map.entry("iaload", 0x2e), Map.entry("aaload", 0x32),
+                Map.entry("istore", 0x36), Map.entry("astore", 0x3a), Map.entry("iastore", 0x4f), Map.entry("aastore", 0x53),
+                Map.entry("pop", 0x57), Map.entry("pop2", 0x58), Map.entry("dup", 0x59),
+                Map.entry("iadd", 0x60), Map.entry("isub", 0x64), Map.entry("imul", 0x68), Map.entry("idiv", 0x6c),
+                Map.entry("irem", 0x70), Map.entry("ineg", 0x74), Map.entry("ishl", 0x78), Map.entry("ishr", 0x7a),
+                Map.entry("iushr", 0x7c), Map.entry("iand", 0x7e), Map.entry("ior", 0x80), Map.entry("ixor", 0x82),
+                Map.entry("iinc", 0x84),
+                Map.entry("ifeq", 0x99), Map.entry("ifne", 0x9a), Map.entry("iflt", 0x9b), Map.entry("ifge", 0x9c),
+                Map.entry("ifgt", 0x9d), Map.entry("ifle", 0x9e), Map.entry("if_icmpeq", 0x9f), Map.entry("if_icmpne", 0xa0),
+                Map.entry("if_icmplt", 0xa1), Map.entry("if_icmpge", 0xa2), Map.entry("if_icmpgt", 0xa3),
+                Map.entry("if_icmple", 0xa4), Map.entry("if_acmpeq", 0xa5), Map.entry("if_acmpne", 0xa6),
+                Map.entry("goto", 0xa7), Map.entry("ireturn", 0xac), Map.entry("areturn", 0xb0), Map.entry("return", 0xb1),
+                Map.entry("getstatic", 0xb2), Map.entry("putstatic", 0xb3), Map.entry("getfield", 0xb4),
+                Map.entry("putfield", 0xb5), Map.entry("invokevirtual", 0xb6), Map.entry("invokespecial", 0xb7),
+                Map.entry("invokestatic", 0xb8), Map.entry("new", 0xbb), Map.entry("newarray", 0xbc),
+                Map.entry("anewarray", 0xbd), Map.entry("arraylength", 0xbe), Map.entry("athrow", 0xbf),
+                Map.entry("wide", 0xc4), Map.entry("ifnull", 0xc6), Map.entry("ifnonnull", 0xc7)));
+    }
+
+    private static final Map<String, Integer> ARRAY_TYPES = Map.of("boolean", 4, "char", 5, "float", 6,
+            "double", 7, "byte", 8, "short", 9, "int", 10, "long", 11);
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> constants = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream fields = new ByteArrayOutputStream();
+    private final DataOutputStream fieldsOut = new DataOutputStream(fields);
+    private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    private final DataOutputStream methodsOut = new DataOutputStream(methods);
+    private int fieldCount = 0;
+    private int methodCount = 0;
+
+    private final int access;
+    private final int thisClass;
+    private final int superClass;
+
+    public ClassFileWriter(int access, String className, String superName) {
+        this.access = access;
+        this.thisClass = classConstant(className);
+        this.superClass = classConstant(superName);
+    }
+
+    public void addField(int access, String name, String descriptor) {
+        try {
+            fieldsOut.writeShort(access);
+            fieldsOut.writeShort(utf8(name));
+            fieldsOut.writeShort(utf8(descriptor));
+            fieldsOut.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        fieldCount++;
+    }
+
+    /**
+     * @param instructions the Jasmin instructions and labels of the method, one per line
+     */
+    public void addMethod(int access, String name, String descriptor, List<String> instructions, int maxStack, int maxLocals) {
+        byte[] code = assemble(instructions);
+        try {
+            methodsOut.writeShort(access);
+            methodsOut.writeShort(utf8(name));
+            methodsOut.writeShort(utf8(descriptor));
+            methodsOut.writeShort(1);
+
+            // Code attribute without exception table or attributes of its own
+            methodsOut.writeShort(utf8("Code"));
+            methodsOut.writeInt(12 + code.length);
+            methodsOut.writeShort(maxStack);
+            methodsOut.writeShort(maxLocals);
+            methodsOut.writeInt(code.length);
+            methodsOut.write(code);
+            methodsOut.writeShort(0);
+            methodsOut.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        methodCount++;
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(3);
+            out.writeShort(45);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(fieldCount);
+            out.write(fields.toByteArray());
+            out.writeShort(methodCount);
+            out.write(methods.toByteArray());
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /*
+     * Two passes over the instructions: the first one finds the offset of every label, the second one encodes the
+     * branches with them. Every instruction has the same size in both passes.
+     */
+    private byte[] assemble(List<String> instructions) {
+        Map<String, Integer> labels = new HashMap<>();
+        encode(instructions, labels, true);
+        return encode(instructions, labels, false);
+    }
+
+    private byte[] encode(List<String> instructions, Map<String, Integer> labels, boolean firstPass) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (String line : instructions) {
+                line = JasminUtilities.stripComment(line.trim());
+                if (line.isEmpty() || line.startsWith("."))
+                    continue;
+                if (line.endsWith(":")) {
+                    if (firstPass)
+                        labels.put(line.substring(0, line.length() - 1), out.size());
+                    continue;
+                }
+                encodeInstruction(line, out, labels, firstPass);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void encodeInstruction(String line, DataOutputStream out, Map<String, Integer> labels, boolean firstPass)
+            throws IOException {
+        int space = line.indexOf(' ');
+        String mnemonic = space == -1 ? line : line.substring(0, space);
+        String operand = space == -1 ? "" : line.substring(space + 1).trim();
+        Integer opcode = OPCODES.get(mnemonic);
+        if (opcode == null)
+            throw new RuntimeException("Instruction " + mnemonic + " is not supported by the class file writer");
+
+        int pc = out.size();
+        switch (mnemonic) {
+            case "bipush" -> {
+                out.writeByte(opcode);
+                out.writeByte(Integer.parseInt(operand));
+            }
+            case "sipush" -> {
+                out.writeByte(opcode);
+                out.writeShort(Integer.parseInt(operand));
+            }
+            case "ldc", "ldc_w" -> {
+                int index = operand.startsWith("\"")
+                        ? stringConstant(operand.substring(1, operand.length() - 1))
+                        : integerConstant(Integer.parseInt(operand));
+                if (index <= 0xff) {
+                    out.writeByte(OPCODES.get("ldc"));
+                    out.writeByte(index);
+                } else {
+                    out.writeByte(OPCODES.get("ldc_w"));
+                    out.writeShort(index);
+                }
+            }
+            case "iload", "aload", "istore", "astore" -> {
+                int slot = Integer.parseInt(operand);
+                if (slot > 0xff) {
+                    out.writeByte(OPCODES.get("wide"));
+                    out.writeByte(opcode);
+                    out.writeShort(slot);
+                } else {
+                    out.writeByte(opcode);
+                    out.writeByte(slot);
+                }
+            }
+            case "iinc" -> {
+                String[] parts = operand.split("\\s+");
+                int slot = Integer.parseInt(parts[0]), increment = Integer.parseInt(parts[1]);
+                if (slot > 0xff || !JasminUtilities.isByte(increment)) {
+                    out.writeByte(OPCODES.get("wide"));
+                    out.writeByte(opcode);
+                    out.writeShort(slot);
+                    out.writeShort(increment);
+                } else {
+                    out.writeByte(opcode);
+                    out.writeByte(slot);
+                    out.writeByte(increment);
+                }
+            }
+            case "getfield", "putfield", "getstatic", "putstatic" -> {
+                String[] parts = operand.split("\\s+");
+                int slash = parts[0].lastIndexOf('/');
+                out.writeByte(opcode);
+                out.writeShort(memberConstant(9, parts[0].substring(0, slash), parts[0].substring(slash + 1), parts[1]));
+            }
+            case "invokevirtual", "invokespecial", "invokestatic" -> {
+                int paren = operand.indexOf('(');
+                int slash = operand.lastIndexOf('/', paren);
+                out.writeByte(opcode);
+                out.writeShort(memberConstant(10, operand.substring(0, slash), operand.substring(slash + 1, paren),
+                        operand.substring(paren)));
+            }
+            case "new", "anewarray" -> {
+                out.writeByte(opcode);
+                out.writeShort(classConstant(operand));
+            }
+            case "newarray" -> {
+                out.writeByte(opcode);
+                out.writeByte(ARRAY_TYPES.get(operand));
+            }
+            default -> {
+                out.writeByte(opcode);
+                if (opcode >= 0x99 && opcode <= 0xa7 || opcode == 0xc6 || opcode == 0xc7) {
+                    int offset = 0;
+                    if (!firstPass) {
+                        Integer target = labels.get(operand);
+                        if (target == null)
+                            throw new RuntimeException("Jasmin label " + operand + " is not defined");
+                        offset = target - pc;
+                    }
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                        throw new RuntimeException("Branch to " + operand + " is too far for a 16 bit offset");
+                    out.writeShort(offset);
+                } else if (!operand.isEmpty())
+                    throw new RuntimeException("Unexpected operand in " + line);
+            }
+        }
+    }
+
+    private int utf8(String value) {
+        return constant("Utf8:" + value, out -> {
+            out.writeByte(1);
+            out.writeUTF(value);
+        });
+    }
+
+    private int classConstant(String name) {
+        int nameIndex = utf8(name);
+        return constant("Class:" + name, out -> {
+            out.writeByte(7);
+            out.writeShort(nameIndex);
+        });
+    }
+
+    private int stringConstant(String value) {
+        int valueIndex = utf8(value);
+        return constant("String:" + value, out -> {
+            out.writeByte(8);
+            out.writeShort(valueIndex);
+        });
+    }
+
+    private int integerConstant(int value) {
+        return constant("Integer:" + value, out -> {
+            out.writeByte(3);
+            out.writeInt(value);
+        });
+    }
+
+    // Fieldref (tag 9) or Methodref (tag 10)
+    private int memberConstant(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classConstant(owner);
+        int nameIndex = utf8(name), descriptorIndex = utf8(descriptor);
+        int nameAndType = constant("NameAndType:" + name + ":" + descriptor, out -> {
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+        return constant(tag + ":" + owner + "." + name + ":" + descriptor, out -> {
+            out.writeByte(tag);
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    private interface ConstantWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int constant(String key, ConstantWriter writer) {
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+        try {
+            writer.write(poolOut);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        constants.put(key, poolCount);
+        return poolCount++;
+    }
+}
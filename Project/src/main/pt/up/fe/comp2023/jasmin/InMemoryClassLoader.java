@@ -0,0 +1,55 @@
+package pt.up.fe.comp2023.jasmin;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads generated classes from their bytes, and everything else from the given classpath.
+ * The generated classes come first, like the output folder does on the command line of a forked run, and both are
+ * defined by this loader so they share the default package (the jmm libraries are package-private).
+ */
+public class InMemoryClassLoader extends URLClassLoader {
+    private final Map<String, byte[]> classes;
+
+    public InMemoryClassLoader(Map<String, byte[]> classes, List<String> classpath) {
+        super(toUrls(classpath), ClassLoader.getPlatformClassLoader());
+        this.classes = classes;
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null && classes.containsKey(name))
+                loaded = findClass(name);
+            if (loaded == null)
+                return super.loadClass(name, resolve);
+            if (resolve)
+                resolveClass(loaded);
+            return loaded;
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        byte[] bytes = classes.get(name);
+        if (bytes == null)
+            return super.findClass(name);
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+
+    private static URL[] toUrls(List<String> classpath) {
+        URL[] urls = new URL[classpath.size()];
+        try {
+            for (int i = 0; i < urls.length; i++)
+                urls[i] = new File(classpath.get(i)).toURI().toURL();
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+        return urls;
+    }
+}
@@ -3,7 +3,6 @@ package pt.up.fe.comp2023.jasmin;
 import org.specs.comp.ollir.*;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class JasminUtilities {
 
@@ -21,6 +20,15 @@ public class JasminUtilities {
         return className.replace("\"", "");
     }
 
+    // Comments start with a ';' after whitespace, type descriptors use ';' without it and strings are left alone
+    public static String stripComment(String line) {
+        if (line.startsWith(";"))
+            return "";
+        if (line.startsWith("ldc"))
+            return line;
+        return line.replaceFirst("\\s;.*$", "").trim();
+    }
+
     public static String parseName(String name) {
         return name.replace("\"", "/");
     }
@@ -62,6 +70,15 @@ public class JasminUtilities {
         return stringBuilder.toString();
     }
 
+    public static String getMethodDescriptor(Method method) {
+        StringBuilder stringBuilder = new StringBuilder("(");
+
+        for(Element param : method.getParams())
+            stringBuilder.append(getTypeDescriptor(param.getType()));
+
+        return stringBuilder.append(")").append(getTypeDescriptor(method.getReturnType())).toString();
+    }
+
     public static String getLabels(List<String> labels) { // TODO check what label it wants to return, is it only the first?
         StringBuilder stringBuilder = new StringBuilder();
 
@@ -83,6 +100,12 @@ public class JasminUtilities {
             case SUB -> "isub";
             case MUL -> "imul";
             case DIV -> "idiv";
+            case SHL -> "ishl";
+            case SHR -> "ishr";
+            case SHRR -> "iushr";
+            case AND -> "iand";
+            case OR -> "ior";
+            case XOR -> "ixor";
             case LTH -> "if_icmplt";
             case GTH -> "if_icmpgt";
             case EQ -> "if_icmpeq";
@@ -96,6 +119,19 @@ public class JasminUtilities {
         };
     }
 
+    /**
+     * Condition suffix (lt, ge, ...) that holds with the operands swapped.
+     */
+    public static String mirrorComparison(String condition) {
+        return switch (condition) {
+            case "lt" -> "gt";
+            case "gt" -> "lt";
+            case "le" -> "ge";
+            case "ge" -> "le";
+            default -> condition;
+        };
+    }
+
     public static String getVariableIndex(String name, HashMap<String, Descriptor> varTable) {
         if(name.equals("this")) return "_0";
 
@@ -128,11 +164,4 @@ public class JasminUtilities {
                 operationType == OperationType.NEQ;
     }
 
-    public static int getLimitLocals(Method method) {
-        Set<Integer> virtualRegs = method.getVarTable().values().stream()
-                .map(Descriptor::getVirtualReg)
-                .collect(Collectors.toCollection(TreeSet::new));
-        virtualRegs.add(0);
-        return virtualRegs.size();
-    }
 }
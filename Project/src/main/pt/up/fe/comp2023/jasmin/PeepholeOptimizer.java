@@ -0,0 +1,264 @@
+package pt.up.fe.comp2023.jasmin;
+
+import java.util.*;
+
+/**
+ * Peephole pass over the instructions of one method, applied until no pattern matches anymore.
+ * Labels are kept as their own "name:" lines, so a pattern never matches across a jump target unless it says so.
+ * Every pattern counts how many times it was applied.
+ * <p>
+ * Before each sweep of a pattern over the method, the jumps to each label, the reads of each slot and the goto each
+ * label leads to are counted once, and the patterns that rely on them keep them up to date as they rewrite the code.
+ */
+public class PeepholeOptimizer {
+    private interface Pattern {
+        // Tries the pattern at position i, rewriting the code in place when it matches
+        boolean apply(List<String> code, int i);
+    }
+
+    private static final Map<String, String> NEGATED = Map.ofEntries(
+            Map.entry("eq", "ne"), Map.entry("ne", "eq"),
+            Map.entry("lt", "ge"), Map.entry("ge", "lt"),
+            Map.entry("gt", "le"), Map.entry("le", "gt"));
+
+    private final Map<String, Pattern> patterns = new LinkedHashMap<>();
+    private final Map<String, Integer> hits = new LinkedHashMap<>();
+
+    private final Map<String, Integer> references = new HashMap<>();  // Label -> jumps to it
+    private final Map<Integer, Integer> reads = new HashMap<>();       // Slot -> loads and iincs of it
+    private final Map<String, String> gotos = new HashMap<>();         // Label -> target of the goto right after it
+
+    public PeepholeOptimizer() {
+        patterns.put("boolean branch", this::booleanBranch);
+        patterns.put("compare with zero", this::compareWithZero);
+        patterns.put("branch over goto", this::branchOverGoto);
+        patterns.put("jump to jump", this::jumpToJump);
+        patterns.put("goto next", this::gotoNext);
+        patterns.put("unreachable code", this::unreachableCode);
+        patterns.put("dead store and load", this::deadStoreLoad);
+        patterns.put("load and store same slot", this::loadStoreSameSlot);
+        patterns.put("push and pop", this::pushPop);
+        for (String name : patterns.keySet())
+            hits.put(name, 0);
+    }
+
+    public List<String> optimize(List<String> instructions) {
+        List<String> code = new ArrayList<>();
+        for (String line : instructions) {
+            line = JasminUtilities.stripComment(line.trim());
+            if (!line.isEmpty())
+                code.add(line);
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<String, Pattern> pattern : patterns.entrySet()) {
+                index(code);
+                for (int i = 0; i < code.size(); i++)
+                    if (pattern.getValue().apply(code, i)) {
+                        hits.merge(pattern.getKey(), 1, Integer::sum);
+                        changed = true;
+                    }
+            }
+        }
+        return code;
+    }
+
+    public Map<String, Integer> getHits() {
+        return hits;
+    }
+
+    private void index(List<String> code) {
+        references.clear();
+        reads.clear();
+        gotos.clear();
+        List<String> labels = new ArrayList<>();
+        for (String line : code) {
+            if (isLabel(line)) {
+                labels.add(line.substring(0, line.length() - 1));
+                continue;
+            }
+            if (isBranch(line))
+                references.merge(operand(line), 1, Integer::sum);
+            if (isRead(line))
+                reads.merge(slot(line), 1, Integer::sum);
+            // The labels right before this instruction all lead to it
+            if (opcode(line).equals("goto"))
+                for (String label : labels)
+                    gotos.put(label, operand(line));
+            labels.clear();
+        }
+    }
+
+    /*
+     * A comparison materialized as a boolean and then tested:
+     *     if_icmpXX T / iconst_0 / goto N / T: / iconst_1 / N: / ifne L   ->   if_icmpXX L
+     * and with ifeq L the negated comparison. Only when T and N are used by nothing else.
+     */
+    private boolean booleanBranch(List<String> code, int i) {
+        if (i + 6 >= code.size() || !isBranch(code.get(i)) || opcode(code.get(i)).equals("goto"))
+            return false;
+        String t = operand(code.get(i));
+        if (!code.get(i + 1).equals("iconst_0") || !opcode(code.get(i + 2)).equals("goto")
+                || !code.get(i + 3).equals(t + ":") || !code.get(i + 4).equals("iconst_1"))
+            return false;
+        String n = operand(code.get(i + 2));
+        String test = opcode(code.get(i + 6));
+        if (!code.get(i + 5).equals(n + ":") || !(test.equals("ifne") || test.equals("ifeq")))
+            return false;
+        if (references.getOrDefault(t, 0) != 1 || references.getOrDefault(n, 0) != 1)
+            return false;
+
+        String condition = opcode(code.get(i));
+        if (test.equals("ifeq"))
+            condition = negate(condition);
+        code.set(i, condition + " " + operand(code.get(i + 6)));
+        code.subList(i + 1, i + 7).clear();
+        references.remove(t);
+        references.remove(n);
+        return true;
+    }
+
+    // iconst_0 / if_icmpXX L   ->   ifXX L
+    private boolean compareWithZero(List<String> code, int i) {
+        if (i + 1 >= code.size() || !code.get(i).equals("iconst_0") || !opcode(code.get(i + 1)).startsWith("if_icmp"))
+            return false;
+        code.set(i + 1, "if" + opcode(code.get(i + 1)).substring("if_icmp".length()) + " " + operand(code.get(i + 1)));
+        code.remove(i);
+        return true;
+    }
+
+    // ifXX L1 / goto L2 / L1:   ->   if!XX L2 / L1:
+    private boolean branchOverGoto(List<String> code, int i) {
+        if (i + 2 >= code.size() || !isBranch(code.get(i)) || opcode(code.get(i)).equals("goto")
+                || !opcode(code.get(i + 1)).equals("goto") || !code.get(i + 2).equals(operand(code.get(i)) + ":"))
+            return false;
+        code.set(i, negate(opcode(code.get(i))) + " " + operand(code.get(i + 1)));
+        code.remove(i + 1);
+        return true;
+    }
+
+    // Any jump to a label whose first instruction is goto M jumps to M directly
+    private boolean jumpToJump(List<String> code, int i) {
+        if (!isBranch(code.get(i)))
+            return false;
+        String label = operand(code.get(i));
+        String next = gotos.get(label);
+        if (next == null)
+            return false;
+        // A chain of gotos that loops back on itself never reaches a real instruction. Gotos retargeted by this
+        // sweep still lead along the same chain, so the targets counted before it stay valid
+        Set<String> seen = new HashSet<>(List.of(label));
+        while (seen.add(next)) {
+            String after = gotos.get(next);
+            if (after == null) {
+                code.set(i, opcode(code.get(i)) + " " + next);
+                references.merge(label, -1, Integer::sum);
+                references.merge(next, 1, Integer::sum);
+                return true;
+            }
+            next = after;
+        }
+        return false;
+    }
+
+    // goto L with L among the labels right after it
+    private boolean gotoNext(List<String> code, int i) {
+        if (!opcode(code.get(i)).equals("goto"))
+            return false;
+        String label = operand(code.get(i)) + ":";
+        for (int j = i + 1; j < code.size() && isLabel(code.get(j)); j++)
+            if (code.get(j).equals(label)) {
+                code.remove(i);
+                return true;
+            }
+        return false;
+    }
+
+    // Instructions after goto or return that no label leads to
+    private boolean unreachableCode(List<String> code, int i) {
+        String op = opcode(code.get(i));
+        if (!(op.equals("goto") || op.endsWith("return")) || i + 1 >= code.size() || isLabel(code.get(i + 1)))
+            return false;
+        code.remove(i + 1);
+        return true;
+    }
+
+    // xstore_k / xload_k where that is the only read of slot k: the value just stays on the stack
+    private boolean deadStoreLoad(List<String> code, int i) {
+        if (i + 1 >= code.size())
+            return false;
+        String store = opcode(code.get(i)), load = opcode(code.get(i + 1));
+        if (!store.matches("[ia]store(_\\d)?") || !load.matches("[ia]load(_\\d)?") || store.charAt(0) != load.charAt(0))
+            return false;
+        int slot = slot(code.get(i));
+        if (slot != slot(code.get(i + 1)))
+            return false;
+        if (reads.getOrDefault(slot, 0) != 1)
+            return false;
+        code.subList(i, i + 2).clear();
+        reads.remove(slot);
+        return true;
+    }
+
+    // xload_k / xstore_k copies a slot onto itself
+    private boolean loadStoreSameSlot(List<String> code, int i) {
+        if (i + 1 >= code.size())
+            return false;
+        String load = opcode(code.get(i)), store = opcode(code.get(i + 1));
+        if (!load.matches("[ia]load(_\\d)?") || !store.matches("[ia]store(_\\d)?") || slot(code.get(i)) != slot(code.get(i + 1)))
+            return false;
+        code.subList(i, i + 2).clear();
+        return true;
+    }
+
+    // A value pushed without side effects and popped right away
+    private boolean pushPop(List<String> code, int i) {
+        if (i + 1 >= code.size() || !code.get(i + 1).equals("pop"))
+            return false;
+        String op = opcode(code.get(i));
+        if (!(op.matches("[ia]load(_\\d)?|iconst_(m1|\\d)|bipush|sipush|dup") || (op.equals("ldc") && !code.get(i).contains("\""))))
+            return false;
+        code.subList(i, i + 2).clear();
+        return true;
+    }
+
+    private static boolean isLabel(String line) {
+        return line.endsWith(":");
+    }
+
+    private static boolean isRead(String line) {
+        String op = opcode(line);
+        return op.matches("[ia]load(_\\d)?") || op.equals("iinc");
+    }
+
+    private static boolean isBranch(String line) {
+        String op = opcode(line);
+        return op.equals("goto") || (op.startsWith("if") && !isLabel(line));
+    }
+
+    private static String opcode(String line) {
+        int space = line.indexOf(' ');
+        return space == -1 ? line : line.substring(0, space);
+    }
+
+    private static String operand(String line) {
+        int space = line.indexOf(' ');
+        return space == -1 ? "" : line.substring(space + 1).trim();
+    }
+
+    private static int slot(String line) {
+        String op = opcode(line);
+        if (op.contains("_"))
+            return Integer.parseInt(op.substring(op.indexOf('_') + 1));
+        return Integer.parseInt(operand(line).split("\\s+")[0]);
+    }
+
+    private static String negate(String branch) {
+        if (branch.endsWith("null"))
+            return branch.equals("ifnull") ? "ifnonnull" : "ifnull";
+        String prefix = branch.substring(0, branch.length() - 2);
+        return prefix + NEGATED.get(branch.substring(branch.length() - 2));
+    }
+}
@@ -0,0 +1,152 @@
+package pt.up.fe.comp2023.jasmin;
+
+import java.util.*;
+
+/**
+ * Computes the exact .limit stack and .limit locals of a method from its emitted instructions.
+ * The stack depth is propagated along the control flow between labels, gotos and branches, so each instruction is
+ * checked with the depth it actually runs with instead of a running counter over the textual order.
+ */
+public class StackAnalyzer {
+    private final List<String> instructions = new ArrayList<>();
+    private final Map<String, Integer> labels = new HashMap<>();
+    private int maxStack = 0;
+    private int maxLocals;
+
+    /**
+     * @param code       the method statements, one instruction or label per line
+     * @param paramSlots local slots taken by the parameters, including this
+     */
+    public StackAnalyzer(String code, int paramSlots) {
+        this.maxLocals = paramSlots;
+        for (String line : code.split("\n")) {
+            line = JasminUtilities.stripComment(line.trim());
+            if (line.isEmpty() || line.startsWith("."))
+                continue;
+            if (line.endsWith(":"))
+                labels.put(line.substring(0, line.length() - 1), instructions.size());
+            else
+                instructions.add(line);
+        }
+        for (String instruction : instructions)
+            updateLocals(instruction);
+        simulate();
+    }
+
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    public int getMaxLocals() {
+        return maxLocals;
+    }
+
+    private void updateLocals(String instruction) {
+        String[] parts = instruction.split("\\s+");
+        String opcode = parts[0];
+        int index = -1;
+        if (opcode.matches("[ia](load|store)_\\d"))
+            index = opcode.charAt(opcode.length() - 1) - '0';
+        else if (opcode.matches("[ia](load|store)|iinc"))
+            index = Integer.parseInt(parts[1]);
+        if (index != -1)
+            maxLocals = Math.max(maxLocals, index + 1);
+    }
+
+    // Worklist over instruction indexes, each reachable instruction is visited once with its entry depth (verifiable
+    // code reaches an instruction with the same depth from every path)
+    private void simulate() {
+        int n = instructions.size();
+        int[] depth = new int[n];
+        Arrays.fill(depth, -1);
+        Deque<Integer> worklist = new ArrayDeque<>();
+        if (n > 0) {
+            depth[0] = 0;
+            worklist.push(0);
+        }
+
+        while (!worklist.isEmpty()) {
+            int pc = worklist.pop();
+            String[] parts = instructions.get(pc).split("\\s+");
+            String opcode = parts[0];
+
+            int after = depth[pc] + stackEffect(opcode, parts);
+            maxStack = Math.max(maxStack, Math.max(depth[pc] + peakEffect(opcode), after));
+
+            for (int next : successors(pc, opcode, parts)) {
+                if (next < n && depth[next] == -1) {
+                    depth[next] = after;
+                    worklist.push(next);
+                }
+            }
+        }
+    }
+
+    private List<Integer> successors(int pc, String opcode, String[] parts) {
+        if (opcode.endsWith("return") || opcode.equals("athrow"))
+            return List.of();
+        if (opcode.equals("goto"))
+            return List.of(target(parts));
+        if (opcode.startsWith("if"))
+            return List.of(target(parts), pc + 1);
+        return List.of(pc + 1);
+    }
+
+    private int target(String[] parts) {
+        Integer target = labels.get(parts[1]);
+        if (target == null)
+            throw new RuntimeException("Jasmin label " + parts[1] + " is not defined");
+        return target;
+    }
+
+    // Instructions that push before they pop reach a higher depth than their net effect
+    private static int peakEffect(String opcode) {
+        return switch (opcode) {
+            case "dup" -> 1;
+            default -> 0;
+        };
+    }
+
+    private static int stackEffect(String opcode, String[] parts) {
+        if (opcode.matches("iconst_(m1|\\d)|[ia]load(_\\d)?"))
+            return 1;
+        if (opcode.matches("[ia]store(_\\d)?"))
+            return -1;
+        return switch (opcode) {
+            case "bipush", "sipush", "ldc", "ldc_w", "new", "dup", "aconst_null", "getstatic" -> 1;
+            case "iadd", "isub", "imul", "idiv", "irem", "iand", "ior", "ixor", "ishl", "ishr", "iushr",
+                    "iaload", "aaload", "pop", "ireturn", "areturn", "putstatic",
+                    "ifeq", "ifne", "iflt", "ifge", "ifgt", "ifle", "ifnull", "ifnonnull" -> -1;
+            case "if_icmpeq", "if_icmpne", "if_icmplt", "if_icmpge", "if_icmpgt", "if_icmple",
+                    "if_acmpeq", "if_acmpne", "putfield", "pop2" -> -2;
+            case "iastore", "aastore" -> -3;
+            case "invokevirtual", "invokespecial", "invokeinterface" -> invokeEffect(parts[1]) - 1;
+            case "invokestatic" -> invokeEffect(parts[1]);
+            default -> 0; // ineg, iinc, goto, return, arraylength, newarray, getfield, nop
+        };
+    }
+
+    // Pushes the return value and pops the arguments of a method descriptor like Foo/bar(I[ILFoo;)Z
+    private static int invokeEffect(String method) {
+        String descriptor = method.substring(method.indexOf('('));
+        int effect = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            while (c == '[')
+                c = descriptor.charAt(++i);
+            if (c == 'L')
+                i = descriptor.indexOf(';', i);
+            if (i < 0)
+                throw new RuntimeException("Malformed method descriptor " + method);
+            effect -= (c == 'J' || c == 'D') && descriptor.charAt(i - 1) != '[' ? 2 : 1;
+            i++;
+        }
+        char ret = descriptor.charAt(i + 1);
+        if (ret == 'J' || ret == 'D')
+            effect += 2;
+        else if (ret != 'V')
+            effect += 1;
+        return effect;
+    }
+}
@@ -7,7 +7,6 @@ import pt.up.fe.comp.jmm.ast.AJmmVisitor;
 import pt.up.fe.comp.jmm.ast.JmmNode;
 
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 
 import static pt.up.fe.comp2023.ollir.OllirUtilities.*;
@@ -17,17 +16,14 @@ public class OllirExpressionVisitor extends AJmmVisitor<String, String> {
     private final SymbolTable st;
     private String currentMethod;
     private String ident;
-    private Map<String, String> fieldsLoaded;
 
     private int auxCounter = 0;
-    private boolean negation = false;
 
-    public OllirExpressionVisitor(StringBuilder code, SymbolTable st, Map<String, String> fieldsLoaded, String ident){
+    public OllirExpressionVisitor(StringBuilder code, SymbolTable st, String ident){
         this.code = code;
         this.currentMethod = "";
         this.st = st;
         this.ident = ident;
-        this.fieldsLoaded = fieldsLoaded;
     }
 
     public void setMethod(String method){
@@ -53,8 +49,9 @@ public class OllirExpressionVisitor extends AJmmVisitor<String, String> {
     }
 
     private String dealWithNegation(JmmNode jmmNode, String s) {
-        this.negation = true;
-        return visit(jmmNode.getJmmChild(0));
+        String loc = visit(jmmNode.getJmmChild(0));
+        code.append(ident).append("aux").append(++auxCounter).append(".bool :=.bool !.bool ").append(loc).append(";\n");
+        return "aux" + auxCounter + ".bool";
     }
 
     public String visitWrap(JmmNode node, String ident){
@@ -63,6 +60,18 @@ public class OllirExpressionVisitor extends AJmmVisitor<String, String> {
         return visit(node);
     }
 
+    /**
+     * Loads a field into a new temporary and returns its name.
+     * Every read gets its own load, the repeated ones are removed by value numbering, which knows where the field
+     * may have changed.
+     */
+    public String loadField(String var, String ident){
+        String type = dealWithType(Objects.requireNonNull(getType(st, currentMethod, var)));
+        code.append(ident).append("aux").append(++auxCounter).append(type).append(" :=").append(type)
+                .append(" getfield(this, ").append(var).append(type).append(")").append(type).append(";\n");
+        return "aux" + auxCounter;
+    }
+
     private String dealWithNewIntArray(JmmNode jmmNode, String s) {
         String sizeloc = visit(jmmNode.getJmmChild(0));
         code.append(ident).append("aux").append(++auxCounter).append(".array.i32 :=.array.i32 new(array, ").append(sizeloc).append(").array.i32;\n");
@@ -73,62 +82,49 @@ public class OllirExpressionVisitor extends AJmmVisitor<String, String> {
         if(!jmmNode.getJmmChild(0).getKind().equals("Identifier"))
             return null;
 
-        int i = code.toString().indexOf("#");
-        String saved = "";
-        if(i != -1){
-            saved = code.substring(i);
-            code.delete(i, code.length());
-        }
-
-        String aux = ident+"aux"+(++auxCounter)+".i32 :=.i32 "+"arraylength(";
+        // The array is visited first, loading a field takes a temporary of its own
         String loc = visit(jmmNode.getJmmChild(0));
+        String aux = ident+"aux"+(++auxCounter)+".i32 :=.i32 "+"arraylength(";
         code.append(aux).append(loc);
         code.append(").i32;\n");
-        if(saved.length() != 0)
-            code.append(saved.substring(1));
         return "aux" + auxCounter + ".i32";
     }
 
     private String dealWithIndexAccess(JmmNode jmmNode, String s) {
-        String var = jmmNode.getJmmChild(0).get("value");
-        Type arrayType = getType(st, currentMethod, var);
-
-        // If array in a field
-        if(fieldsLoaded.containsKey(var))
-            var = fieldsLoaded.get(var);
-        else if(variableIsField(st, currentMethod, var)){
-            String _type = dealWithType(Objects.requireNonNull(arrayType));
-            String aux = this.ident + "temp" + _type + ":=" + _type;
-            code.append(aux).append(" getfield(this, ").append(var).append(_type).append(")").append(_type).append(";\n");
-            var = "temp";
-            fieldsLoaded.put(var, "temp");
-        }
-
-        // If array is a parameter
-        List<Symbol> parameters = st.getParameters(currentMethod);
-        int parameterIndex = -1;
-        for (int i = 1; i <= parameters.size(); i++) {
-            if (parameters.get(i - 1).getName().equals(var)) {
-                parameterIndex = i;
-            }
-        }
+        String element = arrayElement(jmmNode.getJmmChild(0).get("value"), jmmNode.getJmmChild(1), this.ident);
+        String typeElements = element.substring(element.lastIndexOf(']') + 1);
+        code.append(ident + "aux" + (++auxCounter) + typeElements + " :=" + typeElements + " " + element + ";\n");
+        return "aux" + auxCounter + typeElements;
+    }
 
-        String indexLocation;
-        if(!jmmNode.getJmmChild(1).getKind().equals("Identifier")){
-            code.append(ident + "aux" + (++auxCounter) + ".i32" + " :=.i32 " + visit(jmmNode.getJmmChild(1)) + ";\n");
-            indexLocation = "aux" + auxCounter;
-        } else
-            indexLocation = jmmNode.getJmmChild(1).get("value");
+    /**
+     * Element of an array for reads and writes, as in a[i.i32].i32.
+     * The index is the variable itself whenever it is one, so a loop counter indexes the array directly and the
+     * bytecode keeps the counted loop shape the JIT removes bounds checks from. Only constants need a temporary.
+     */
+    public String arrayElement(String var, JmmNode index, String ident){
+        this.ident = ident;
+        Type arrayType = Objects.requireNonNull(getType(st, currentMethod, var));
+        String array;
+        if(variableIsField(st, currentMethod, var))
+            array = loadField(var, ident);
+        else
+            array = getParameterPrefix(var) + var;
 
+        String indexLocation = visit(index);
+        if(index.getKind().equals("Integer")){
+            code.append(ident + "aux" + (++auxCounter) + ".i32 :=.i32 " + indexLocation + ";\n");
+            indexLocation = "aux" + auxCounter + ".i32";
+        }
+        else if(indexLocation.startsWith("$"))
+            indexLocation = indexLocation.substring(indexLocation.indexOf('.') + 1);
 
-        String typeElements = dealWithType(new Type(Objects.requireNonNull(arrayType).getName(), false));
+        return array + "[" + indexLocation + "]" + dealWithType(new Type(arrayType.getName(), false));
+    }
 
-        String aux = "";
-        aux += (parameterIndex != -1 ? "$" + parameterIndex + "." : "") + var + "[";
-        aux += indexLocation;
-        aux += ".i32]" + typeElements;
-        code.append(ident + "aux" + (++auxCounter) + typeElements + " :=" + typeElements + " " + aux + ";\n");
-        return "aux" + auxCounter + typeElements;
+    private String getParameterPrefix(String var){
+        int number = OllirUtilities.getParameterNumber(st, currentMethod, var);
+        return number == 0 ? "" : "$" + number + ".";
     }
 
     private String dealWithComparasion(JmmNode jmmNode, String s) {
@@ -138,20 +134,14 @@ public class OllirExpressionVisitor extends AJmmVisitor<String, String> {
         String aux = ident + "aux" + (++auxCounter) + ".bool :=.bool ";
 
         code.append(aux).append(left).append(" ").append(jmmNode.get("op")).append(".bool ").append(right).append(";\n");
-        if(this.negation){
-            this.negation = false;
-            code.append(this.ident).append("aux").append(auxCounter).append(".bool :=.bool !.bool ").append("aux").append(auxCounter).append(".bool;\n");
-        }
         return "aux" + auxCounter + ".bool";
     }
 
     private String dealWithTrue(JmmNode jmmNode, String s) {
-        if(this.negation) return "0.bool";
         return "1.bool";
     }
 
     private String dealWithFalse(JmmNode jmmNode, String s) {
-        if(this.negation) return "1.bool";
         return "0.bool";
     }
 
@@ -178,54 +168,18 @@ public class OllirExpressionVisitor extends AJmmVisitor<String, String> {
         String aux = ident + "aux" + (++auxCounter) + optype + " :=" + optype + " ";
 
         code.append(aux).append(left).append(" ").append(jmmNode.get("op")).append(optype).append(" ").append(right).append(";\n");
-        if(this.negation){
-            this.negation = false;
-            code.append(this.ident).append("aux").append(auxCounter).append(".bool :=.bool !.bool ").append("aux").append(auxCounter).append(".bool;\n");
-        }
         return "aux" + auxCounter + optype;
     }
 
     private String dealWithIdentifier(JmmNode jmmNode, String ident) {
         String var = jmmNode.get("value");
 
-        List<Symbol> parameters = st.getParameters(currentMethod);
         String t = dealWithType(Objects.requireNonNull(getType(st, currentMethod, var)));
 
-        for(int i = 1; i <= parameters.size(); i++){
-            if(parameters.get(i - 1).getName().equals(var)){
-                if(this.negation){
-                    this.negation = false;
-                    code.append(this.ident).append("aux").append(auxCounter).append(".bool :=.bool !.bool ").append("aux").append(auxCounter).append(".bool;\n");
-                    return "aux" + auxCounter + ".bool";
-                }
-                return "$" + i + "." + var + t;
-            }
-        }
-
-        if(OllirUtilities.variableIsField(st, currentMethod, var)) {
-            String typeStr = dealWithType(Objects.requireNonNull(getType(st, currentMethod, var)));
-            String aux = this.ident + "aux" + (++auxCounter) + typeStr + " :=" + typeStr;
-            code.append(aux).append(" getfield(this, ").append(var).append(typeStr).append(")").append(typeStr).append(";\n");
-            if(this.negation){
-                this.negation = false;
-                code.append(this.ident).append("aux").append(auxCounter).append(".bool :=.bool !.bool ").append("aux").append(auxCounter).append(".bool;\n");
-                return "aux" + auxCounter + ".bool";
-            }
-            return "aux" + auxCounter + OllirUtilities.dealWithType(Objects.requireNonNull(getType(st, currentMethod, var)));
-        }
+        if(OllirUtilities.variableIsField(st, currentMethod, var))
+            return loadField(var, this.ident) + t;
 
-        for(Symbol local : st.getLocalVariables(currentMethod)){
-            if(local.getName().equals(var)){
-                if(this.negation){
-                    this.negation = false;
-                    code.append(this.ident).append("aux").append(++auxCounter).append(".bool :=.bool !.bool ").append("aux").append(auxCounter).append(".bool;\n");
-                    return "aux" + auxCounter + ".bool";
-                }
-                return var + t;
-            }
-        }
-
-        return null;
+        return getParameterPrefix(var) + var + t;
     }
 
     private String dealWithImportMethod(JmmNode node) {
@@ -265,10 +219,6 @@ public class OllirExpressionVisitor extends AJmmVisitor<String, String> {
         aux += t + ";";
 
         code.append(ident + "aux" + (++auxCounter) + t + " :=" + t + " " + aux + "\n");
-        if(this.negation){
-            this.negation = false;
-            code.append(this.ident).append("aux").append(auxCounter).append(".bool :=.bool !.bool ").append("aux").append(auxCounter).append(".bool;\n");
-        }
         return "aux" + auxCounter + t;
     }
 
@@ -3,40 +3,45 @@ package pt.up.fe.comp2023.ollir;
 import pt.up.fe.comp.jmm.analysis.table.Symbol;
 import pt.up.fe.comp.jmm.analysis.table.SymbolTable;
 import pt.up.fe.comp.jmm.analysis.table.Type;
+import pt.up.fe.comp2023.ast.ASymbolTable;
+import pt.up.fe.comp2023.ast.VarInfo;
+
+import java.util.List;
 
 public class OllirUtilities {
     public static boolean variableIsField(SymbolTable st, String currentMethod, String var){
-        for(Symbol s : st.getLocalVariables(currentMethod)){
-            if(s.getName().equals(var))
-                return false;
-        }
-        for(Symbol s : st.getParameters(currentMethod)){
-            if(s.getName().equals(var))
-                return false;
-        }
-        for(Symbol s : st.getFields()){
-            if(s.getName().equals(var))
-                return true;
-        }
-        return false;
+        VarInfo info = resolve(st, currentMethod, var);
+        return info != null && info.isField();
     }
 
     public static Type getType(SymbolTable st, String method, String var){
-        for(Symbol s : st.getLocalVariables(method)){
-            if(s.getName().equals(var))
-                return s.getType();
-        }
+        VarInfo info = resolve(st, method, var);
+        return info == null ? null : info.type();
+    }
 
-        for(Symbol s : st.getParameters(method)){
-            if(s.getName().equals(var))
-                return s.getType();
-        }
+    /** Number of a parameter in OLLIR ($1 is the first), 0 when the name is not a parameter of the method. */
+    public static int getParameterNumber(SymbolTable st, String method, String var){
+        VarInfo info = resolve(st, method, var);
+        return info != null && info.isParameter() ? info.slot() + 1 : 0;
+    }
 
-        for(Symbol s : st.getFields()){
-            if(s.getName().equals(var))
-                return s.getType();
-        }
+    // The symbol table of this compiler answers from its index, any other one is scanned
+    private static VarInfo resolve(SymbolTable st, String method, String var){
+        if(st instanceof ASymbolTable table)
+            return table.resolve(method, var);
 
+        List<Symbol> locals = st.getLocalVariables(method);
+        for(int i = 0; i < locals.size(); i++)
+            if(locals.get(i).getName().equals(var))
+                return new VarInfo(VarInfo.Kind.LOCAL, i, locals.get(i).getType());
+        List<Symbol> parameters = st.getParameters(method);
+        for(int i = 0; i < parameters.size(); i++)
+            if(parameters.get(i).getName().equals(var))
+                return new VarInfo(VarInfo.Kind.PARAMETER, i, parameters.get(i).getType());
+        List<Symbol> fields = st.getFields();
+        for(int i = 0; i < fields.size(); i++)
+            if(fields.get(i).getName().equals(var))
+                return new VarInfo(VarInfo.Kind.FIELD, i, fields.get(i).getType());
         return null;
     }
 
@@ -20,22 +20,20 @@ public class OllirVisitor extends AJmmVisitor<Void, Void> {
 
     private String ident = "";
     private int ifCount = 0;
+    private int loopCount = 0;
     private boolean midAssignment = false;
     private boolean breakSkip = false;
     private boolean negation = false;
-    private boolean insideIf = false;
 
     private final StringBuilder code;
     private final OllirExpressionVisitor expressionVisitor;
 
-    // Prevent repeated getfield instruction on already loaded field
-    private final Map<String, String> fieldsLoaded = new HashMap<>();
 
     public OllirVisitor(SymbolTable st){
         this.st = st;
         this.code = new StringBuilder();
         this.stack = new Stack<>();
-        this.expressionVisitor = new OllirExpressionVisitor(code, st, fieldsLoaded, ident);
+        this.expressionVisitor = new OllirExpressionVisitor(code, st, ident);
     }
 
     public String getCode(){
@@ -75,64 +73,21 @@ public class OllirVisitor extends AJmmVisitor<Void, Void> {
     }
 
     private Void dealWithIndexAssignment(JmmNode jmmNode, Void unused) {
-        String var = jmmNode.get("var");
-        String index = expressionVisitor.visitWrap(jmmNode.getJmmChild(0), this.ident);
+        // The array and the index are evaluated before the value, as in Java
+        String element = expressionVisitor.arrayElement(jmmNode.get("var"), jmmNode.getJmmChild(0), this.ident);
         String val = expressionVisitor.visitWrap(jmmNode.getJmmChild(1), this.ident);
-        Type type = getType(st, currentMethod, var);
-
-        // If array is field
-        if(fieldsLoaded.containsKey(var))
-            var = fieldsLoaded.get(var);
-        else if(variableIsField(st, currentMethod, var)){
-            String _type = dealWithType(Objects.requireNonNull(type));
-            String aux = this.ident + "temp" + _type + " :=" + _type;
-            code.append(aux).append(" getfield(this, ").append(var).append(_type).append(")").append(_type).append(";\n");
-            var = "temp";
-            fieldsLoaded.put(var, "temp");
-        }
-
-        // If array is a parameter
-        List<Symbol> parameters = st.getParameters(currentMethod);
-        int parameterIndex = parameters.stream().map(Symbol::getName).toList().indexOf(var);
-
-        // If array is local variable
-        code.append(this.ident).append("i.i32 :=.i32 ").append(index).append(";\n");
-        String t = dealWithType(new Type(type.getName(), false));
-        code.append(this.ident).append(parameterIndex != -1 ? "$" + parameterIndex + "." : "").append(var).append("[i.i32]").append(t).append(" :=").append(t).append(" ").append(val).append(";\n");
+        String t = element.substring(element.lastIndexOf(']') + 1);
+        code.append(this.ident).append(element).append(" :=").append(t).append(" ").append(val).append(";\n");
         return null;
     }
 
     private Void dealWithIndexAccess(JmmNode jmmNode, Void unused) {
-        String var = jmmNode.getJmmChild(0).get("value");
-        Type arrayType = getType(st, currentMethod, var);
-
-        // If array in a field
-        if(fieldsLoaded.containsKey(var))
-            var = fieldsLoaded.get(var);
-        else if(variableIsField(st, currentMethod, var)){
-            String _type = dealWithType(Objects.requireNonNull(arrayType));
-            String aux = this.ident + "temp" + _type + ":=" + _type;
-            code.append(aux).append(" getfield(this, ").append(var).append(_type).append(")").append(_type).append(";\n");
-            fieldsLoaded.put(var, "temp");
-            var = "temp";
-        }
-
-        // If array is a parameter
-        List<Symbol> parameters = st.getParameters(currentMethod);
-        int parameterIndex = parameters.stream().map(Symbol::getName).toList().indexOf(var);
-
-        // If array is a local variable
-        String aux = "";
-        aux += (parameterIndex != -1 ? "$"+parameterIndex+"." : "")+var+"[";
-        String loc = expressionVisitor.visitWrap(jmmNode.getJmmChild(1), this.ident);
-        code.append(this.ident).append("i.i32 :=.i32 ").append(loc).append(";\n");
-        aux += "i.i32";
-        aux += "]"+ dealWithType(new Type(Objects.requireNonNull(arrayType).getName(), false));
+        String element = expressionVisitor.arrayElement(jmmNode.getJmmChild(0).get("value"), jmmNode.getJmmChild(1), this.ident);
 
         if(midAssignment)
-            stack.push(aux);
+            stack.push(element);
         else
-            code.append(aux);
+            code.append(element);
 
         return null;
     }
@@ -208,55 +163,59 @@ public class OllirVisitor extends AJmmVisitor<Void, Void> {
     }
 
     private Void dealWithComparison(JmmNode comparison, Void unused){
-        if(midAssignment){
-            String location = expressionVisitor.visitWrap(comparison, this.ident);
+        String location = expressionVisitor.visitWrap(comparison, this.ident);
+        if(midAssignment)
             stack.push(location);
-            return null;
-        }
-
-        String op = getOppositeComp(comparison.get("op"));
-
-        String left = expressionVisitor.visitWrap(comparison.getJmmChild(0), this.ident);
-        String right = expressionVisitor.visitWrap(comparison.getJmmChild(1), this.ident);
-        if(insideIf)
-            code.append(this.ident).append("if(");
-        code.append(left).append(" ").append(op).append(".bool ").append(right);
         return null;
     }
 
-    private Void dealWithWhile(JmmNode jmmNode, Void unused) {
-        code.append(this.ident).append("Loop:\n");
-        this.ident += "\t";
-
-        code.append("#");
-
-        JmmNode comparison = jmmNode.getJmmChild(0);
-        if(comparison.getKind().equals("Comparation")){
-            insideIf = true;
-            dealWithComparison(comparison, null);
-            insideIf = false;
-        }
-        else{
-            String location = expressionVisitor.visitWrap(jmmNode.getJmmChild(0), this.ident);
-            code.append(this.ident).append("if (");
-            code.append(location);
+    /**
+     * Emits a conditional jump to label that is taken when the condition evaluates to jumpIf.
+     * Negations are folded into the polarity and comparisons are inverted in place, so the
+     * condition never needs an extra negated temporary.
+     */
+    private void dealWithCondition(JmmNode condition, boolean jumpIf, String label) {
+        switch (condition.getKind()) {
+            case "Parenthesis" -> dealWithCondition(condition.getJmmChild(0), jumpIf, label);
+            case "Negation" -> dealWithCondition(condition.getJmmChild(0), !jumpIf, label);
+            case "True", "False" -> {
+                // Constant condition: either an unconditional jump or no jump at all
+                if(condition.getKind().equals("True") == jumpIf)
+                    code.append(this.ident).append("goto ").append(label).append(";\n");
+            }
+            case "Comparation" -> {
+                String op = jumpIf ? condition.get("op") : getOppositeComp(condition.get("op"));
+                String left = expressionVisitor.visitWrap(condition.getJmmChild(0), this.ident);
+                String right = expressionVisitor.visitWrap(condition.getJmmChild(1), this.ident);
+                code.append(this.ident).append("if (").append(left).append(" ").append(op).append(".bool ").append(right)
+                        .append(") goto ").append(label).append(";\n");
+            }
+            default -> {
+                String location = expressionVisitor.visitWrap(condition, this.ident);
+                code.append(this.ident).append("if (").append(jumpIf ? "" : "!.bool ").append(location)
+                        .append(") goto ").append(label).append(";\n");
+            }
         }
+    }
 
-        int aux = code.indexOf("#");
-        if(aux != -1){
-            String a = code.substring(aux).substring(1);
-            code.delete(aux, code.length());
-            code.append(a);
-        }
-        code.append(") goto EndLoop;\n");
-        this.ident = this.ident.substring(0, ident.length() - 1);
+    /**
+     * Loops are emitted inverted (do-while form): a single guard skips the loop when the condition
+     * fails on entry, and the test at the bottom jumps back to the body, so each iteration runs one
+     * conditional branch instead of a conditional branch plus a goto.
+     */
+    private Void dealWithWhile(JmmNode jmmNode, Void unused) {
+        int loopCounter = ++loopCount; // Numbered like the if labels, so a method can hold more than one loop
+        JmmNode condition = jmmNode.getJmmChild(0);
+
+        dealWithCondition(condition, false, "EndLoop" + loopCounter);
 
-        code.append(this.ident).append("Body:\n");
+        code.append(this.ident).append("Body").append(loopCounter).append(":\n");
         this.ident += "\t";
         visit(jmmNode.getJmmChild(1));
-        code.append(this.ident).append("goto Loop;\n");
+        // The condition is visited again, so the bottom test gets its own temporaries
+        dealWithCondition(condition, true, "Body" + loopCounter);
         this.ident = this.ident.substring(0, ident.length() - 1);
-        code.append(this.ident).append("EndLoop:\n");
+        code.append(this.ident).append("EndLoop").append(loopCounter).append(":\n");
         return null;
     }
 
@@ -264,30 +223,17 @@ public class OllirVisitor extends AJmmVisitor<Void, Void> {
         JmmNode comparison = jmmNode.getJmmChild(0);
         JmmNode ifTrue = jmmNode.getJmmChild(1);
 
-        if(comparison.getKind().equals("Comparation")){
-            this.insideIf = true;
-            dealWithComparison(comparison, null);
-            this.insideIf = false;
-        } else if(comparison.getKind().equals("Negation") || comparison.getKind().equals("MethodCall") || comparison.getKind().equals("BinaryOp")){
-            String loc = expressionVisitor.visitWrap(comparison, this.ident);
-            code.append("if(").append(loc);
-        } else{
-            code.append("if(");
-            evaluateValue(comparison);
-        }
-
         boolean hasElseBlock = jmmNode.getChildren().size() > 2;
         int ifCounter = ++ifCount; // Cache value for endif label, otherwise nested ifs fail
-        if(hasElseBlock) code.append(") goto else").append(ifCount).append(";\n");
-        else code.append(") goto endif").append(ifCount).append(";\n");
+        dealWithCondition(comparison, false, (hasElseBlock ? "else" : "endif") + ifCounter);
 
         visit(ifTrue);
 
         if(hasElseBlock){
-            code.append(this.ident).append("goto endif").append(ifCount).append(";\n");
+            code.append(this.ident).append("goto endif").append(ifCounter).append(";\n");
             JmmNode ifFalse = jmmNode.getJmmChild(2);
             this.ident = this.ident.substring(0, ident.length() - 1);
-            code.append("\n").append(ident).append("else").append(ifCount).append(":\n");
+            code.append("\n").append(ident).append("else").append(ifCounter).append(":\n");
             this.ident += "\t";
             visit(ifFalse);
         }
@@ -298,16 +244,6 @@ public class OllirVisitor extends AJmmVisitor<Void, Void> {
         return null;
     }
 
-    private void evaluateValue(JmmNode comparison) {
-        if(comparison.getKind().equals("False"))
-            code.append("0.bool");
-        else if(comparison.getKind().equals("True"))
-            code.append("1.bool");
-        else{
-            code.append(expressionVisitor.visitWrap(comparison, this.ident));
-        }
-    }
-
     private Void dealWithInteger(JmmNode jmmNode, Void v) {
         if(midAssignment)
             stack.push(jmmNode.get("value") + ".i32");
@@ -322,11 +258,13 @@ public class OllirVisitor extends AJmmVisitor<Void, Void> {
         String type = dealWithType(Objects.requireNonNull(getType(st, currentMethod, var)));
 
         boolean directExpression = false;
+        boolean assignmentOnField = OllirUtilities.variableIsField(st, currentMethod, var);
         String aux = "";
         JmmNode child = jmmNode.getJmmChild(0);
-        if(child.getKind().equals("BinaryOp")
-                && child.getJmmChild(0).getNumChildren() == 0
-                && child.getJmmChild(1).getNumChildren() == 0
+        // Fields are written with putfield and read with getfield, neither fits in a single assignment
+        if(child.getKind().equals("BinaryOp") && !assignmentOnField
+                && isLocalLeaf(child.getJmmChild(0))
+                && isLocalLeaf(child.getJmmChild(1))
         ){
             directExpression = true;
             code.append(this.ident).append(var).append(type).append(" :=").append(type).append(" ");
@@ -338,7 +276,6 @@ public class OllirVisitor extends AJmmVisitor<Void, Void> {
 
 
         String result = "";
-        boolean assignmentOnField = OllirUtilities.variableIsField(st, currentMethod, var);
 
         if(assignmentOnField)
             result = this.ident + "putfield(this, " + var + type + ", ";
@@ -358,6 +295,12 @@ public class OllirVisitor extends AJmmVisitor<Void, Void> {
         return null;
     }
 
+    private boolean isLocalLeaf(JmmNode node) {
+        if(node.getNumChildren() != 0)
+            return false;
+        return !node.getKind().equals("Identifier") || !OllirUtilities.variableIsField(st, currentMethod, node.get("value"));
+    }
+
     private Void dealWithIdentifier(JmmNode jmmNode, Void v) {
         String var = jmmNode.get("value");
 
@@ -373,29 +316,26 @@ public class OllirVisitor extends AJmmVisitor<Void, Void> {
         // If it is a field getfield is needed
         if(OllirUtilities.variableIsField(st, currentMethod, var)) {
             String type = dealWithType(Objects.requireNonNull(getType(st, currentMethod, var)));
-            String aux = this.ident + "temp" + type + ":=" + type;
-            code.append(aux).append(" getfield(this, ").append(var).append(type).append(")").append(type).append(";\n");
+            String loc = expressionVisitor.loadField(var, this.ident) + type;
             if(midAssignment)
-                stack.push("temp" + type);
+                stack.push(loc);
             else
-                code.append("temp").append(type);
+                code.append(loc);
             return null;
         }
 
-        List<Symbol> parameters = st.getParameters(currentMethod);
         Type type = getType(st, currentMethod, var);
         if(type == null) return null; // Any method of the import, we can't verify the methods
         String t = dealWithType(type);
 
         // If it is a parameter we need the $
-        for(int i = 1; i <= parameters.size(); i++){
-            if(parameters.get(i - 1).getName().equals(var)){
-                if(midAssignment)
-                    stack.push("$"+i+"."+var+t);
-                else
-                    code.append("$").append(i).append(".").append(var).append(t);
-                return null;
-            }
+        int parameter = OllirUtilities.getParameterNumber(st, currentMethod, var);
+        if(parameter != 0){
+            if(midAssignment)
+                stack.push("$"+parameter+"."+var+t);
+            else
+                code.append("$").append(parameter).append(".").append(var).append(t);
+            return null;
         }
 
         // Otherwise, it is a local variable
@@ -434,7 +374,6 @@ public class OllirVisitor extends AJmmVisitor<Void, Void> {
     private Void dealWithMethod(JmmNode jmmNode, Void v) {
         currentMethod = jmmNode.get("methodName");
         expressionVisitor.setMethod(currentMethod);
-        fieldsLoaded.clear();
 
         // Open method block
         code.append("\n\n").append(ident).append(".method public ");
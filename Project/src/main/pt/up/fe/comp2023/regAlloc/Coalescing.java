@@ -0,0 +1,82 @@
+package pt.up.fe.comp2023.regAlloc;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Conservative copy coalescing over a copy of the interference graph.
+ * Copy-related locals that do not interfere are merged when the Briggs or the George test shows the merge cannot
+ * make the graph harder to color with k registers. Copies in deeper loops are tried first.
+ */
+public class Coalescing {
+    private final InterferenceGraph graph;
+    private final int[] alias;
+    private int merged = 0;
+
+    public Coalescing(InterferenceGraph original, List<int[]> copies, int k) {
+        this.graph = original.copy();
+        this.alias = new int[graph.size()];
+        for (int v = 0; v < alias.length; v++)
+            alias[v] = v;
+
+        List<int[]> moves = new ArrayList<>(copies);
+        moves.sort(Comparator.comparingInt((int[] move) -> move[2]).reversed());
+
+        // Merging can turn a failed test into a passing one for a later copy, so repeat until nothing changes
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int[] move : moves) {
+                int a = getAlias(move[0]), b = getAlias(move[1]);
+                if (a == b || graph.interferes(a, b))
+                    continue;
+                if (briggs(a, b, k) || george(a, b, k) || george(b, a, k)) {
+                    graph.merge(a, b);
+                    alias[b] = a;
+                    merged++;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    // The merged node has fewer than k neighbours of significant degree
+    private boolean briggs(int a, int b, int k) {
+        int significant = 0;
+        for (int t : graph.getNeighbours(a)) {
+            int degree = graph.getDegree(t) - (graph.interferes(t, b) ? 1 : 0);
+            if (degree >= k)
+                significant++;
+        }
+        for (int t : graph.getNeighbours(b))
+            if (!graph.interferes(t, a) && graph.getDegree(t) >= k)
+                significant++;
+        return significant < k;
+    }
+
+    // Every neighbour of b already interferes with a or has insignificant degree
+    private boolean george(int a, int b, int k) {
+        for (int t : graph.getNeighbours(b))
+            if (!graph.interferes(t, a) && graph.getDegree(t) >= k)
+                return false;
+        return true;
+    }
+
+    public InterferenceGraph getGraph() {
+        return graph;
+    }
+
+    public int getMerged() {
+        return merged;
+    }
+
+    /** Node that stands for v in the coalesced graph. */
+    public int getAlias(int v) {
+        while (alias[v] != v) {
+            alias[v] = alias[alias[v]];
+            v = alias[v];
+        }
+        return v;
+    }
+}
@@ -0,0 +1,162 @@
+package pt.up.fe.comp2023.regAlloc;
+
+import org.specs.comp.ollir.*;
+
+import java.util.*;
+
+/**
+ * Removes the code whose work is never seen: instructions no path from the entry reaches, jumps to the instruction
+ * right after them, and assignments to locals that are dead afterwards when computing their value has no effect.
+ * Removing code makes more of it dead, so this repeats until nothing changes. The locals no instruction mentions
+ * anymore are then dropped and the others numbered again from the first free register.
+ * <p>
+ * Values that may throw (divisions by a variable, array elements, calls, fields of other objects) are kept even when
+ * nothing reads them.
+ */
+public class DeadCodeElimination {
+    private final Method method;
+    private int removed = 0;
+    private int localsRemoved = 0;
+
+    public DeadCodeElimination(Method method) {
+        this.method = method;
+    }
+
+    public boolean run() {
+        boolean changed = true;
+        while (changed)
+            changed = removeUnreachable() | removeJumpsToNext() | removeDeadAssignments();
+        compactLocals();
+        return removed > 0 || localsRemoved > 0;
+    }
+
+    public int getRemoved() {
+        return removed;
+    }
+
+    public int getLocalsRemoved() {
+        return localsRemoved;
+    }
+
+    // Nothing jumps to the labels of unreachable code, so they go with it
+    private boolean removeUnreachable() {
+        List<Instruction> instructions = method.getInstructions();
+        if (instructions.isEmpty())
+            return false;
+        FlowGraph cfg = new FlowGraph(method);
+        boolean[] reached = new boolean[cfg.size()];
+        Deque<Integer> work = new ArrayDeque<>();
+        reached[0] = true;
+        work.push(0);
+        while (!work.isEmpty())
+            for (int s : cfg.getSuccessors(work.pop()))
+                if (!reached[s]) {
+                    reached[s] = true;
+                    work.push(s);
+                }
+
+        Set<Instruction> unreachable = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int node = 0; node < cfg.size(); node++)
+            if (!reached[node])
+                unreachable.add(cfg.getInstruction(node));
+        if (unreachable.isEmpty())
+            return false;
+        instructions.removeIf(unreachable::contains);
+        method.getLabels().values().removeIf(unreachable::contains);
+        removed += unreachable.size();
+        return true;
+    }
+
+    private boolean removeJumpsToNext() {
+        List<Instruction> instructions = method.getInstructions();
+        boolean changed = false;
+        for (int i = instructions.size() - 2; i >= 0; i--) {
+            Instruction next = instructions.get(i + 1);
+            if (instructions.get(i) instanceof GotoInstruction jump && method.getLabels().get(jump.getLabel()) == next) {
+                moveLabels(jump, next);
+                instructions.remove(i);
+                removed++;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private boolean removeDeadAssignments() {
+        LVAnalysis liveness = new LVAnalysis(method);
+        FlowGraph cfg = liveness.getFlowGraph();
+        Set<Instruction> dead = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int node = 0; node + 1 < cfg.size(); node++) {
+            Instruction inst = cfg.getInstruction(node);
+            String def = DefUse.getDef(inst);
+            if (def != null && !liveness.isLiveOut(node, def) && hasNoEffect(((AssignInstruction) inst).getRhs()))
+                dead.add(inst);
+        }
+        if (dead.isEmpty())
+            return false;
+
+        // Every dead assignment is followed by another instruction, which takes its labels
+        List<Instruction> instructions = method.getInstructions();
+        for (int i = instructions.size() - 2; i >= 0; i--)
+            if (dead.contains(instructions.get(i))) {
+                moveLabels(instructions.get(i), instructions.get(i + 1));
+                instructions.remove(i);
+            }
+        removed += dead.size();
+        return true;
+    }
+
+    private static boolean hasNoEffect(Instruction rhs) {
+        return switch (rhs.getInstType()) {
+            case BINARYOPER -> {
+                BinaryOpInstruction binary = (BinaryOpInstruction) rhs;
+                if (binary.getLeftOperand() instanceof ArrayOperand || binary.getRightOperand() instanceof ArrayOperand)
+                    yield false;
+                yield binary.getOperation().getOpType() != OperationType.DIV
+                        || binary.getRightOperand() instanceof LiteralElement literal && !literal.getLiteral().equals("0");
+            }
+            case UNARYOPER -> !(((UnaryOpInstruction) rhs).getOperand() instanceof ArrayOperand);
+            case NOPER -> !(((SingleOpInstruction) rhs).getSingleOperand() instanceof ArrayOperand);
+            case GETFIELD -> ((GetFieldInstruction) rhs).getFirstOperand() instanceof Operand object
+                    && object.getName().equals("this");
+            default -> false;
+        };
+    }
+
+    // Locals keep their order, packed right after this and the parameters
+    private void compactLocals() {
+        Set<String> mentioned = new HashSet<>();
+        for (Instruction inst : method.getInstructions()) {
+            mentioned.addAll(DefUse.getUses(inst));
+            String def = DefUse.getDef(inst);
+            if (def != null)
+                mentioned.add(def);
+        }
+
+        Map<String, Descriptor> varTable = method.getVarTable();
+        int first = method.getParams().size() + (method.isStaticMethod() ? 0 : 1);
+        List<Map.Entry<String, Descriptor>> locals = new ArrayList<>();
+        for (Iterator<Map.Entry<String, Descriptor>> it = varTable.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Descriptor> entry = it.next();
+            if (entry.getValue().getScope() != VarScope.LOCAL || entry.getKey().equals("this")) {
+                if (entry.getValue().getScope() != VarScope.FIELD)
+                    first = Math.max(first, entry.getValue().getVirtualReg() + 1);
+            } else if (!mentioned.contains(entry.getKey())) {
+                it.remove();
+                localsRemoved++;
+            } else
+                locals.add(entry);
+        }
+
+        locals.sort(Comparator.comparingInt((Map.Entry<String, Descriptor> entry) -> entry.getValue().getVirtualReg())
+                .thenComparing(Map.Entry::getKey));
+        for (int i = 0; i < locals.size(); i++)
+            locals.get(i).getValue().setVirtualReg(first + i);
+    }
+
+    private void moveLabels(Instruction from, Instruction to) {
+        for (Map.Entry<String, Instruction> label : method.getLabels().entrySet())
+            if (label.getValue() == from)
+                label.setValue(to);
+    }
+}
@@ -0,0 +1,101 @@
+package pt.up.fe.comp2023.regAlloc;
+
+import org.specs.comp.ollir.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Exact def/use sets of an OLLIR instruction, taken from its operands instead of its textual form.
+ * Names are returned as they appear in the operands; callers filter them against the variables they track.
+ */
+public class DefUse {
+
+    /** Variable written by the instruction, or null when it only reads (stores into array elements included). */
+    public static String getDef(Instruction inst) {
+        Operand dest = getDefOperand(inst);
+        return dest == null ? null : dest.getName();
+    }
+
+    public static Operand getDefOperand(Instruction inst) {
+        if (inst.getInstType() != InstructionType.ASSIGN)
+            return null;
+        Element dest = ((AssignInstruction) inst).getDest();
+        if (dest instanceof ArrayOperand || !(dest instanceof Operand))
+            return null;
+        return (Operand) dest;
+    }
+
+    public static Set<String> getUses(Instruction inst) {
+        Set<String> uses = new HashSet<>();
+        for (Operand operand : getUseOperands(inst))
+            uses.add(operand.getName());
+        return uses;
+    }
+
+    /** Every operand read by the instruction, in evaluation order; the same variable may appear more than once. */
+    public static List<Operand> getUseOperands(Instruction inst) {
+        List<Operand> uses = new ArrayList<>();
+        addUses(inst, uses);
+        return uses;
+    }
+
+    private static void addUses(Instruction inst, List<Operand> uses) {
+        switch (inst.getInstType()) {
+            case ASSIGN -> {
+                AssignInstruction assign = (AssignInstruction) inst;
+                if (assign.getDest() instanceof ArrayOperand array) {  // a[i] := x reads both a and i
+                    uses.add(array);
+                    addIndexUses(array, uses);
+                }
+                addUses(assign.getRhs(), uses);
+            }
+            case CALL -> {
+                CallInstruction call = (CallInstruction) inst;
+                // NEW names a class and invokestatic a class or import, neither is a variable
+                if (call.getInvocationType() != CallType.NEW && call.getInvocationType() != CallType.invokestatic)
+                    addUse(call.getFirstArg(), uses);
+                if (call.getListOfOperands() != null)
+                    for (Element arg : call.getListOfOperands())
+                        addUse(arg, uses);
+            }
+            // The second operand of a field access is the field itself
+            case GETFIELD -> addUse(((GetFieldInstruction) inst).getFirstOperand(), uses);
+            case PUTFIELD -> {
+                PutFieldInstruction put = (PutFieldInstruction) inst;
+                addUse(put.getFirstOperand(), uses);
+                addUse(put.getThirdOperand(), uses);
+            }
+            case BINARYOPER -> {
+                BinaryOpInstruction op = (BinaryOpInstruction) inst;
+                addUse(op.getLeftOperand(), uses);
+                addUse(op.getRightOperand(), uses);
+            }
+            case UNARYOPER -> addUse(((UnaryOpInstruction) inst).getOperand(), uses);
+            case NOPER -> addUse(((SingleOpInstruction) inst).getSingleOperand(), uses);
+            case BRANCH -> addUses(((CondBranchInstruction) inst).getCondition(), uses);
+            case RETURN -> {
+                ReturnInstruction ret = (ReturnInstruction) inst;
+                if (ret.hasReturnValue())
+                    addUse(ret.getOperand(), uses);
+            }
+            default -> {}
+        }
+    }
+
+    private static void addUse(Element elem, List<Operand> uses) {
+        if (elem == null || elem.isLiteral() || !(elem instanceof Operand operand))
+            return;
+        uses.add(operand);
+        if (operand instanceof ArrayOperand array)
+            addIndexUses(array, uses);
+    }
+
+    private static void addIndexUses(ArrayOperand array, List<Operand> uses) {
+        if (array.getIndexOperands() != null)
+            for (Element index : array.getIndexOperands())
+                addUse(index, uses);
+    }
+}
@@ -0,0 +1,183 @@
+package pt.up.fe.comp2023.regAlloc;
+
+import org.specs.comp.ollir.*;
+
+import java.util.*;
+
+/**
+ * Instruction-level control flow graph of a method.
+ * Built directly from the instruction list and the label table, so it can be rebuilt any number of times
+ * (Method.buildCFG() appends edges on every call).
+ */
+public class FlowGraph {
+    private final List<Instruction> instructions;
+    private final int[][] succ;
+    private final int[][] pred;
+    private final int[] postOrder;
+    private int[] loopDepth;
+
+    public FlowGraph(Method method) {
+        this.instructions = method.getInstructions();
+        int n = instructions.size();
+
+        Map<Instruction, Integer> index = new IdentityHashMap<>();
+        for (int i = 0; i < n; i++)
+            index.put(instructions.get(i), i);
+
+        succ = new int[n][];
+        int[] predCount = new int[n];
+        for (int i = 0; i < n; i++) {
+            Instruction inst = instructions.get(i);
+            int next = i + 1 < n ? i + 1 : -1;
+            switch (inst.getInstType()) {
+                case GOTO -> succ[i] = edges(index.get(method.getLabels().get(((GotoInstruction) inst).getLabel())));
+                case BRANCH -> {
+                    Integer target = index.get(method.getLabels().get(((CondBranchInstruction) inst).getLabel()));
+                    succ[i] = next == -1 || Objects.equals(target, next) ? edges(target) : edges(target, next);
+                }
+                case RETURN -> succ[i] = new int[0];
+                default -> succ[i] = edges(next);
+            }
+            for (int s : succ[i])
+                predCount[s]++;
+        }
+
+        pred = new int[n][];
+        for (int i = 0; i < n; i++)
+            pred[i] = new int[predCount[i]];
+        int[] fill = new int[n];
+        for (int i = 0; i < n; i++)
+            for (int s : succ[i])
+                pred[s][fill[s]++] = i;
+
+        postOrder = computePostOrder();
+    }
+
+    private static int[] edges(Integer... targets) {
+        return Arrays.stream(targets).filter(t -> t != null && t >= 0).mapToInt(Integer::intValue).toArray();
+    }
+
+    // Iterative DFS from the entry; unreachable instructions are appended at the end so every node is present
+    private int[] computePostOrder() {
+        int n = instructions.size();
+        int[] order = new int[n];
+        int count = 0;
+        boolean[] visited = new boolean[n];
+        int[] stack = new int[n];
+        int[] edge = new int[n];
+
+        for (int root = 0; root < n; root++) {
+            if (visited[root])
+                continue;
+            int top = 0;
+            stack[0] = root;
+            edge[0] = 0;
+            visited[root] = true;
+            while (top >= 0) {
+                int node = stack[top];
+                if (edge[top] < succ[node].length) {
+                    int s = succ[node][edge[top]++];
+                    if (!visited[s]) {
+                        visited[s] = true;
+                        stack[++top] = s;
+                        edge[top] = 0;
+                    }
+                } else {
+                    order[count++] = node;
+                    top--;
+                }
+            }
+        }
+        return order;
+    }
+
+    /*
+     * Loop nesting depth of every instruction. Each DFS back edge tail -> header closes a loop whose body is every
+     * node that reaches the tail without going through the header.
+     */
+    private int[] computeLoopDepth() {
+        int n = instructions.size();
+        int[] depth = new int[n];
+        int[] state = new int[n];  // 0 unvisited, 1 on the DFS stack, 2 finished
+        int[] stack = new int[n];
+        int[] edge = new int[n];
+        List<int[]> backEdges = new ArrayList<>();
+
+        for (int root = 0; root < n; root++) {
+            if (state[root] != 0)
+                continue;
+            int top = 0;
+            stack[0] = root;
+            edge[0] = 0;
+            state[root] = 1;
+            while (top >= 0) {
+                int node = stack[top];
+                if (edge[top] < succ[node].length) {
+                    int s = succ[node][edge[top]++];
+                    if (state[s] == 1)
+                        backEdges.add(new int[]{node, s});
+                    else if (state[s] == 0) {
+                        state[s] = 1;
+                        stack[++top] = s;
+                        edge[top] = 0;
+                    }
+                } else {
+                    state[node] = 2;
+                    top--;
+                }
+            }
+        }
+
+        boolean[] inLoop = new boolean[n];
+        int[] work = new int[n];
+        for (int[] backEdge : backEdges) {
+            int tail = backEdge[0], header = backEdge[1];
+            Arrays.fill(inLoop, false);
+            inLoop[header] = true;
+            int size = 0;
+            if (!inLoop[tail]) {
+                inLoop[tail] = true;
+                work[size++] = tail;
+            }
+            while (size > 0) {
+                int node = work[--size];
+                for (int p : pred[node])
+                    if (!inLoop[p]) {
+                        inLoop[p] = true;
+                        work[size++] = p;
+                    }
+            }
+            for (int i = 0; i < n; i++)
+                if (inLoop[i])
+                    depth[i]++;
+        }
+        return depth;
+    }
+
+    public int getLoopDepth(int node) {
+        if (loopDepth == null)
+            loopDepth = computeLoopDepth();
+        return loopDepth[node];
+    }
+
+    public int size() {
+        return instructions.size();
+    }
+
+    public Instruction getInstruction(int node) {
+        return instructions.get(node);
+    }
+
+    public int[] getSuccessors(int node) {
+        return succ[node];
+    }
+
+    public int[] getPredecessors(int node) {
+        return pred[node];
+    }
+
+    /** Nodes in DFS postorder, the natural order for backward problems. */
+    public int[] getPostOrder() {
+        return postOrder;
+    }
+}
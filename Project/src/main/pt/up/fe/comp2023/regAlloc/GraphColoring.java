@@ -1,88 +1,161 @@
 package pt.up.fe.comp2023.regAlloc;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 public class GraphColoring {
-    private Map<String, Integer> registers;
-    private List<String> stack;
-    private Map<String, List<String>> conflicts;
-    private final int regNum;
-    private boolean stackWorking;
-    private boolean registersWorking;
+    private final InterferenceGraph graph;
+    private final int[] colors;          // -1 for nodes that could not be colored
+    private int colorCount;
+    private final List<String> spilled;
+    private double[] spillCost;
+
+    /** Colors the graph with as few registers as a smallest-last ordering allows. */
+    public GraphColoring(InterferenceGraph graph) {
+        this.graph = graph;
+        this.colors = new int[graph.size()];
+        this.spilled = new ArrayList<>();
+        assignRegisters(simplify(Integer.MAX_VALUE), Integer.MAX_VALUE);
+    }
+
+    /** Optimistic (Briggs) coloring with regNum registers, nodes that find no free register are spilled. */
+    public GraphColoring(InterferenceGraph graph, int regNum) {
+        this(graph, regNum, null);
+    }
+
+    /** Same as above, blocked simplification pushes the node with the lowest spill cost per interference first. */
+    public GraphColoring(InterferenceGraph graph, int regNum, double[] spillCost) {
+        this.graph = graph;
+        this.colors = new int[graph.size()];
+        this.spilled = new ArrayList<>();
+        this.spillCost = spillCost;
+        assignRegisters(simplify(regNum), regNum);
+    }
+
+    public boolean isColored() {
+        return spilled.isEmpty();
+    }
+
+    public int getColorCount() {
+        return colorCount;
+    }
+
+    public List<String> getSpilled() {
+        return spilled;
+    }
 
     public Map<String, Integer> getRegisters() {
+        Map<String, Integer> registers = new HashMap<>();
+        for (int v = 0; v < colors.length; v++)
+            if (colors[v] != -1)
+                registers.put(graph.getName(v), colors[v]);
         return registers;
     }
-    public boolean isStackWorking() {return stackWorking;}
-    public boolean isRegisterWorking() {return registersWorking;}
 
-    public GraphColoring(int regNum, Map<String, List<String>> conflicts) {
+    /*
+     * Chaitin simplification with nodes kept in buckets by current degree.
+     * Nodes with degree < regNum are removed first; when there are none the node with the highest degree is pushed
+     * anyway and may still get a register in the select phase (the cheapest one when spill costs are known).
+     * With no register limit this is the smallest-last order.
+     */
+    private int[] simplify(int regNum) {
+        int n = graph.size();
+        int[] degree = new int[n];
+        int[] head = new int[n + 1];
+        int[] next = new int[n];
+        int[] prev = new int[n];
+        boolean[] removed = new boolean[n];
+        Arrays.fill(head, -1);
+        for (int v = 0; v < n; v++) {
+            degree[v] = graph.getDegree(v);
+            link(v, degree[v], head, next, prev);
+        }
 
-        this.conflicts = new HashMap<>(conflicts);
-        this.regNum = regNum;
-        this.registers = new HashMap<>();
+        int[] stack = new int[n];
+        int minDegree = 0, maxDegree = n;
+        for (int top = 0; top < n; top++) {
+            while (head[minDegree] == -1)
+                minDegree++;
+            int v;
+            if (minDegree < regNum)
+                v = head[minDegree];
+            else if (spillCost != null)
+                v = cheapestSpill(degree, removed);
+            else {
+                while (head[maxDegree] == -1)
+                    maxDegree--;
+                v = head[maxDegree];
+            }
+            unlink(v, degree[v], head, next, prev);
+            removed[v] = true;
+            stack[top] = v;
 
-        this.stackWorking = applyChaitin();
-        if (stackWorking)
-            this.registersWorking = assignRegisters();
+            for (int u : graph.getNeighbours(v)) {
+                if (removed[u])
+                    continue;
+                unlink(u, degree[u], head, next, prev);
+                degree[u]--;
+                link(u, degree[u], head, next, prev);
+            }
+            minDegree = Math.max(0, minDegree - 1);
+        }
+        return stack;
     }
 
-    private boolean applyChaitin() {
-        this.stack = new ArrayList<>();
-        Map<String, List<String>> interferenceGraph = new HashMap<>(conflicts);
-        while (interferenceGraph.size() != 0) {
-            boolean updated = false;
-            // Find node with less than regNum interferences
-            for (String var : interferenceGraph.keySet()) {
-                if (interferenceGraph.get(var).size() < regNum) {
-                    updated = true;
-                    stack.add(var);
-                    interferenceGraph.remove(var);
-                    for (String varUpdate : interferenceGraph.keySet())
-                        if (interferenceGraph.get(varUpdate).contains(var)) {
-                            List<String> updatedConflicts = interferenceGraph.get(varUpdate);
-                            updatedConflicts.remove(var);
-                            interferenceGraph.put(varUpdate, updatedConflicts);
-                        }
-                    break;
-                }
+    private int cheapestSpill(int[] degree, boolean[] removed) {
+        int best = -1;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (int v = 0; v < degree.length; v++) {
+            if (removed[v])
+                continue;
+            double cost = spillCost[v] / Math.max(1, degree[v]);
+            if (best == -1 || cost < bestCost || (cost == bestCost && degree[v] > degree[best])) {
+                best = v;
+                bestCost = cost;
             }
-            if (!updated)
-                return false;
         }
-        return true;
+        return best;
     }
 
+    private static void link(int v, int degree, int[] head, int[] next, int[] prev) {
+        next[v] = head[degree];
+        prev[v] = -1;
+        if (head[degree] != -1)
+            prev[head[degree]] = v;
+        head[degree] = v;
+    }
 
-    private boolean assignRegisters() {
-        for (String var : stack)
-            registers.put(var, -1);
-        for (int i = stack.size() - 1; i >= 0; i--) {
-            String var = stack.get(i);
-            //stack.remove(var);
-            if (!addRegister(var))
-                return false;
-        }
-        return true;
+    private static void unlink(int v, int degree, int[] head, int[] next, int[] prev) {
+        if (prev[v] != -1)
+            next[prev[v]] = next[v];
+        else
+            head[degree] = next[v];
+        if (next[v] != -1)
+            prev[next[v]] = prev[v];
     }
 
-    private boolean addRegister(String var) {
-        for (int i = 0; i < regNum; i++) {
-            boolean skip = false;
-            for (String conflictVar : conflicts.get(var)) {
-                if (registers.get(conflictVar) == i) {
-                    skip = true;
-                    break;
-                }
-            }
-            if (!skip) {
-                registers.put(var, i);
-                return true;
+    // Pops the stack giving every node the lowest register not taken by an already colored neighbour
+    private void assignRegisters(int[] stack, int regNum) {
+        Arrays.fill(colors, -1);
+        boolean[] taken = new boolean[graph.size() + 1];
+        for (int i = stack.length - 1; i >= 0; i--) {
+            int v = stack[i];
+            int[] neighbours = graph.getNeighbours(v);
+            for (int u : neighbours)
+                if (colors[u] != -1)
+                    taken[colors[u]] = true;
+            int color = 0;
+            while (taken[color])
+                color++;
+            for (int u : neighbours)
+                if (colors[u] != -1)
+                    taken[colors[u]] = false;
+
+            if (color < regNum) {
+                colors[v] = color;
+                colorCount = Math.max(colorCount, color + 1);
             }
+            else
+                spilled.add(graph.getName(v));
         }
-        return false;
     }
 }
@@ -0,0 +1,93 @@
+package pt.up.fe.comp2023.regAlloc;
+
+import java.util.*;
+
+/**
+ * Interference graph over the locals of a method, one adjacency bitset per node.
+ */
+public class InterferenceGraph {
+    private final List<String> nodes;
+    private final Map<String, Integer> index;
+    private final long[][] adjacency;
+    private final int[] degree;
+
+    public InterferenceGraph(List<String> nodes, long[][] adjacency) {
+        this.nodes = nodes;
+        this.adjacency = adjacency;
+        this.index = new HashMap<>();
+        for (int i = 0; i < nodes.size(); i++)
+            index.put(nodes.get(i), i);
+        this.degree = new int[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++)
+            for (long word : adjacency[i])
+                degree[i] += Long.bitCount(word);
+    }
+
+    public InterferenceGraph copy() {
+        long[][] rows = new long[adjacency.length][];
+        for (int i = 0; i < rows.length; i++)
+            rows[i] = adjacency[i].clone();
+        return new InterferenceGraph(nodes, rows);
+    }
+
+    /** Merges drop into keep: keep inherits every interference of drop and drop is left without edges. */
+    public void merge(int keep, int drop) {
+        for (int u : getNeighbours(drop)) {
+            adjacency[u][drop >>> 6] &= ~(1L << drop);
+            if (interferes(u, keep))
+                degree[u]--;
+            else {
+                adjacency[u][keep >>> 6] |= 1L << keep;
+                adjacency[keep][u >>> 6] |= 1L << u;
+                degree[keep]++;
+            }
+        }
+        Arrays.fill(adjacency[drop], 0);
+        degree[drop] = 0;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public String getName(int node) {
+        return nodes.get(node);
+    }
+
+    public Integer getIndex(String name) {
+        return index.get(name);
+    }
+
+    public int getDegree(int node) {
+        return degree[node];
+    }
+
+    public boolean interferes(int a, int b) {
+        return (adjacency[a][b >>> 6] & (1L << b)) != 0;
+    }
+
+    public int[] getNeighbours(int node) {
+        int[] result = new int[degree[node]];
+        int count = 0;
+        long[] row = adjacency[node];
+        for (int w = 0; w < row.length; w++) {
+            long bits = row[w];
+            while (bits != 0) {
+                result[count++] = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
+        }
+        return result;
+    }
+
+    public Map<String, List<String>> toConflictMap() {
+        Map<String, List<String>> conflicts = new HashMap<>();
+        for (int v = 0; v < size(); v++) {
+            List<String> varConflict = new ArrayList<>();
+            for (int u : getNeighbours(v))
+                varConflict.add(nodes.get(u));
+            conflicts.put(nodes.get(v), varConflict);
+        }
+        return conflicts;
+    }
+}
@@ -5,160 +5,198 @@ import org.specs.comp.ollir.*;
 import java.util.*;
 
 public class LVAnalysis {
-    List<Integer> visitedNodes;
-    private Method method;
-    private List<String> varList;
-    private Map<Integer, Set<String>> out;
-    private Map<Integer, Set<String>> gen;
-    private Map<Integer, String> kill;
-    private boolean updated;
-    private Map<String, List<String>> conflicts;
-    public LVAnalysis(Method method){
+    private final FlowGraph cfg;
+    private final List<String> varList;  // Dense numbering: variable i is bit i of every set
+    private final Map<String, Integer> varIndex;
+    private final int words;
+
+    private long[][] gen;
+    private int[] kill;                  // -1 when the instruction defines no local
+    private long[][] in;
+    private long[][] out;
+    private InterferenceGraph interference;
+    private List<int[]> copies;          // {dest, source, loop depth} of every local to local copy
 
-        this.method = method;
-        this.method.buildCFG();
+    public LVAnalysis(Method method){
+        this.cfg = new FlowGraph(method);
 
+        // Parameters, this and fields keep their own slots, only locals take part in allocation
+        Set<String> params = new HashSet<>();
+        for (Element elem : method.getParams())
+            params.add(((Operand) elem).getName());
         varList = new ArrayList<>();
-        for (String var : method.getVarTable().keySet())
-            varList.add(var);
-        List<String> paramCheck = new ArrayList<>();
-        for (Element elem : method.getParams()) {
-            Operand c = (Operand) elem;
-            if (varList.contains(c.getName()))
-                varList.remove(c.getName());
-        }
-
-        //Setup sets
-        out = new HashMap<>();
-        gen = new HashMap<>();
-        kill = new HashMap<>();
-        visitedNodes = new ArrayList<>();
-        setup(method.getBeginNode().getSucc1()); // node 0 is not instruction
-
-        //Run LVA
-        updated = true;
-        while (updated) {
-            updated = false;
-            visitedNodes = new ArrayList<>();
-            run(method.getEndNode().getPredecessors().get(0));
+        varIndex = new HashMap<>();
+        for (Map.Entry<String, Descriptor> entry : method.getVarTable().entrySet()) {
+            VarScope scope = entry.getValue().getScope();
+            if (scope == VarScope.PARAMETER || scope == VarScope.FIELD || entry.getKey().equals("this") || params.contains(entry.getKey()))
+                continue;
+            varIndex.put(entry.getKey(), varList.size());
+            varList.add(entry.getKey());
         }
+        words = (varList.size() + 63) >>> 6;
 
-        conflicts = new HashMap<>();
-        visitedNodes = new ArrayList<>();
-        for (String var : varList)
-            conflicts.put(var, new ArrayList<>());
-        checkConflicts(method.getBeginNode().getSucc1());
+        setup();
+        run();
+        buildInterference();
     }
 
-    private void setup(Node node) {
-        if (node.getId() == 0 || visitedNodes.contains(node.getId()))
-            return; // Visited status necessary to avoid getting stuck in loops
-        visitedNodes.add(node.getId());
-
-        // Default values
-        out.put(node.getId(), new TreeSet<>());
-        kill.put(node.getId(), null);
-        gen.put(node.getId(), new TreeSet<>());
+    private void setup() {
+        int n = cfg.size();
+        gen = new long[n][words];
+        kill = new int[n];
+        for (int node = 0; node < n; node++) {
+            Instruction inst = cfg.getInstruction(node);
+            kill[node] = -1;
+            String def = DefUse.getDef(inst);
+            if (def != null && varIndex.containsKey(def))
+                kill[node] = varIndex.get(def);
+            for (String use : DefUse.getUses(inst)) {
+                Integer v = varIndex.get(use);
+                if (v != null)
+                    set(gen[node], v);
+            }
+        }
+    }
 
-        if (method.getInstr(node.getId()-1).getInstType() == InstructionType.ASSIGN) {
-            AssignInstruction inst = (AssignInstruction) method.getInstr(node.getId()-1);
-            Operand var = (Operand) inst.getDest(); // If var is being assigned define KILL[n]
-            kill.put(node.getId(), var.getName());
+    // Backward worklist over the reverse CFG: seeding in postorder visits successors before their predecessors
+    private void run() {
+        int n = cfg.size();
+        in = new long[n][words];
+        out = new long[n][words];
+
+        int[] queue = new int[n];
+        boolean[] queued = new boolean[n];
+        int head = 0, size = 0;
+        for (int node : cfg.getPostOrder()) {
+            queue[size++] = node;
+            queued[node] = true;
         }
-        for (String var : varList) { // Check if var is being used
-            if (method.getInstr(node.getId()-1).getInstType() == InstructionType.ASSIGN) {
-                AssignInstruction inst = (AssignInstruction) method.getInstr(node.getId()-1);
-                if (inst.getRhs().toString().contains(var + ".")) {
-                    Set<String> varSet = gen.get(node.getId());
-                    varSet.add(var); // If in assignment GEN[n] must be limited to right hand side
-                    gen.put(node.getId(),varSet);
-                }
-            }
-            else if(method.getInstr(node.getId()-1).toString().contains(var + ".")) {
-                Set<String> varSet = gen.get(node.getId());
-                varSet.add(var);
-                gen.put(node.getId(),varSet);
+
+        long[] newIn = new long[words];
+        while (size > 0) {
+            int node = queue[head];
+            head = (head + 1) % n;
+            size--;
+            queued[node] = false;
+
+            // OUT[n] = union of IN[s] over the successors
+            long[] o = out[node];
+            Arrays.fill(o, 0);
+            for (int s : cfg.getSuccessors(node))
+                for (int w = 0; w < words; w++)
+                    o[w] |= in[s][w];
+
+            // IN[n] = GEN[n] | (OUT[n] - KILL[n]), KILL is done before GEN: in "a = a" a is still needed
+            System.arraycopy(o, 0, newIn, 0, words);
+            if (kill[node] != -1)
+                clear(newIn, kill[node]);
+            for (int w = 0; w < words; w++)
+                newIn[w] |= gen[node][w];
+
+            if (!Arrays.equals(newIn, in[node])) {
+                System.arraycopy(newIn, 0, in[node], 0, words);
+                for (int p : cfg.getPredecessors(node))
+                    if (!queued[p]) {
+                        queue[(head + size++) % n] = p;
+                        queued[p] = true;
+                    }
             }
         }
-        if (node.getSuccessors() != null)
-            for (Node succ : node.getSuccessors())
-                setup(succ);
     }
 
-    private void run(Node node) {
-        if (node.getId() == 0 || visitedNodes.contains(node.getId()))
-            return; // Visited status necessary to avoid getting stuck in loops
-        visitedNodes.add(node.getId());
-
-        // IN[node]
-        Set<String> varsActive = new TreeSet<>();
-        if (!(node.getSuccessors() == null))
-            for (Node succ : node.getSuccessors()) {
-                if (succ.getId() == 0)  // First we get all variables that have yet to be assigned
-                    continue;   // at this point in the flow
-                for (String var : out.get(succ.getId()))
-                    if (!varsActive.contains(var))
-                        varsActive.add(var);
+    /*
+     * Every pair of variables live at the same point interferes. At a copy x := y both hold the same value, so that
+     * point alone does not make x and y interfere, which lets the coalescing merge them.
+     */
+    private void buildInterference() {
+        int vars = varList.size();
+        long[][] adjacency = new long[vars][words];
+        long[] live = new long[words];
+        copies = new ArrayList<>();
+        for (int node = 0; node < cfg.size(); node++) {
+            System.arraycopy(out[node], 0, live, 0, words);
+            int source = getCopySource(node);
+            if (source != -1)
+                copies.add(new int[]{kill[node], source, cfg.getLoopDepth(node)});
+            int dest = kill[node];
+            if (dest != -1)
+                clear(live, dest);
+            addClique(adjacency, live);
+            if (dest != -1) { // KILL must be added as well because of dead assignments
+                if (source != -1)
+                    clear(live, source);
+                for (int w = 0; w < words; w++)
+                    adjacency[dest][w] |= live[w];
+                for (int w = 0; w < words; w++) {
+                    long bits = live[w];
+                    while (bits != 0) {
+                        set(adjacency[(w << 6) + Long.numberOfTrailingZeros(bits)], dest);
+                        bits &= bits - 1;
+                    }
+                }
             }
-        // KILL[node]
-        String assign = kill.get(node.getId()); // KILL is done before GEN: in "a = a" a would still need to be assigned
-        if (assign != null && varsActive.contains(assign))
-            varsActive.remove(assign);
-        // GEN[node]
-        for (String var : gen.get(node.getId()))
-            if (!varsActive.contains(var))
-                varsActive.add(var);
-
-        // Check for changes, tree sets are ordered by default
-        if (updated) {}
-        else if (!varsActive.equals(out.get(node.getId())))
-            updated = true; // Code execution will stop when no OUT[n] is changed
-        out.put(node.getId(), varsActive);
-
-        // Continue execution
-        if (node.getPredecessors() != null)
-            for (Node pred : node.getPredecessors())
-                run(pred);
+        }
+        for (int v = 0; v < vars; v++)
+            clear(adjacency[v], v);
+        interference = new InterferenceGraph(varList, adjacency);
     }
 
-    private void checkConflicts(Node node) {
-        if (node.getId() == 0 || visitedNodes.contains(node.getId()))
-            return; // Visited status necessary to avoid getting stuck in loops
-        visitedNodes.add(node.getId());
-
-        List<String> varsActive = new ArrayList<>(); // I would turn this into a set, but inputs are already being checked
-        if (node.getSuccessors() != null)   // and the list is exported to other classes
-            for (Node succ : node.getSuccessors()) {
-                if (succ.getId() == 0)
-                    continue;
-                for (String var : out.get(succ.getId()))
-                    if (!varsActive.contains(var))
-                        varsActive.add(var); // Getting OUTs from successors
+    private void addClique(long[][] adjacency, long[] live) {
+        for (int w = 0; w < words; w++) {
+            long bits = live[w];
+            while (bits != 0) {
+                int v = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                for (int x = 0; x < words; x++)
+                    adjacency[v][x] |= live[x];
             }
-/*
-        for (String var : gen.get(node.getId()))
-            if (!varsActive.contains(var))
-                varsActive.add(var); // Getting GEN from itself
-
- */
-
-        if (kill.get(node.getId()) != null && !varsActive.contains(kill.get(node.getId())))
-            varsActive.add(kill.get(node.getId())); // KILL must be added as well because of dead assignments
-
-        for (String var : varsActive){
-            List<String> varConflict = conflicts.get(var);
-            for (String var2 : varsActive)
-                if (!var.equals(var2) && !varConflict.contains(var2))
-                    varConflict.add(var2);
-            conflicts.put(var, varConflict);
         }
+    }
+
+    // Index of y when the instruction is a local to local copy x := y of the same type, -1 otherwise
+    private int getCopySource(int node) {
+        if (kill[node] == -1)
+            return -1;
+        AssignInstruction assign = (AssignInstruction) cfg.getInstruction(node);
+        if (assign.getRhs().getInstType() != InstructionType.NOPER)
+            return -1;
+        Element rhs = ((SingleOpInstruction) assign.getRhs()).getSingleOperand();
+        if (rhs.isLiteral() || rhs instanceof ArrayOperand || !(rhs instanceof Operand operand))
+            return -1;
+        Integer source = varIndex.get(operand.getName());
+        if (source == null || source == kill[node]
+                || rhs.getType().getTypeOfElement() != assign.getDest().getType().getTypeOfElement())
+            return -1;
+        return source;
+    }
+
+    private static void set(long[] bits, int i) {
+        bits[i >>> 6] |= 1L << i;
+    }
+
+    private static void clear(long[] bits, int i) {
+        bits[i >>> 6] &= ~(1L << i);
+    }
+
+    /** Whether a variable is read after an instruction, variables outside the analysis always are. */
+    public boolean isLiveOut(int node, String var) {
+        Integer v = varIndex.get(var);
+        return v == null || (out[node][v >>> 6] & (1L << v)) != 0;
+    }
+
+    public FlowGraph getFlowGraph() {
+        return cfg;
+    }
+
+    public List<int[]> getCopies() {
+        return copies;
+    }
 
-        if (node.getSuccessors() != null)
-            for (Node succ : node.getSuccessors())
-                checkConflicts(succ);
+    public InterferenceGraph getInterferenceGraph() {
+        return interference;
     }
 
     public Map<String, List<String>> getConflictInfo() {
-        return conflicts;
+        return interference.toConflictMap();
     }
 }
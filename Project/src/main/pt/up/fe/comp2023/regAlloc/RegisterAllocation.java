@@ -1,44 +1,132 @@
 package pt.up.fe.comp2023.regAlloc;
 
+import org.specs.comp.ollir.Instruction;
 import org.specs.comp.ollir.Method;
-import pt.up.fe.comp.jmm.report.Report;
-import pt.up.fe.comp.jmm.report.ReportType;
-import pt.up.fe.comp.jmm.report.Stage;
+import pt.up.fe.comp2023.PhaseStats;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 public class RegisterAllocation {
     private Method method;
     private LVAnalysis lvAnalysis;
+    private Spilling spilling;
     private int offset;
     public RegisterAllocation(Method method) {
         this.method = method;
-        lvAnalysis = new LVAnalysis(method);
+        lvAnalysis = PhaseStats.measure("liveness", () -> new LVAnalysis(method));
 
         offset = method.getParams().size(); // Parameters
-        if (!method.getMethodName().equals("main")) // this
+        if (!method.isStaticMethod()) // this
             offset++;
     }
 
+    /** Uses as few registers as possible, returns the number of registers the method needs. */
     public int determineRegisters() {
-        int regNum = 0;
+        InterferenceGraph graph = lvAnalysis.getInterferenceGraph();
+        GraphColoring coloring = new GraphColoring(graph);
+
+        Coalescing coalescing = new Coalescing(graph, lvAnalysis.getCopies(), Math.max(1, coloring.getColorCount()));
+        if (coalescing.getMerged() > 0) {
+            GraphColoring coalesced = new GraphColoring(coalescing.getGraph());
+            if (coalesced.getColorCount() <= coloring.getColorCount()) {
+                apply(coalesced, coalescing);
+                return coalesced.getColorCount() + offset;
+            }
+        }
+        apply(coloring, null);
+        return coloring.getColorCount() + offset;
+    }
+
+    /**
+     * Tries to fit the method in regNum registers, falling back to optimistic coloring when the smallest-last
+     * ordering needs more, and spilling the cheapest variables to memory when that fails too.
+     * Copies are coalesced whenever the result still fits.
+     * Returns the registers used, or the minimum found when regNum is not enough even with spilling.
+     */
+    public int determineRegisters(int regNum) {
         while (true) {
-            if (allocate(regNum))
-                break;
-            regNum++;
+            InterferenceGraph graph = lvAnalysis.getInterferenceGraph();
+            GraphColoring coloring = new GraphColoring(graph);
+            if (regNum < offset) {
+                apply(coloring, null);
+                return coloring.getColorCount() + offset;
+            }
+
+            int k = regNum - offset;
+            Coalescing coalescing = new Coalescing(graph, lvAnalysis.getCopies(), Math.min(k, Math.max(1, coloring.getColorCount())));
+            if (coalescing.getMerged() > 0) {
+                GraphColoring coalesced = new GraphColoring(coalescing.getGraph());
+                if (coalesced.getColorCount() > k)
+                    coalesced = new GraphColoring(coalescing.getGraph(), k);
+                if (coalesced.isColored() && coalesced.getColorCount() <= k) {
+                    apply(coalesced, coalescing);
+                    return coalesced.getColorCount() + offset;
+                }
+            }
+            if (coloring.getColorCount() <= k) {
+                apply(coloring, null);
+                return coloring.getColorCount() + offset;
+            }
+
+            GraphColoring optimistic = new GraphColoring(graph, k, getSpillCosts());
+            if (optimistic.isColored()) {
+                apply(optimistic, null);
+                return optimistic.getColorCount() + offset;
+            }
+
+            List<String> spilled = new ArrayList<>();
+            for (String var : optimistic.getSpilled())
+                if (spilling.canSpill(var))
+                    spilled.add(var);
+            if (spilled.isEmpty()) {
+                apply(coloring, null);
+                return coloring.getColorCount() + offset;
+            }
+            spilling.spill(spilled);
+            lvAnalysis = PhaseStats.measure("liveness", () -> new LVAnalysis(method));
+        }
+    }
+
+    /*
+     * Spill cost of every node: its uses and definitions weighted by 10^(loop depth), so values used inside loops
+     * stay in registers. Variables that cannot be spilled get an infinite cost.
+     */
+    private double[] getSpillCosts() {
+        if (spilling == null)
+            spilling = new Spilling(method);
+        InterferenceGraph graph = lvAnalysis.getInterferenceGraph();
+        FlowGraph cfg = lvAnalysis.getFlowGraph();
+
+        double[] cost = new double[graph.size()];
+        for (int node = 0; node < cfg.size(); node++) {
+            Instruction inst = cfg.getInstruction(node);
+            double weight = Math.pow(10, Math.min(cfg.getLoopDepth(node), 8));
+            for (String use : DefUse.getUses(inst)) {
+                Integer v = graph.getIndex(use);
+                if (v != null)
+                    cost[v] += weight;
+            }
+            Integer def = DefUse.getDef(inst) == null ? null : graph.getIndex(DefUse.getDef(inst));
+            if (def != null)
+                cost[def] += weight;
         }
-        return regNum + offset;
+        for (int v = 0; v < graph.size(); v++)
+            if (!spilling.canSpill(graph.getName(v)))
+                cost[v] = Double.POSITIVE_INFINITY;
+        return cost;
     }
 
-    private boolean allocate(int regNum) {
-        GraphColoring coloring = new GraphColoring(regNum, lvAnalysis.getConflictInfo());
-        if (!coloring.isStackWorking() || !coloring.isRegisterWorking())
-            return false;
-        else {
-            Map<String, Integer> registerInfo = coloring.getRegisters();
-            for (String var : registerInfo.keySet())
-                method.getVarTable().get(var).setVirtualReg(registerInfo.get(var) + offset);
+    // Coalesced variables take the register of the node that stands for them
+    private void apply(GraphColoring coloring, Coalescing coalescing) {
+        InterferenceGraph graph = lvAnalysis.getInterferenceGraph();
+        Map<String, Integer> registerInfo = coloring.getRegisters();
+        for (int v = 0; v < graph.size(); v++) {
+            String var = graph.getName(v);
+            String node = coalescing == null ? var : graph.getName(coalescing.getAlias(v));
+            if (registerInfo.containsKey(node))
+                method.getVarTable().get(var).setVirtualReg(registerInfo.get(node) + offset);
         }
-        return true;
     }
 }
@@ -0,0 +1,204 @@
+package pt.up.fe.comp2023.regAlloc;
+
+import org.specs.comp.ollir.*;
+
+import java.util.*;
+
+/**
+ * Moves variables out of the local registers when a method does not fit in the register budget.
+ * Instance methods that cannot re-enter themselves keep spilled values in per-method fields, everything else keeps
+ * int and boolean values in an int[] spill area allocated on entry. Each use loads the value into a short-lived
+ * temporary right before the instruction and each definition stores it back right after.
+ */
+public class Spilling {
+    private final Method method;
+    private final HashMap<String, Descriptor> varTable;
+    private final boolean fieldBacked;
+    private final Set<String> temporaries;
+    private final Map<String, String> fields;     // field-backed: variable -> field
+    private final Map<String, Integer> slots;     // array-backed: variable -> index in the spill area
+    private String spillArea;
+    private LiteralElement spillAreaSize;
+    private int tempCounter = 0;
+
+    public Spilling(Method method) {
+        this.method = method;
+        this.varTable = method.getVarTable();
+        this.fieldBacked = !method.isStaticMethod() && !mayReenter(method);
+        this.temporaries = new HashSet<>();
+        this.fields = new HashMap<>();
+        this.slots = new HashMap<>();
+    }
+
+    // A call on any object of this class could come back to this method and clobber the fields of the same object
+    private static boolean mayReenter(Method method) {
+        String className = method.getOllirClass().getClassName();
+        for (Instruction inst : method.getInstructions()) {
+            if (inst.getInstType() == InstructionType.ASSIGN)
+                inst = ((AssignInstruction) inst).getRhs();
+            if (inst.getInstType() != InstructionType.CALL)
+                continue;
+            CallInstruction call = (CallInstruction) inst;
+            if (call.getInvocationType() == CallType.NEW || call.getInvocationType() == CallType.arraylength)
+                continue;
+            if (call.getInvocationType() == CallType.invokestatic
+                    && ((Operand) call.getFirstArg()).getName().equals(className))
+                return true;
+            List<Element> objects = new ArrayList<>();
+            objects.add(call.getFirstArg());
+            if (call.getListOfOperands() != null)
+                objects.addAll(call.getListOfOperands());
+            for (Element elem : objects) {
+                Type type = elem.getType();
+                if (type.getTypeOfElement() == ElementType.THIS
+                        || (type instanceof ClassType classType && classType.getName().equals(className)))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isFieldBacked() {
+        return fieldBacked;
+    }
+
+    /** Temporaries and the spill area itself never get spilled, arrays and objects only fit in fields. */
+    public boolean canSpill(String var) {
+        if (temporaries.contains(var) || var.equals(spillArea) || fields.containsKey(var) || slots.containsKey(var))
+            return false;
+        if (fieldBacked)
+            return true;
+        ElementType type = varTable.get(var).getVarType().getTypeOfElement();
+        return type == ElementType.INT32 || type == ElementType.BOOLEAN;
+    }
+
+    public void spill(Collection<String> vars) {
+        List<Instruction> prologue = new ArrayList<>();
+        for (String var : vars) {
+            if (fieldBacked)
+                fields.put(var, addField(var));
+            else {
+                if (spillArea == null)
+                    prologue.add(createSpillArea());
+                slots.put(var, slots.size());
+                spillAreaSize.setLiteral(String.valueOf(slots.size()));
+            }
+        }
+
+        Map<Instruction, List<String>> labels = new IdentityHashMap<>();
+        for (Map.Entry<String, Instruction> entry : method.getLabels().entrySet())
+            labels.computeIfAbsent(entry.getValue(), k -> new ArrayList<>()).add(entry.getKey());
+
+        Set<String> spilled = new HashSet<>(vars);
+        List<Instruction> result = new ArrayList<>(prologue); // Labels of the first instruction stay there, after the prologue
+        for (Instruction inst : method.getInstructions()) {
+            Map<String, String> temps = new HashMap<>();
+            List<Instruction> before = new ArrayList<>();
+            for (Operand use : DefUse.getUseOperands(inst)) {
+                if (!spilled.contains(use.getName()))
+                    continue;
+                String temp = temps.get(use.getName());
+                if (temp == null) {
+                    temp = newTemporary(use.getName());
+                    temps.put(use.getName(), temp);
+                    before.add(load(use.getName(), temp));
+                }
+                use.setName(temp);
+            }
+            List<Instruction> after = new ArrayList<>();
+            Operand def = DefUse.getDefOperand(inst);
+            if (def != null && spilled.contains(def.getName())) {
+                String var = def.getName();
+                String temp = temps.computeIfAbsent(var, this::newTemporary);
+                def.setName(temp);
+                after.add(store(var, temp));
+            }
+
+            if (!before.isEmpty() && labels.containsKey(inst))
+                for (String label : labels.get(inst))
+                    method.getLabels().put(label, before.get(0));
+            result.addAll(before);
+            result.add(inst);
+            result.addAll(after);
+        }
+
+        method.getInstructions().clear();
+        method.getInstructions().addAll(result);
+        for (String var : vars)
+            varTable.remove(var);
+    }
+
+    private String addField(String var) {
+        String base = "spill_" + method.getMethodName().replaceAll("\\W", "") + "_" + var;
+        String name = base;
+        Set<String> taken = new HashSet<>();
+        for (Field field : method.getOllirClass().getFields())
+            taken.add(field.getFieldName());
+        for (int i = 1; taken.contains(name); i++)
+            name = base + i;
+
+        Field field = new Field();
+        field.setFieldName(name);
+        field.setFieldType(varTable.get(var).getVarType());
+        field.setFieldAccessModifier(AccessModifiers.PRIVATE);
+        method.getOllirClass().addField(field);
+        return name;
+    }
+
+    private Instruction createSpillArea() {
+        spillArea = freshName("spill");
+        ArrayType type = new ArrayType();
+        type.setNumDimensions(1);
+        type.setTypeOfElements(ElementType.INT32);
+        varTable.put(spillArea, new Descriptor(VarScope.LOCAL, -1, type));
+
+        spillAreaSize = new LiteralElement("0", new Type(ElementType.INT32));
+        ArrayList<Element> size = new ArrayList<>();
+        size.add(spillAreaSize);
+        CallInstruction alloc = new CallInstruction(CallType.NEW, new Operand("array", type), size, type);
+        return new AssignInstruction(new Operand(spillArea, type), type, alloc);
+    }
+
+    private String newTemporary(String var) {
+        String temp = freshName("spill" + (++tempCounter) + "_");
+        varTable.put(temp, new Descriptor(VarScope.LOCAL, -1, varTable.get(var).getVarType()));
+        temporaries.add(temp);
+        return temp;
+    }
+
+    private String freshName(String base) {
+        String name = base;
+        for (int i = 1; varTable.containsKey(name); i++)
+            name = base + i;
+        return name;
+    }
+
+    private Instruction load(String var, String temp) {
+        Type type = varTable.get(var).getVarType();
+        Instruction rhs;
+        if (fieldBacked)
+            rhs = new GetFieldInstruction(thisOperand(), new Operand(fields.get(var), type), type);
+        else
+            rhs = new SingleOpInstruction(slotOperand(var));
+        return new AssignInstruction(new Operand(temp, type), type, rhs);
+    }
+
+    private Instruction store(String var, String temp) {
+        Type type = varTable.get(var).getVarType();
+        if (fieldBacked)
+            return new PutFieldInstruction(thisOperand(), new Operand(fields.get(var), type), new Operand(temp, type),
+                    new Type(ElementType.VOID));
+        return new AssignInstruction(slotOperand(var), type, new SingleOpInstruction(new Operand(temp, type)));
+    }
+
+    private Operand thisOperand() {
+        return new Operand("this", new ClassType(ElementType.THIS, method.getOllirClass().getClassName()));
+    }
+
+    private ArrayOperand slotOperand(String var) {
+        Type type = varTable.get(var).getVarType();
+        ArrayList<Element> index = new ArrayList<>();
+        index.add(new LiteralElement(String.valueOf(slots.get(var)), new Type(ElementType.INT32)));
+        return new ArrayOperand(spillArea, type, index);
+    }
+}
@@ -0,0 +1,427 @@
+package pt.up.fe.comp2023.ssa;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2023.regAlloc.DefUse;
+import pt.up.fe.comp2023.regAlloc.FlowGraph;
+
+import java.util.*;
+
+/**
+ * Sparse conditional constant propagation (Wegman and Zadeck) over a method in SSA form.
+ * Values only move down the lattice undefined -> constant -> unknown, and code is only evaluated once an edge into it
+ * is found to be executable, so constants survive loops and branches that can never be taken are ignored, all in a
+ * single pass over the SSA edges.
+ * <p>
+ * Afterwards every use of a constant becomes a literal, branches with a constant condition become gotos and the
+ * definitions left unread are removed. The code that became unreachable is left for dead code elimination.
+ */
+public class ConstantPropagation {
+    private final SSAForm ssa;
+    private final Method method;
+    private final FlowGraph cfg;
+    private final Map<String, Value> values = new HashMap<>();
+    private final Map<String, List<Integer>> users = new HashMap<>();     // Nodes whose instruction reads a name
+    private final Map<String, List<Integer>> phiUsers = new HashMap<>();  // Nodes with a phi reading a name
+    private final Map<Instruction, Integer> index = new IdentityHashMap<>();
+    private final boolean[] executable;
+    private final Set<Long> executableEdges = new HashSet<>();
+    private final Deque<int[]> flowWork = new ArrayDeque<>();
+    private final Deque<String> ssaWork = new ArrayDeque<>();
+    private int replaced = 0;
+    private int foldedBranches = 0;
+    private int labels = 0;
+
+    public ConstantPropagation(SSAForm ssa) {
+        this.ssa = ssa;
+        this.method = ssa.getMethod();
+        ssa.refresh();
+        this.cfg = ssa.getFlowGraph();
+        this.executable = new boolean[cfg.size()];
+
+        for (int node = 0; node < cfg.size(); node++) {
+            Instruction inst = cfg.getInstruction(node);
+            index.put(inst, node);
+            for (String use : DefUse.getUses(inst))
+                users.computeIfAbsent(use, k -> new ArrayList<>()).add(node);
+            for (Phi phi : ssa.getPhis(inst))
+                for (String arg : phi.getArgs().values())
+                    phiUsers.computeIfAbsent(arg, k -> new ArrayList<>()).add(node);
+        }
+    }
+
+    /** Propagates and rewrites the method, returns whether anything changed. */
+    public boolean run() {
+        if (cfg.size() == 0)
+            return false;
+        propagate();
+        rewrite();
+        return replaced > 0 || foldedBranches > 0;
+    }
+
+    public int getReplaced() {
+        return replaced;
+    }
+
+    public int getFoldedBranches() {
+        return foldedBranches;
+    }
+
+    private void propagate() {
+        flowWork.add(new int[]{-1, 0});
+        while (!flowWork.isEmpty() || !ssaWork.isEmpty()) {
+            while (!flowWork.isEmpty()) {
+                int[] edge = flowWork.poll();
+                if (!executableEdges.add(edgeKey(edge[0], edge[1])))
+                    continue;
+                visitPhis(edge[1]);
+                if (!executable[edge[1]]) {
+                    executable[edge[1]] = true;
+                    visit(edge[1]);
+                }
+            }
+            while (!ssaWork.isEmpty()) {
+                String name = ssaWork.poll();
+                for (int node : phiUsers.getOrDefault(name, List.of()))
+                    if (executable[node])
+                        visitPhis(node);
+                for (int node : users.getOrDefault(name, List.of()))
+                    if (executable[node])
+                        visit(node);
+            }
+        }
+    }
+
+    private long edgeKey(int pred, int succ) {
+        return (long) (pred + 1) * (cfg.size() + 1) + succ;
+    }
+
+    // A phi is the meet of the arguments coming through executable edges only
+    private void visitPhis(int node) {
+        Instruction inst = cfg.getInstruction(node);
+        for (Phi phi : ssa.getPhis(inst)) {
+            Value value = Value.UNDEFINED;
+            for (int p : cfg.getPredecessors(node))
+                if (executableEdges.contains(edgeKey(p, node)))
+                    value = value.meet(valueOf(argFor(phi, cfg.getInstruction(p))));
+            if (node == 0 && executableEdges.contains(edgeKey(-1, node)))
+                value = value.meet(valueOf(argFor(phi, null)));
+            lower(phi.getDest(), value);
+        }
+    }
+
+    private static String argFor(Phi phi, Instruction pred) {
+        String arg = phi.getArgs().get(pred);
+        return arg == null ? phi.getVariable() : arg;
+    }
+
+    private void visit(int node) {
+        Instruction inst = cfg.getInstruction(node);
+        if (inst instanceof AssignInstruction assign) {
+            Operand dest = DefUse.getDefOperand(assign);
+            if (dest != null)
+                lower(dest.getName(), evaluate(assign.getRhs()));
+        }
+
+        if (inst instanceof CondBranchInstruction branch) {
+            Value condition = evaluate(branch.getCondition());
+            if (condition.isUndefined())
+                return;
+            int target = index.get(method.getLabels().get(branch.getLabel()));
+            int[] successors = cfg.getSuccessors(node);
+            for (int s : successors)
+                if (!condition.isConstant() || successors.length == 1 || (condition.getConstant() != 0) == (s == target))
+                    flowWork.add(new int[]{node, s});
+            return;
+        }
+        for (int s : cfg.getSuccessors(node))
+            flowWork.add(new int[]{node, s});
+    }
+
+    private void lower(String name, Value value) {
+        Value old = values.getOrDefault(name, Value.UNDEFINED);
+        Value lowered = old.meet(value);
+        if (!lowered.equals(old)) {
+            values.put(name, lowered);
+            ssaWork.add(name);
+        }
+    }
+
+    // Parameters, locals read before a write, fields and this come from outside and are never constant
+    private Value valueOf(String name) {
+        if (ssa.getVariable(name) == null || ssa.isParameter(name) || name.equals(ssa.getVariable(name)))
+            return Value.UNKNOWN;
+        return values.getOrDefault(name, Value.UNDEFINED);
+    }
+
+    private Value valueOf(Element element) {
+        if (element instanceof LiteralElement literal) {
+            try {
+                return Value.of(Integer.parseInt(literal.getLiteral()));
+            } catch (NumberFormatException e) {
+                return Value.UNKNOWN;
+            }
+        }
+        if (element instanceof ArrayOperand || !(element instanceof Operand operand))
+            return Value.UNKNOWN;
+        return valueOf(operand.getName());
+    }
+
+    private Value evaluate(Instruction inst) {
+        switch (inst.getInstType()) {
+            case NOPER -> {
+                return valueOf(((SingleOpInstruction) inst).getSingleOperand());
+            }
+            case UNARYOPER -> {
+                UnaryOpInstruction unary = (UnaryOpInstruction) inst;
+                Value operand = valueOf(unary.getOperand());
+                if (!operand.isConstant())
+                    return operand;
+                return unary.getOperation().getOpType() == OperationType.NOTB ? Value.of(operand.getConstant() == 0 ? 1 : 0) : Value.UNKNOWN;
+            }
+            case BINARYOPER -> {
+                BinaryOpInstruction binary = (BinaryOpInstruction) inst;
+                Value left = valueOf(binary.getLeftOperand());
+                Value right = valueOf(binary.getRightOperand());
+                if (!left.isConstant() || !right.isConstant())
+                    return left.meet(right);
+                return fold(binary.getOperation().getOpType(), left.getConstant(), right.getConstant());
+            }
+            default -> {
+                return Value.UNKNOWN;
+            }
+        }
+    }
+
+    private static Value fold(OperationType op, int a, int b) {
+        return switch (op) {
+            case ADD -> Value.of(a + b);
+            case SUB -> Value.of(a - b);
+            case MUL -> Value.of(a * b);
+            case DIV -> b == 0 ? Value.UNKNOWN : Value.of(a / b);  // Left for the division to throw at run time
+            case SHL -> Value.of(a << b);
+            case SHR -> Value.of(a >> b);
+            case SHRR -> Value.of(a >>> b);
+            case AND, ANDB -> Value.of(a & b);
+            case OR, ORB -> Value.of(a | b);
+            case XOR -> Value.of(a ^ b);
+            case LTH -> Value.of(a < b ? 1 : 0);
+            case GTH -> Value.of(a > b ? 1 : 0);
+            case LTE -> Value.of(a <= b ? 1 : 0);
+            case GTE -> Value.of(a >= b ? 1 : 0);
+            case EQ -> Value.of(a == b ? 1 : 0);
+            case NEQ -> Value.of(a != b ? 1 : 0);
+            case NOTB -> Value.of(b == 0 ? 1 : 0);
+            default -> Value.UNKNOWN;
+        };
+    }
+
+    private void rewrite() {
+        for (int node = 0; node < cfg.size(); node++)
+            replaceUses(cfg.getInstruction(node));
+
+        for (int node = 0; node < cfg.size(); node++)
+            if (executable[node] && cfg.getInstruction(node) instanceof CondBranchInstruction branch)
+                foldBranch(node, branch);
+
+        // Constant definitions are dead once their uses are literals, unless a phi still takes them as an argument.
+        // The ones next to phis are left for dead code elimination, removing them would reshape the phi edges
+        Set<String> read = new HashSet<>();
+        for (Instruction inst : method.getInstructions())
+            read.addAll(DefUse.getUses(inst));
+        for (List<Phi> list : ssa.getAllPhis())
+            for (Phi phi : list)
+                read.addAll(phi.getArgs().values());
+
+        Set<String> kept = keptPhis();
+        for (List<Phi> list : ssa.getAllPhis())
+            list.removeIf(phi -> !kept.contains(phi.getDest()));
+
+        List<Instruction> instructions = method.getInstructions();
+        for (int i = instructions.size() - 2; i >= 0; i--) {
+            Instruction inst = instructions.get(i);
+            String def = DefUse.getDef(inst);
+            if (def == null || read.contains(def) || !values.getOrDefault(def, Value.UNKNOWN).isConstant() || nextToPhis(inst))
+                continue;
+            moveLabels(inst, instructions.get(i + 1));
+            instructions.remove(i);
+        }
+        ssa.refresh();
+    }
+
+    // Phi arguments can only be names, so a constant phi stays while a phi that is kept takes it as an argument
+    private Set<String> keptPhis() {
+        Map<String, Phi> byDest = new HashMap<>();
+        Deque<Phi> work = new ArrayDeque<>();
+        for (List<Phi> list : ssa.getAllPhis())
+            for (Phi phi : list) {
+                byDest.put(phi.getDest(), phi);
+                if (!values.getOrDefault(phi.getDest(), Value.UNKNOWN).isConstant())
+                    work.add(phi);
+            }
+
+        Set<String> kept = new HashSet<>();
+        for (Phi phi : work)
+            kept.add(phi.getDest());
+        while (!work.isEmpty())
+            for (String arg : work.poll().getArgs().values()) {
+                Phi phi = byDest.get(arg);
+                if (phi != null && kept.add(arg))
+                    work.add(phi);
+            }
+        return kept;
+    }
+
+    private boolean nextToPhis(Instruction inst) {
+        Integer node = index.get(inst);
+        if (node == null || !ssa.getPhis(inst).isEmpty())
+            return true;
+        for (int s : cfg.getSuccessors(node))
+            if (!ssa.getPhis(cfg.getInstruction(s)).isEmpty())
+                return true;
+        return false;
+    }
+
+    private Element constantFor(Element element) {
+        if (!(element instanceof Operand operand) || element instanceof ArrayOperand)
+            return element;
+        Value value = values.get(operand.getName());
+        if (value == null || !value.isConstant() || ssa.getVariable(operand.getName()) == null)
+            return element;
+        replaced++;
+        return new LiteralElement(String.valueOf(value.getConstant()), operand.getType());
+    }
+
+    // Array indexes and the objects of calls and field accesses stay variables, as the backend expects
+    private void replaceUses(Instruction inst) {
+        switch (inst.getInstType()) {
+            case ASSIGN -> replaceUses(((AssignInstruction) inst).getRhs());
+            case CALL -> {
+                List<Element> operands = ((CallInstruction) inst).getListOfOperands();
+                if (operands != null)
+                    operands.replaceAll(this::constantFor);
+            }
+            case PUTFIELD -> {
+                PutFieldInstruction put = (PutFieldInstruction) inst;
+                put.setThirdOperand(constantFor(put.getThirdOperand()));
+            }
+            case BINARYOPER -> {
+                BinaryOpInstruction binary = (BinaryOpInstruction) inst;
+                binary.setLeftOperand(constantFor(binary.getLeftOperand()));
+                binary.setRightOperand(constantFor(binary.getRightOperand()));
+            }
+            case UNARYOPER -> {
+                UnaryOpInstruction unary = (UnaryOpInstruction) inst;
+                unary.setOperand(constantFor(unary.getOperand()));
+            }
+            case NOPER -> {
+                SingleOpInstruction single = (SingleOpInstruction) inst;
+                single.setSingleOperand(constantFor(single.getSingleOperand()));
+            }
+            case BRANCH -> replaceUses(((CondBranchInstruction) inst).getCondition());
+            case RETURN -> {
+                ReturnInstruction ret = (ReturnInstruction) inst;
+                if (ret.hasReturnValue())
+                    ret.setOperand(constantFor(ret.getOperand()));
+            }
+            default -> {}
+        }
+    }
+
+    // A branch that always goes the same way becomes a goto, taking over its labels and its place in the phis
+    private void foldBranch(int node, CondBranchInstruction branch) {
+        Value condition = evaluate(branch.getCondition());
+        if (!condition.isConstant())
+            return;
+
+        String label = branch.getLabel();
+        if (condition.getConstant() == 0) {
+            if (node + 1 >= cfg.size())
+                return;
+            Instruction next = cfg.getInstruction(node + 1);
+            label = null;
+            for (Map.Entry<String, Instruction> entry : method.getLabels().entrySet())
+                if (entry.getValue() == next)
+                    label = entry.getKey();
+            if (label == null) {
+                do {
+                    label = "Const" + labels++;
+                } while (method.getLabels().containsKey(label));
+                method.addLabel(label, next);
+            }
+        }
+
+        GotoInstruction jump = new GotoInstruction(label);
+        List<Instruction> instructions = method.getInstructions();
+        instructions.set(instructions.indexOf(branch), jump);
+        moveLabels(branch, jump);
+        rekeyPhis(branch, jump);
+        foldedBranches++;
+    }
+
+    private void moveLabels(Instruction from, Instruction to) {
+        for (Map.Entry<String, Instruction> label : method.getLabels().entrySet())
+            if (label.getValue() == from)
+                label.setValue(to);
+    }
+
+    // Hands the phis and the phi arguments of an instruction to the one taking its place
+    private void rekeyPhis(Instruction from, Instruction to) {
+        for (List<Phi> list : ssa.getAllPhis())
+            for (Phi phi : list) {
+                String arg = phi.getArgs().remove(from);
+                if (arg != null)
+                    phi.getArgs().put(to, arg);
+            }
+        ssa.getPhis(to).addAll(ssa.removePhis(from));
+    }
+
+    /** Lattice value: undefined until proven otherwise, then one constant, then unknown. */
+    private static final class Value {
+        static final Value UNDEFINED = new Value(0, 0);
+        static final Value UNKNOWN = new Value(2, 0);
+
+        private final int level;
+        private final int constant;
+
+        private Value(int level, int constant) {
+            this.level = level;
+            this.constant = constant;
+        }
+
+        static Value of(int constant) {
+            return new Value(1, constant);
+        }
+
+        boolean isUndefined() {
+            return level == 0;
+        }
+
+        boolean isConstant() {
+            return level == 1;
+        }
+
+        int getConstant() {
+            return constant;
+        }
+
+        Value meet(Value other) {
+            if (isUndefined())
+                return other;
+            if (other.isUndefined())
+                return this;
+            if (isConstant() && other.isConstant() && constant == other.constant)
+                return this;
+            return UNKNOWN;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Value value && level == value.level && constant == value.constant;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * level + constant;
+        }
+    }
+}
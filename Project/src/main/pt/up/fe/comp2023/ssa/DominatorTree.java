@@ -0,0 +1,210 @@
+package pt.up.fe.comp2023.ssa;
+
+import pt.up.fe.comp2023.regAlloc.FlowGraph;
+
+import java.util.*;
+
+/**
+ * Dominator tree and dominance frontiers of a flow graph, rooted at its first instruction.
+ * Immediate dominators come from the iterative algorithm of Cooper, Harvey and Kennedy over the reverse postorder,
+ * which converges in a couple of passes on the reducible graphs the compiler produces.
+ * Instructions that cannot be reached from the entry have no dominator and are left out of the tree.
+ */
+public class DominatorTree {
+    private final FlowGraph cfg;
+    private final int[] idom;           // -1 for the entry and unreachable nodes
+    private final int[] postNumber;     // -1 for unreachable nodes
+    private final int[] reversePostOrder;
+    private final int[][] children;
+    private final int[] preIndex;       // Dominator tree DFS interval, for constant time dominance checks
+    private final int[] postIndex;
+    private int[][] frontier;
+
+    public DominatorTree(FlowGraph cfg) {
+        this.cfg = cfg;
+        int n = cfg.size();
+        this.idom = new int[n];
+        this.postNumber = new int[n];
+        Arrays.fill(idom, -1);
+        Arrays.fill(postNumber, -1);
+
+        reversePostOrder = computeReversePostOrder();
+        computeIdoms();
+
+        int[] childCount = new int[n];
+        for (int node = 0; node < n; node++)
+            if (idom[node] != -1)
+                childCount[idom[node]]++;
+        children = new int[n][];
+        for (int node = 0; node < n; node++)
+            children[node] = new int[childCount[node]];
+        int[] fill = new int[n];
+        for (int node : reversePostOrder)
+            if (idom[node] != -1)
+                children[idom[node]][fill[idom[node]]++] = node;
+
+        preIndex = new int[n];
+        postIndex = new int[n];
+        numberTree();
+    }
+
+    private int[] computeReversePostOrder() {
+        int n = cfg.size();
+        if (n == 0)
+            return new int[0];
+        int[] order = new int[n];
+        int count = 0;
+        boolean[] visited = new boolean[n];
+        int[] stack = new int[n];
+        int[] edge = new int[n];
+        int top = 0;
+        stack[0] = 0;
+        visited[0] = true;
+        while (top >= 0) {
+            int node = stack[top];
+            int[] succ = cfg.getSuccessors(node);
+            if (edge[top] < succ.length) {
+                int s = succ[edge[top]++];
+                if (!visited[s]) {
+                    visited[s] = true;
+                    stack[++top] = s;
+                    edge[top] = 0;
+                }
+            } else {
+                postNumber[node] = count;
+                order[count++] = node;
+                top--;
+            }
+        }
+
+        int[] reverse = new int[count];
+        for (int i = 0; i < count; i++)
+            reverse[i] = order[count - 1 - i];
+        return reverse;
+    }
+
+    private void computeIdoms() {
+        if (reversePostOrder.length == 0)
+            return;
+        int entry = reversePostOrder[0];
+        idom[entry] = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < reversePostOrder.length; i++) {
+                int node = reversePostOrder[i];
+                int newIdom = -1;
+                for (int p : cfg.getPredecessors(node)) {
+                    if (idom[p] == -1)
+                        continue;
+                    newIdom = newIdom == -1 ? p : intersect(p, newIdom);
+                }
+                if (newIdom != idom[node]) {
+                    idom[node] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+        idom[entry] = -1;
+    }
+
+    private int intersect(int a, int b) {
+        while (a != b) {
+            while (postNumber[a] < postNumber[b])
+                a = idom[a];
+            while (postNumber[b] < postNumber[a])
+                b = idom[b];
+        }
+        return a;
+    }
+
+    private void numberTree() {
+        if (reversePostOrder.length == 0)
+            return;
+        int n = cfg.size();
+        int[] stack = new int[n];
+        int[] next = new int[n];
+        int counter = 0;
+        int top = 0;
+        stack[0] = reversePostOrder[0];
+        preIndex[stack[0]] = counter++;
+        while (top >= 0) {
+            int node = stack[top];
+            if (next[top] < children[node].length) {
+                int child = children[node][next[top]++];
+                preIndex[child] = counter++;
+                stack[++top] = child;
+                next[top] = 0;
+            } else {
+                postIndex[node] = counter++;
+                top--;
+            }
+        }
+    }
+
+    /*
+     * Dominance frontiers as in Cooper, Harvey and Kennedy: every join node is in the frontier of each node on the
+     * dominator tree path from its predecessors up to, but excluding, its immediate dominator.
+     */
+    private int[][] computeFrontiers() {
+        int n = cfg.size();
+        List<Set<Integer>> sets = new ArrayList<>(n);
+        for (int node = 0; node < n; node++)
+            sets.add(new LinkedHashSet<>());
+
+        for (int node : reversePostOrder) {
+            int[] preds = cfg.getPredecessors(node);
+            if (preds.length < 2 && !(node == getEntry() && preds.length > 0))
+                continue;
+            for (int p : preds) {
+                if (!isReachable(p))
+                    continue;
+                int runner = p;
+                while (runner != -1 && runner != idom[node]) {
+                    sets.get(runner).add(node);
+                    runner = idom[runner];
+                }
+            }
+        }
+
+        int[][] result = new int[n][];
+        for (int node = 0; node < n; node++)
+            result[node] = sets.get(node).stream().mapToInt(Integer::intValue).toArray();
+        return result;
+    }
+
+    public int getEntry() {
+        return reversePostOrder.length == 0 ? -1 : reversePostOrder[0];
+    }
+
+    public boolean isReachable(int node) {
+        return postNumber[node] != -1;
+    }
+
+    /** Immediate dominator, -1 for the entry and for unreachable nodes. */
+    public int getIdom(int node) {
+        return idom[node];
+    }
+
+    public int[] getChildren(int node) {
+        return children[node];
+    }
+
+    /** Reachable nodes in reverse postorder, the natural order for forward problems. */
+    public int[] getReversePostOrder() {
+        return reversePostOrder;
+    }
+
+    public int[] getFrontier(int node) {
+        if (frontier == null)
+            frontier = computeFrontiers();
+        return frontier[node];
+    }
+
+    /** Whether a dominates b (every node dominates itself). */
+    public boolean dominates(int a, int b) {
+        if (!isReachable(a) || !isReachable(b))
+            return false;
+        return preIndex[a] <= preIndex[b] && postIndex[b] <= postIndex[a];
+    }
+}
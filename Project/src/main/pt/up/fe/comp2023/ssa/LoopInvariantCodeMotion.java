@@ -0,0 +1,304 @@
+package pt.up.fe.comp2023.ssa;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2023.regAlloc.DefUse;
+import pt.up.fe.comp2023.regAlloc.FlowGraph;
+
+import java.util.*;
+
+/**
+ * Loop-invariant code motion over a method in SSA form.
+ * Natural loops are found from the back edges of the dominator tree and handled innermost first, so whatever leaves an
+ * inner loop can leave the enclosing one too. A definition is invariant when everything it reads is defined outside the
+ * loop or is invariant itself, and it moves to a preheader placed on the way into the loop header.
+ * <p>
+ * Hoisted code runs even when the loop body would not, so only pure computations move: arithmetic, getfield
+ * on this when the loop neither writes the field nor calls methods, and arraylength. arraylength and divisions can
+ * throw, they only move when they run at the start of every entry into the loop.
+ */
+public class LoopInvariantCodeMotion {
+    private final SSAForm ssa;
+    private final Method method;
+    private int hoisted = 0;
+    private int headerLabels = 0;
+
+    public LoopInvariantCodeMotion(SSAForm ssa) {
+        this.ssa = ssa;
+        this.method = ssa.getMethod();
+    }
+
+    public boolean run() {
+        Set<Instruction> done = Collections.newSetFromMap(new IdentityHashMap<>());
+        while (true) {
+            ssa.refresh();
+            FlowGraph cfg = ssa.getFlowGraph();
+            NaturalLoop next = null;
+            for (NaturalLoop loop : NaturalLoop.find(ssa))
+                if (!done.contains(cfg.getInstruction(loop.header))) {
+                    next = loop;
+                    break;
+                }
+            if (next == null)
+                break;
+            done.add(cfg.getInstruction(next.header));
+            Instruction newHeader = hoist(next);
+            if (newHeader != null)
+                done.add(newHeader);
+        }
+        ssa.refresh();
+        return hoisted > 0;
+    }
+
+    public int getHoisted() {
+        return hoisted;
+    }
+
+    // Moves the invariant definitions of a loop to its preheader, returns the header afterwards or null if unchanged
+    private Instruction hoist(NaturalLoop loop) {
+        FlowGraph cfg = ssa.getFlowGraph();
+        DominatorTree domTree = ssa.getDominatorTree();
+        List<Instruction> instructions = method.getInstructions();
+        int n = cfg.size();
+
+        Set<String> definedInLoop = new HashSet<>();
+        Set<String> fieldsWritten = new HashSet<>();
+        boolean calls = false;
+        List<Integer> exits = new ArrayList<>();
+        for (int node = 0; node < n; node++) {
+            if (!loop.body[node])
+                continue;
+            Instruction inst = cfg.getInstruction(node);
+            String def = DefUse.getDef(inst);
+            if (def != null)
+                definedInLoop.add(def);
+            for (Phi phi : ssa.getPhis(inst))
+                definedInLoop.add(phi.getDest());
+            if (inst instanceof PutFieldInstruction put)
+                fieldsWritten.add(((Operand) put.getSecondOperand()).getName());
+            if (mayWriteFields(inst))
+                calls = true;
+            for (int s : cfg.getSuccessors(node))
+                if (!loop.body[s]) {
+                    exits.add(node);
+                    break;
+                }
+        }
+
+        // The preheader goes right before the header, unless the loop falls into its header from above. Then it goes
+        // before the single goto that enters the loop, or nowhere
+        Instruction header = cfg.getInstruction(loop.header);
+        List<Instruction> outside = new ArrayList<>();
+        for (int p : cfg.getPredecessors(loop.header))
+            if (!loop.body[p])
+                outside.add(cfg.getInstruction(p));
+        if (loop.header == 0)
+            outside.add(null);
+        Instruction entryJump = null;
+        if (loop.header > 0 && loop.body[loop.header - 1] && Arrays.stream(cfg.getSuccessors(loop.header - 1)).anyMatch(s -> s == loop.header)) {
+            if (outside.size() != 1 || !(outside.get(0) instanceof GotoInstruction jump))
+                return null;
+            entryJump = jump;
+        }
+
+        // A moved instruction hands its phis to the next one, which must not have phis of its own
+        List<Instruction> moved = new ArrayList<>();
+        boolean[] holdsPhis = new boolean[n];
+        for (int node = 0; node < n; node++)
+            holdsPhis[node] = !ssa.getPhis(cfg.getInstruction(node)).isEmpty();
+        for (int node : domTree.getReversePostOrder()) {
+            if (!loop.body[node])
+                continue;
+            Instruction inst = cfg.getInstruction(node);
+            if (!(inst instanceof AssignInstruction assign) || DefUse.getDefOperand(inst) == null || node + 1 >= n)
+                continue;
+            if (holdsPhis[node] && holdsPhis[node + 1])
+                continue;
+            boolean invariant = true;
+            for (Operand use : DefUse.getUseOperands(inst))
+                if (definedInLoop.contains(use.getName()))
+                    invariant = false;
+            if (!invariant || !canHoist(assign.getRhs(), fieldsWritten, calls))
+                continue;
+            if (mayThrow(assign.getRhs()) && !runsOnEntry(node, loop, exits))
+                continue;
+            moved.add(inst);
+            definedInLoop.remove(DefUse.getDef(inst));
+            holdsPhis[node + 1] |= holdsPhis[node];
+        }
+        if (moved.isEmpty())
+            return null;
+
+        Map<Instruction, List<Instruction>> preds = new IdentityHashMap<>();
+        for (int node = 0; node < n; node++) {
+            List<Instruction> list = new ArrayList<>();
+            for (int p : cfg.getPredecessors(node))
+                list.add(cfg.getInstruction(p));
+            preds.put(cfg.getInstruction(node), list);
+        }
+        for (Instruction inst : moved)
+            header = unlink(inst, header, preds);
+
+        if (entryJump != null) {
+            instructions.addAll(instructions.indexOf(entryJump), moved);
+            moveLabels(entryJump, moved.get(0));
+            ssa.getPhis(moved.get(0)).addAll(ssa.removePhis(entryJump));
+        } else
+            placeBeforeHeader(moved, header, outside, preds);
+        hoisted += moved.size();
+        return header;
+    }
+
+    /*
+     * Takes a definition out of the code, handing its labels and phis to the instruction after it, which also inherits
+     * its predecessors. Returns the loop header, which moves along when the header itself is taken out.
+     */
+    private Instruction unlink(Instruction inst, Instruction header, Map<Instruction, List<Instruction>> preds) {
+        List<Instruction> instructions = method.getInstructions();
+        int at = instructions.indexOf(inst);
+        Instruction next = instructions.get(at + 1);
+        moveLabels(inst, next);
+        ssa.getPhis(next).addAll(ssa.removePhis(inst));
+        for (Phi phi : ssa.getPhis(next)) {
+            String arg = phi.getArgs().remove(inst);
+            if (arg != null)
+                for (Instruction p : preds.get(inst))
+                    phi.getArgs().put(p, arg);
+        }
+        List<Instruction> nextPreds = preds.get(next);
+        nextPreds.remove(inst);
+        nextPreds.addAll(preds.get(inst));
+        instructions.remove(at);
+        return inst == header ? next : header;
+    }
+
+    /*
+     * Puts the preheader above the header. Jumps from outside the loop now land on the preheader, taking the label
+     * of the header with them, while the back edges keep going to the header under a new LoopHeader label. The header
+     * phis get a single argument from the preheader, merged in a preheader phi when the ways in disagree.
+     */
+    private void placeBeforeHeader(List<Instruction> preheader, Instruction header, List<Instruction> outside,
+                                   Map<Instruction, List<Instruction>> preds) {
+        List<Instruction> instructions = method.getInstructions();
+        Set<Instruction> outsideSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        outsideSet.addAll(outside);
+
+        for (Map.Entry<String, Instruction> label : new ArrayList<>(method.getLabels().entrySet())) {
+            if (label.getValue() != header)
+                continue;
+            List<Instruction> inside = new ArrayList<>();
+            boolean fromOutside = false;
+            for (Instruction jump : preds.get(header))
+                if (label.getKey().equals(getJumpLabel(jump))) {
+                    if (outsideSet.contains(jump))
+                        fromOutside = true;
+                    else
+                        inside.add(jump);
+                }
+            if (!fromOutside)
+                continue;
+            label.setValue(preheader.get(0));
+            if (!inside.isEmpty()) {
+                String loopLabel;
+                do {
+                    loopLabel = "LoopHeader" + headerLabels++;
+                } while (method.getLabels().containsKey(loopLabel));
+                method.addLabel(loopLabel, header);
+                for (Instruction jump : inside)
+                    setJumpLabel(jump, loopLabel);
+            }
+        }
+
+        Instruction last = preheader.get(preheader.size() - 1);
+        for (Phi phi : ssa.getPhis(header)) {
+            Map<Instruction, String> args = new IdentityHashMap<>();
+            for (Instruction p : outside)
+                args.put(p, phi.getArgs().containsKey(p) ? phi.getArgs().remove(p) : phi.getVariable());
+            Set<String> values = new HashSet<>(args.values());
+            if (values.size() == 1)
+                phi.getArgs().put(last, values.iterator().next());
+            else {
+                Phi merge = new Phi(phi.getVariable());
+                merge.setDest(ssa.newVersion(phi.getVariable()));
+                merge.getArgs().putAll(args);
+                ssa.getPhis(preheader.get(0)).add(merge);
+                phi.getArgs().put(last, merge.getDest());
+            }
+        }
+        instructions.addAll(instructions.indexOf(header), preheader);
+    }
+
+    private static String getJumpLabel(Instruction inst) {
+        if (inst instanceof GotoInstruction jump)
+            return jump.getLabel();
+        if (inst instanceof CondBranchInstruction branch)
+            return branch.getLabel();
+        return null;
+    }
+
+    private static void setJumpLabel(Instruction inst, String label) {
+        if (inst instanceof GotoInstruction jump)
+            jump.setLabel(label);
+        else if (inst instanceof CondBranchInstruction branch)
+            branch.setLabel(label);
+    }
+
+    private void moveLabels(Instruction from, Instruction to) {
+        for (Map.Entry<String, Instruction> label : method.getLabels().entrySet())
+            if (label.getValue() == from)
+                label.setValue(to);
+    }
+
+    // Calls into other code may write any field of this object
+    private static boolean mayWriteFields(Instruction inst) {
+        if (inst instanceof AssignInstruction assign)
+            return mayWriteFields(assign.getRhs());
+        if (!(inst instanceof CallInstruction call))
+            return false;
+        return call.getInvocationType() != CallType.arraylength && call.getInvocationType() != CallType.NEW
+                && call.getInvocationType() != CallType.ldc;
+    }
+
+    // Copies and constants stay, moving them only stretches a live range into the loop for the same cost
+    private static boolean canHoist(Instruction rhs, Set<String> fieldsWritten, boolean calls) {
+        return switch (rhs.getInstType()) {
+            case BINARYOPER -> !(((BinaryOpInstruction) rhs).getLeftOperand() instanceof ArrayOperand)
+                    && !(((BinaryOpInstruction) rhs).getRightOperand() instanceof ArrayOperand);
+            case UNARYOPER -> !(((UnaryOpInstruction) rhs).getOperand() instanceof ArrayOperand);
+            case CALL -> ((CallInstruction) rhs).getInvocationType() == CallType.arraylength;
+            case GETFIELD -> {
+                GetFieldInstruction get = (GetFieldInstruction) rhs;
+                yield !calls && get.getFirstOperand() instanceof Operand object && object.getName().equals("this")
+                        && !fieldsWritten.contains(((Operand) get.getSecondOperand()).getName());
+            }
+            default -> false;
+        };
+    }
+
+    private static boolean mayThrow(Instruction rhs) {
+        if (rhs instanceof CallInstruction)
+            return true;
+        if (!(rhs instanceof BinaryOpInstruction binary) || binary.getOperation().getOpType() != OperationType.DIV)
+            return false;
+        return !(binary.getRightOperand() instanceof LiteralElement literal) || literal.getLiteral().equals("0");
+    }
+
+    /*
+     * Whether an instruction runs every time the loop is entered, before anything with a visible effect: it dominates
+     * every exit and only side effect free instructions lead to it from the header.
+     */
+    private boolean runsOnEntry(int node, NaturalLoop loop, List<Integer> exits) {
+        DominatorTree domTree = ssa.getDominatorTree();
+        if (exits.isEmpty())
+            return false;
+        for (int exit : exits)
+            if (!domTree.dominates(node, exit))
+                return false;
+        for (int dom = domTree.getIdom(node); dom != -1 && loop.body[dom]; dom = domTree.getIdom(dom)) {
+            Instruction inst = ssa.getFlowGraph().getInstruction(dom);
+            if (inst instanceof PutFieldInstruction || mayWriteFields(inst)
+                    || (inst instanceof AssignInstruction assign && assign.getDest() instanceof ArrayOperand))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,56 @@
+package pt.up.fe.comp2023.ssa;
+
+import pt.up.fe.comp2023.regAlloc.FlowGraph;
+
+import java.util.*;
+
+/**
+ * Natural loop of a method in SSA form: a header and the nodes that reach one of its back edges without passing
+ * through it. Loops sharing a header are merged into one.
+ */
+class NaturalLoop {
+    final int header;
+    final boolean[] body;
+    int size = 0;
+
+    private NaturalLoop(int header, int n) {
+        this.header = header;
+        this.body = new boolean[n];
+    }
+
+    /** Loops of the current flow graph, smallest (innermost) first. */
+    static List<NaturalLoop> find(SSAForm ssa) {
+        FlowGraph cfg = ssa.getFlowGraph();
+        DominatorTree domTree = ssa.getDominatorTree();
+        List<NaturalLoop> loops = new ArrayList<>();
+        for (int header : domTree.getReversePostOrder()) {
+            NaturalLoop loop = null;
+            Deque<Integer> work = new ArrayDeque<>();
+            for (int p : cfg.getPredecessors(header)) {
+                if (!domTree.dominates(header, p))
+                    continue;
+                if (loop == null) {
+                    loop = new NaturalLoop(header, cfg.size());
+                    loop.body[header] = true;
+                    loop.size = 1;
+                }
+                if (!loop.body[p]) {
+                    loop.body[p] = true;
+                    loop.size++;
+                    work.add(p);
+                }
+            }
+            while (!work.isEmpty())
+                for (int p : cfg.getPredecessors(work.poll()))
+                    if (!loop.body[p] && domTree.isReachable(p)) {
+                        loop.body[p] = true;
+                        loop.size++;
+                        work.add(p);
+                    }
+            if (loop != null)
+                loops.add(loop);
+        }
+        loops.sort(Comparator.comparingInt(loop -> loop.size));
+        return loops;
+    }
+}
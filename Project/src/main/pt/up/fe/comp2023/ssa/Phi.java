@@ -0,0 +1,44 @@
+package pt.up.fe.comp2023.ssa;
+
+import org.specs.comp.ollir.Instruction;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Phi function at the start of a join instruction.
+ * OLLIR has no phi instruction, so phis live beside the instruction list until the method leaves SSA form.
+ * Arguments are keyed by the predecessor instruction the value flows from, null standing for the method entry.
+ */
+public class Phi {
+    private final String variable;
+    private String dest;
+    private final Map<Instruction, String> args = new IdentityHashMap<>();
+
+    public Phi(String variable) {
+        this.variable = variable;
+        this.dest = variable;
+    }
+
+    /** Name of the variable before renaming. */
+    public String getVariable() {
+        return variable;
+    }
+
+    public String getDest() {
+        return dest;
+    }
+
+    public void setDest(String dest) {
+        this.dest = dest;
+    }
+
+    public Map<Instruction, String> getArgs() {
+        return args;
+    }
+
+    @Override
+    public String toString() {
+        return dest + " := phi" + args.values();
+    }
+}
@@ -0,0 +1,663 @@
+package pt.up.fe.comp2023.ssa;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2023.regAlloc.DefUse;
+import pt.up.fe.comp2023.regAlloc.FlowGraph;
+
+import java.util.*;
+
+/**
+ * Puts a method in static single assignment form and takes it back out.
+ * Every definition of a local gets a fresh name (var$N) and the merges are recorded as phis beside the instruction
+ * list, placed on the iterated dominance frontiers and pruned of the ones nothing reads.
+ * Parameters and locals read before any write keep their original name as their first version.
+ * <p>
+ * Passes running in between may rewrite instructions freely, as long as they keep the phis of the join instructions
+ * they touch up to date. destruct() then merges every phi with its arguments whenever their live ranges do not
+ * overlap, and only the arguments left over become copies on the incoming edges.
+ */
+public class SSAForm {
+    private final Method method;
+    private final Set<String> params = new HashSet<>();
+    private final Map<String, String> origin = new HashMap<>();    // SSA name -> variable it is a version of
+    private final Map<String, Integer> versions = new HashMap<>();
+    private final Map<Instruction, List<Phi>> phis = new IdentityHashMap<>();
+    private FlowGraph cfg;
+    private DominatorTree domTree;
+    private BitSet[] liveIn;
+    private BitSet[] liveOut;
+    private BitSet[] liveMid;
+    private int nextReg;
+    private int edgeLabels = 0;
+
+    public SSAForm(Method method) {
+        this.method = method;
+        for (Element elem : method.getParams())
+            params.add(((Operand) elem).getName());
+        for (Map.Entry<String, Descriptor> entry : method.getVarTable().entrySet()) {
+            nextReg = Math.max(nextReg, entry.getValue().getVirtualReg() + 1);
+            if (isVariable(entry.getKey(), entry.getValue()))
+                origin.put(entry.getKey(), entry.getKey());
+        }
+
+        this.cfg = new FlowGraph(method);
+        this.domTree = new DominatorTree(cfg);
+        placePhis();
+        rename();
+        prunePhis();
+    }
+
+    private static boolean isVariable(String name, Descriptor descriptor) {
+        return descriptor.getScope() != VarScope.FIELD && !name.equals("this");
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public FlowGraph getFlowGraph() {
+        return cfg;
+    }
+
+    public DominatorTree getDominatorTree() {
+        return domTree;
+    }
+
+    /** Rebuilds the flow graph and the dominator tree, after a pass changes the control flow. */
+    public void refresh() {
+        cfg = new FlowGraph(method);
+        domTree = new DominatorTree(cfg);
+    }
+
+    /** Phis at the start of an instruction, the list can be changed in place. */
+    public List<Phi> getPhis(Instruction inst) {
+        return phis.computeIfAbsent(inst, k -> new ArrayList<>());
+    }
+
+    /** Takes the phis away from an instruction, returning them. */
+    public List<Phi> removePhis(Instruction inst) {
+        List<Phi> removed = phis.remove(inst);
+        return removed == null ? new ArrayList<>() : removed;
+    }
+
+    public Collection<List<Phi>> getAllPhis() {
+        return phis.values();
+    }
+
+    /** Variable an SSA name is a version of, null for names that are not versioned (fields, this). */
+    public String getVariable(String name) {
+        return origin.get(name);
+    }
+
+    public boolean isParameter(String name) {
+        return params.contains(name);
+    }
+
+    // Minimal placement: a phi for v at the iterated dominance frontier of the instructions that define v
+    private void placePhis() {
+        Map<String, List<Integer>> defSites = new HashMap<>();
+        for (int node : domTree.getReversePostOrder()) {
+            String def = DefUse.getDef(cfg.getInstruction(node));
+            if (def != null && origin.containsKey(def))
+                defSites.computeIfAbsent(def, k -> new ArrayList<>()).add(node);
+        }
+
+        int n = cfg.size();
+        int[] hasPhi = new int[n];
+        int[] inWork = new int[n];
+        int iteration = 0;
+        Deque<Integer> work = new ArrayDeque<>();
+        for (Map.Entry<String, List<Integer>> entry : defSites.entrySet()) {
+            String var = entry.getKey();
+            iteration++;
+            for (int node : entry.getValue()) {
+                inWork[node] = iteration;
+                work.add(node);
+            }
+            while (!work.isEmpty()) {
+                int node = work.poll();
+                for (int join : domTree.getFrontier(node)) {
+                    if (hasPhi[join] == iteration)
+                        continue;
+                    hasPhi[join] = iteration;
+                    Phi phi = new Phi(var);
+                    for (int p : cfg.getPredecessors(join))
+                        phi.getArgs().put(cfg.getInstruction(p), var);
+                    if (join == domTree.getEntry())
+                        phi.getArgs().put(null, var);
+                    getPhis(cfg.getInstruction(join)).add(phi);
+                    if (inWork[join] != iteration) {
+                        inWork[join] = iteration;
+                        work.add(join);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Fresh version of a variable, for passes that add definitions. */
+    String newVersion(String var) {
+        Descriptor original = method.getVarTable().get(var);
+        String name;
+        do {
+            int version = versions.merge(var, 1, Integer::sum);
+            name = var + "$" + version;
+        } while (method.getVarTable().containsKey(name));
+        method.getVarTable().put(name, new Descriptor(VarScope.LOCAL, nextReg++, original.getVarType()));
+        origin.put(name, var);
+        return name;
+    }
+
+    /** New local variable for values a pass introduces, its SSA names come from newVersion. */
+    String newVariable(String base, Type type) {
+        String name = base;
+        for (int n = 0; method.getVarTable().containsKey(name); n++)
+            name = base + n;
+        method.getVarTable().put(name, new Descriptor(VarScope.LOCAL, nextReg++, type));
+        origin.put(name, name);
+        return name;
+    }
+
+    // Walks the dominator tree keeping the current version of every variable on a stack
+    private void rename() {
+        if (domTree.getEntry() == -1)
+            return;
+        Map<String, Deque<String>> current = new HashMap<>();
+        for (String var : new ArrayList<>(origin.keySet())) {
+            Deque<String> stack = new ArrayDeque<>();
+            stack.push(var);
+            current.put(var, stack);
+        }
+
+        Deque<int[]> walk = new ArrayDeque<>();      // {node, next child}
+        Deque<List<String>> pushed = new ArrayDeque<>();
+        walk.push(new int[]{domTree.getEntry(), 0});
+        pushed.push(renameNode(domTree.getEntry(), current));
+        while (!walk.isEmpty()) {
+            int[] frame = walk.peek();
+            int[] children = domTree.getChildren(frame[0]);
+            if (frame[1] < children.length) {
+                int child = children[frame[1]++];
+                walk.push(new int[]{child, 0});
+                pushed.push(renameNode(child, current));
+            } else {
+                walk.pop();
+                for (String var : pushed.pop())
+                    current.get(var).pop();
+            }
+        }
+    }
+
+    // Renames the phis, uses and definition of a node and fills in the phi arguments of its successors
+    private List<String> renameNode(int node, Map<String, Deque<String>> current) {
+        List<String> pushed = new ArrayList<>();
+        Instruction inst = cfg.getInstruction(node);
+        for (Phi phi : phis.getOrDefault(inst, List.of())) {
+            phi.setDest(newVersion(phi.getVariable()));
+            current.get(phi.getVariable()).push(phi.getDest());
+            pushed.add(phi.getVariable());
+        }
+
+        for (Operand use : DefUse.getUseOperands(inst)) {
+            Deque<String> stack = current.get(use.getName());
+            if (stack != null)
+                use.setName(stack.peek());
+        }
+        Operand def = DefUse.getDefOperand(inst);
+        if (def != null && current.containsKey(def.getName())) {
+            String var = def.getName();
+            def.setName(newVersion(var));
+            current.get(var).push(def.getName());
+            pushed.add(var);
+        }
+
+        for (int s : cfg.getSuccessors(node))
+            for (Phi phi : phis.getOrDefault(cfg.getInstruction(s), List.of()))
+                phi.getArgs().put(inst, current.get(phi.getVariable()).peek());
+        return pushed;
+    }
+
+    // Keeps the phis an instruction reads, directly or through other live phis
+    private void prunePhis() {
+        Map<String, Phi> byDest = new HashMap<>();
+        for (List<Phi> list : phis.values())
+            for (Phi phi : list)
+                byDest.put(phi.getDest(), phi);
+
+        Set<Phi> live = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Phi> work = new ArrayDeque<>();
+        for (Instruction inst : method.getInstructions())
+            for (Operand use : DefUse.getUseOperands(inst)) {
+                Phi phi = byDest.get(use.getName());
+                if (phi != null && live.add(phi))
+                    work.add(phi);
+            }
+        while (!work.isEmpty())
+            for (String arg : work.poll().getArgs().values()) {
+                Phi phi = byDest.get(arg);
+                if (phi != null && live.add(phi))
+                    work.add(phi);
+            }
+
+        for (List<Phi> list : phis.values())
+            for (Phi phi : list)
+                if (!live.contains(phi)) {
+                    method.getVarTable().remove(phi.getDest());
+                    origin.remove(phi.getDest());
+                }
+        phis.values().forEach(list -> list.removeIf(phi -> !live.contains(phi)));
+        phis.values().removeIf(List::isEmpty);
+    }
+
+    /**
+     * Leaves SSA form. Versions are merged with the phis they flow into unless they interfere, every class of merged
+     * versions is renamed to a single variable, and the phi arguments that could not be merged are copied on their
+     * incoming edge. Versions nobody reads anymore are dropped from the variable table.
+     */
+    public void destruct() {
+        cfg = new FlowGraph(method);
+        int n = cfg.size();
+        Map<Instruction, Integer> index = new IdentityHashMap<>();
+        for (int node = 0; node < n; node++)
+            index.put(cfg.getInstruction(node), node);
+        phis.keySet().removeIf(inst -> !index.containsKey(inst));
+
+        List<String> names = new ArrayList<>();
+        Map<String, Integer> nameIndex = new HashMap<>();
+        for (Map.Entry<String, Descriptor> entry : method.getVarTable().entrySet())
+            if (isVariable(entry.getKey(), entry.getValue())) {
+                nameIndex.put(entry.getKey(), names.size());
+                names.add(entry.getKey());
+            }
+
+        liveness(index, nameIndex);
+        int[] classOf = coalesce(names, nameIndex, interference(index, nameIndex));
+        String[] representative = chooseNames(names, classOf);
+
+        insertCopies(index, nameIndex, classOf, representative);
+        phis.clear();
+
+        for (Instruction inst : method.getInstructions()) {
+            List<Operand> operands = DefUse.getUseOperands(inst);
+            Operand def = DefUse.getDefOperand(inst);
+            if (def != null)
+                operands.add(def);
+            for (Operand operand : operands) {
+                Integer v = nameIndex.get(operand.getName());
+                if (v != null)
+                    operand.setName(representative[classOf[v]]);
+            }
+        }
+        removeSelfCopies();
+
+        Set<String> used = new HashSet<>();
+        for (Instruction inst : method.getInstructions()) {
+            used.addAll(DefUse.getUses(inst));
+            String def = DefUse.getDef(inst);
+            if (def != null)
+                used.add(def);
+        }
+        for (String name : names)
+            if (!used.contains(name) && !name.equals(origin.get(name))) {
+                method.getVarTable().remove(name);
+                origin.remove(name);
+            }
+        refresh();
+    }
+
+    /*
+     * Every class is named after its parameter, or else its original variable, so that without register allocation
+     * the method keeps the slots it had. An original variable nobody references anymore is handed to one of the
+     * classes of its versions.
+     */
+    private String[] chooseNames(List<String> names, int[] classOf) {
+        Set<String> referenced = new HashSet<>();
+        for (Instruction inst : method.getInstructions()) {
+            referenced.addAll(DefUse.getUses(inst));
+            referenced.add(DefUse.getDef(inst));
+        }
+        for (List<Phi> list : phis.values())
+            for (Phi phi : list) {
+                referenced.add(phi.getDest());
+                referenced.addAll(phi.getArgs().values());
+            }
+
+        String[] representative = new String[names.size()];
+        for (int v = 0; v < names.size(); v++)
+            if (representative[classOf[v]] == null || priority(names.get(v)) > priority(representative[classOf[v]]))
+                representative[classOf[v]] = names.get(v);
+        for (int v = 0; v < names.size(); v++) {
+            String name = names.get(v);
+            if (priority(name) != 1 || referenced.contains(name))
+                continue;
+            for (int c = 0; c < names.size(); c++)
+                if (representative[c] != null && priority(representative[c]) == 0 && name.equals(origin.get(representative[c]))) {
+                    representative[c] = name;
+                    referenced.add(name);
+                    break;
+                }
+        }
+        return representative;
+    }
+
+    private int priority(String name) {
+        if (params.contains(name))
+            return 2;
+        return name.equals(origin.get(name)) ? 1 : 0;
+    }
+
+    private String argFor(Phi phi, Instruction pred) {
+        String arg = phi.getArgs().get(pred);
+        return arg == null ? phi.getVariable() : arg;
+    }
+
+    /*
+     * Liveness over SSA names, including the names live between the phis and the instruction of every node.
+     * A phi reads its argument at the end of the predecessor it comes from, not at the start of the join.
+     */
+    private void liveness(Map<Instruction, Integer> index, Map<String, Integer> nameIndex) {
+        int n = cfg.size();
+        BitSet[] use = new BitSet[n];
+        BitSet[] phiDefs = new BitSet[n];
+        BitSet[] phiUses = new BitSet[n];  // Phi arguments read at the end of each node
+        int[] def = new int[n];
+        for (int node = 0; node < n; node++) {
+            Instruction inst = cfg.getInstruction(node);
+            use[node] = new BitSet();
+            phiDefs[node] = new BitSet();
+            phiUses[node] = new BitSet();
+            for (String name : DefUse.getUses(inst)) {
+                Integer v = nameIndex.get(name);
+                if (v != null)
+                    use[node].set(v);
+            }
+            Integer v = nameIndex.get(DefUse.getDef(inst));
+            def[node] = v == null ? -1 : v;
+        }
+        for (Map.Entry<Instruction, List<Phi>> entry : phis.entrySet()) {
+            int node = index.get(entry.getKey());
+            for (Phi phi : entry.getValue()) {
+                Integer d = nameIndex.get(phi.getDest());
+                if (d != null)
+                    phiDefs[node].set(d);
+                for (int p : cfg.getPredecessors(node)) {
+                    Integer a = nameIndex.get(argFor(phi, cfg.getInstruction(p)));
+                    if (a != null)
+                        phiUses[p].set(a);
+                }
+            }
+        }
+
+        BitSet[] in = new BitSet[n];
+        BitSet[] out = new BitSet[n];
+        BitSet[] mid = new BitSet[n];
+        for (int node = 0; node < n; node++) {
+            in[node] = new BitSet();
+            out[node] = new BitSet();
+            mid[node] = new BitSet();
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int node : cfg.getPostOrder()) {
+                BitSet newOut = (BitSet) phiUses[node].clone();
+                for (int s : cfg.getSuccessors(node))
+                    newOut.or(in[s]);
+                BitSet newMid = (BitSet) newOut.clone();
+                if (def[node] != -1)
+                    newMid.clear(def[node]);
+                newMid.or(use[node]);
+                BitSet newIn = (BitSet) newMid.clone();
+                newIn.andNot(phiDefs[node]);
+                if (!newIn.equals(in[node]) || !newOut.equals(out[node])) {
+                    in[node] = newIn;
+                    changed = true;
+                }
+                out[node] = newOut;
+                mid[node] = newMid;
+            }
+        }
+
+        liveIn = in;
+        liveOut = out;
+        liveMid = mid;
+    }
+
+    private BitSet[] interference(Map<Instruction, Integer> index, Map<String, Integer> nameIndex) {
+        int count = nameIndex.size();
+        BitSet[] graph = new BitSet[count];
+        for (int v = 0; v < count; v++)
+            graph[v] = new BitSet();
+
+        for (int node = 0; node < cfg.size(); node++) {
+            Integer d = nameIndex.get(DefUse.getDef(cfg.getInstruction(node)));
+            if (d != null)
+                addEdges(graph, d, liveOut[node]);
+        }
+        for (Map.Entry<Instruction, List<Phi>> entry : phis.entrySet()) {
+            int node = index.get(entry.getKey());
+            for (Phi phi : entry.getValue()) {
+                Integer d = nameIndex.get(phi.getDest());
+                if (d != null)
+                    addEdges(graph, d, liveMid[node]);
+            }
+        }
+
+        // Parameters and the versions read before any write are all defined together on entry
+        if (cfg.size() > 0) {
+            BitSet entry = (BitSet) liveIn[0].clone();
+            for (String param : params)
+                if (nameIndex.containsKey(param))
+                    entry.set(nameIndex.get(param));
+            for (Phi phi : phis.getOrDefault(cfg.getInstruction(0), List.of())) {
+                Integer a = nameIndex.get(argFor(phi, null));
+                if (a != null)
+                    entry.set(a);
+            }
+            for (int v = entry.nextSetBit(0); v >= 0; v = entry.nextSetBit(v + 1))
+                addEdges(graph, v, entry);
+        }
+        return graph;
+    }
+
+    private static void addEdges(BitSet[] graph, int v, BitSet live) {
+        for (int w = live.nextSetBit(0); w >= 0; w = live.nextSetBit(w + 1))
+            if (w != v) {
+                graph[v].set(w);
+                graph[w].set(v);
+            }
+    }
+
+    // Union-find over the names, joining every phi with its arguments when the classes do not interfere
+    private int[] coalesce(List<String> names, Map<String, Integer> nameIndex, BitSet[] interference) {
+        int count = names.size();
+        int[] parent = new int[count];
+        BitSet[] members = new BitSet[count];
+        BitSet[] conflicts = new BitSet[count];
+        boolean[] pinned = new boolean[count];  // Holds a parameter, which must keep its own slot
+        for (int v = 0; v < count; v++) {
+            parent[v] = v;
+            members[v] = new BitSet();
+            members[v].set(v);
+            conflicts[v] = (BitSet) interference[v].clone();
+            pinned[v] = params.contains(names.get(v));
+        }
+
+        for (Map.Entry<Instruction, List<Phi>> entry : phis.entrySet())
+            for (Phi phi : entry.getValue()) {
+                Integer d = nameIndex.get(phi.getDest());
+                if (d == null)
+                    continue;
+                for (String arg : phi.getArgs().values()) {
+                    Integer a = nameIndex.get(arg);
+                    if (a == null)
+                        continue;
+                    int x = find(parent, d), y = find(parent, a);
+                    if (x == y || members[x].intersects(conflicts[y]) || (pinned[x] && pinned[y]))
+                        continue;
+                    parent[y] = x;
+                    members[x].or(members[y]);
+                    conflicts[x].or(conflicts[y]);
+                    pinned[x] |= pinned[y];
+                }
+            }
+
+        int[] classOf = new int[count];
+        for (int v = 0; v < count; v++)
+            classOf[v] = find(parent, v);
+        return classOf;
+    }
+
+    private static int find(int[] parent, int v) {
+        while (parent[v] != v) {
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+        return v;
+    }
+
+    // Copies for the phi arguments left in a different class than their phi, placed on the edge they come from
+    private void insertCopies(Map<Instruction, Integer> index, Map<String, Integer> nameIndex, int[] classOf, String[] representative) {
+        List<Runnable> placements = new ArrayList<>();
+        for (Map.Entry<Instruction, List<Phi>> entry : phis.entrySet()) {
+            int node = index.get(entry.getKey());
+            List<Integer> preds = new ArrayList<>();
+            for (int p : cfg.getPredecessors(node))
+                preds.add(p);
+            if (node == 0)
+                preds.add(-1);
+
+            for (int p : preds) {
+                Instruction pred = p == -1 ? null : cfg.getInstruction(p);
+                List<String[]> copies = new ArrayList<>();
+                for (Phi phi : entry.getValue()) {
+                    Integer d = nameIndex.get(phi.getDest());
+                    Integer a = nameIndex.get(argFor(phi, pred));
+                    if (d == null || a == null || classOf[d] == classOf[a])
+                        continue;
+                    copies.add(new String[]{representative[classOf[d]], representative[classOf[a]]});
+                }
+                if (!copies.isEmpty()) {
+                    List<Instruction> sequence = sequentialize(copies);
+                    Instruction join = entry.getKey();
+                    placements.add(() -> placeOnEdge(pred, join, sequence));
+                }
+            }
+        }
+        // Placed after every group is built, so the node numbering stays valid while they are computed
+        placements.forEach(Runnable::run);
+    }
+
+    /*
+     * The copies of an edge happen in parallel: emits a copy once nothing else still reads its destination,
+     * and breaks the cycles left (swaps) through a temporary.
+     */
+    private List<Instruction> sequentialize(List<String[]> copies) {
+        List<Instruction> sequence = new ArrayList<>();
+        List<String[]> pending = new ArrayList<>(copies);
+        while (!pending.isEmpty()) {
+            boolean progress = false;
+            for (Iterator<String[]> it = pending.iterator(); it.hasNext(); ) {
+                String[] copy = it.next();
+                boolean read = false;
+                for (String[] other : pending)
+                    if (other != copy && other[1].equals(copy[0]))
+                        read = true;
+                if (!read) {
+                    sequence.add(copy(copy[0], copy[1]));
+                    it.remove();
+                    progress = true;
+                }
+            }
+            if (!progress) {
+                String[] copy = pending.get(0);
+                String temp = newVersion(copy[1]);
+                sequence.add(copy(temp, copy[1]));
+                for (String[] other : pending)
+                    if (other[1].equals(copy[1]))
+                        other[1] = temp;
+            }
+        }
+        return sequence;
+    }
+
+    private Instruction copy(String dest, String source) {
+        Type type = method.getVarTable().get(dest).getVarType();
+        return new AssignInstruction(new Operand(dest, type), type, new SingleOpInstruction(new Operand(source, type)));
+    }
+
+    private void placeOnEdge(Instruction pred, Instruction join, List<Instruction> copies) {
+        List<Instruction> instructions = method.getInstructions();
+        if (pred == null) {
+            instructions.addAll(0, copies);
+            return;
+        }
+        int at = indexOf(pred);
+        switch (pred.getInstType()) {
+            case GOTO -> {
+                // Jumps into the goto must run the copies too
+                instructions.addAll(at, copies);
+                moveLabels(pred, copies.get(0));
+            }
+            case BRANCH -> {
+                CondBranchInstruction branch = (CondBranchInstruction) pred;
+                if (method.getLabels().get(branch.getLabel()) == join) {
+                    String target = branch.getLabel();
+                    String label;
+                    do {
+                        label = "SSAEdge" + edgeLabels++;
+                    } while (method.getLabels().containsKey(label));
+
+                    InstructionType last = instructions.get(instructions.size() - 1).getInstType();
+                    if (last != InstructionType.GOTO && last != InstructionType.RETURN)
+                        instructions.add(new ReturnInstruction());
+                    List<Instruction> block = new ArrayList<>();
+                    for (Instruction copy : copies)
+                        block.add(copy instanceof AssignInstruction assign ? clone(assign) : copy);
+                    block.add(new GotoInstruction(target));
+                    instructions.addAll(block);
+                    method.addLabel(label, block.get(0));
+                    branch.setLabel(label);
+                }
+                if (at + 1 < instructions.size() && instructions.get(at + 1) == join)
+                    instructions.addAll(at + 1, copies);
+            }
+            default -> instructions.addAll(at + 1, copies);
+        }
+    }
+
+    private Instruction clone(AssignInstruction assign) {
+        Operand dest = (Operand) assign.getDest();
+        Operand source = (Operand) ((SingleOpInstruction) assign.getRhs()).getSingleOperand();
+        return copy(dest.getName(), source.getName());
+    }
+
+    private int indexOf(Instruction inst) {
+        List<Instruction> instructions = method.getInstructions();
+        for (int i = 0; i < instructions.size(); i++)
+            if (instructions.get(i) == inst)
+                return i;
+        throw new RuntimeException("Instruction not in method " + method.getMethodName() + ": " + inst);
+    }
+
+    private void moveLabels(Instruction from, Instruction to) {
+        for (Map.Entry<String, Instruction> label : method.getLabels().entrySet())
+            if (label.getValue() == from)
+                label.setValue(to);
+    }
+
+    // Copies between the same variable, left behind when a phi and its argument landed in the same class
+    private void removeSelfCopies() {
+        List<Instruction> instructions = method.getInstructions();
+        for (int i = instructions.size() - 2; i >= 0; i--) {
+            if (!(instructions.get(i) instanceof AssignInstruction assign)
+                    || !(assign.getDest() instanceof Operand dest) || dest instanceof ArrayOperand
+                    || !(assign.getRhs() instanceof SingleOpInstruction single)
+                    || !(single.getSingleOperand() instanceof Operand source) || source instanceof ArrayOperand
+                    || source.isLiteral() || !source.getName().equals(dest.getName()))
+                continue;
+            moveLabels(assign, instructions.get(i + 1));
+            instructions.remove(i);
+        }
+    }
+}
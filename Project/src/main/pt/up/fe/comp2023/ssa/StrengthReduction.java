@@ -0,0 +1,403 @@
+package pt.up.fe.comp2023.ssa;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2023.regAlloc.DefUse;
+import pt.up.fe.comp2023.regAlloc.FlowGraph;
+
+import java.util.*;
+
+/**
+ * Induction variable strength reduction over a method in SSA form.
+ * A basic induction variable is a loop header phi stepped by the same constant on every way around the loop. Its
+ * product with a loop invariant factor becomes an induction variable of its own, started in front of the loop and
+ * stepped by an addition right after the step of the variable it follows, so the loop adds instead of multiplying.
+ * Induction variables nobody reads but their own step are removed afterwards.
+ * <p>
+ * Products and quotients by a power of two that are left become shifts. A right shift rounds towards minus infinity
+ * where the division rounds towards zero, so a quotient only becomes a shift when the dividend cannot be negative.
+ */
+public class StrengthReduction {
+    private static final Type INT = new Type(ElementType.INT32);
+
+    private final SSAForm ssa;
+    private final Method method;
+    private int reduced = 0;
+    private int shifts = 0;
+    private int removed = 0;
+
+    public StrengthReduction(SSAForm ssa) {
+        this.ssa = ssa;
+        this.method = ssa.getMethod();
+    }
+
+    public boolean run() {
+        Set<Instruction> done = Collections.newSetFromMap(new IdentityHashMap<>());
+        while (true) {
+            ssa.refresh();
+            FlowGraph cfg = ssa.getFlowGraph();
+            NaturalLoop next = null;
+            for (NaturalLoop loop : NaturalLoop.find(ssa))
+                if (!done.contains(cfg.getInstruction(loop.header))) {
+                    next = loop;
+                    break;
+                }
+            if (next == null)
+                break;
+            done.add(cfg.getInstruction(next.header));
+            done.add(reduce(next));
+        }
+        removeDeadInductionVariables();
+        ssa.refresh();
+        useShifts();
+        return reduced + shifts + removed > 0;
+    }
+
+    public int getReduced() {
+        return reduced;
+    }
+
+    public int getShifts() {
+        return shifts;
+    }
+
+    public int getRemoved() {
+        return removed;
+    }
+
+    // Basic induction variable: phi at the header, next the value it takes around the loop, next = phi + step
+    private record Induction(Phi phi, String init, String next, Instruction stepDef, int step) {
+    }
+
+    // Product of an induction variable and an invariant factor, which takes the value of current or next
+    private record Product(AssignInstruction assign, Induction induction, boolean ofNext, Element factor) {
+    }
+
+    // Induction variable made for the products of one basic induction variable and one factor
+    private record Derived(String current, String next) {
+    }
+
+    // Reduces the products of a loop, returns its header afterwards
+    private Instruction reduce(NaturalLoop loop) {
+        FlowGraph cfg = ssa.getFlowGraph();
+        DominatorTree domTree = ssa.getDominatorTree();
+        List<Instruction> instructions = method.getInstructions();
+        Instruction header = cfg.getInstruction(loop.header);
+
+        // The values the new induction variables start from are computed on the single way into the loop
+        List<Integer> outside = new ArrayList<>();
+        List<Instruction> inside = new ArrayList<>();
+        for (int p : cfg.getPredecessors(loop.header))
+            if (loop.body[p])
+                inside.add(cfg.getInstruction(p));
+            else
+                outside.add(p);
+        if (loop.header == 0 || outside.size() != 1)
+            return header;
+        Instruction entry = cfg.getInstruction(outside.get(0));
+        boolean fallsIn = outside.get(0) == loop.header - 1 && !(entry instanceof GotoInstruction)
+                && !(entry instanceof CondBranchInstruction branch && method.getLabels().get(branch.getLabel()) == header);
+        if (!fallsIn && !(entry instanceof GotoInstruction))
+            return header;
+
+        Map<String, Instruction> defs = new HashMap<>();
+        Set<String> definedInLoop = new HashSet<>();
+        for (int node = 0; node < cfg.size(); node++) {
+            Instruction inst = cfg.getInstruction(node);
+            String def = DefUse.getDef(inst);
+            if (def != null)
+                defs.put(def, inst);
+            if (loop.body[node]) {
+                if (def != null)
+                    definedInLoop.add(def);
+                for (Phi phi : ssa.getPhis(inst))
+                    definedInLoop.add(phi.getDest());
+            }
+        }
+
+        Map<String, Induction> inductions = new HashMap<>();
+        for (Phi phi : ssa.getPhis(header)) {
+            String init = phi.getArgs().get(entry);
+            String next = null;
+            boolean single = true;
+            for (Instruction p : inside) {
+                String arg = phi.getArgs().get(p);
+                single &= arg != null && (next == null || next.equals(arg));
+                next = arg;
+            }
+            if (init == null || next == null || !single || !isInt(phi.getDest()) || !definedInLoop.contains(next))
+                continue;
+            Instruction stepDef = defs.get(next);
+            Integer step = getStep(stepDef, phi.getDest());
+            if (step == null)
+                continue;
+            Induction induction = new Induction(phi, init, next, stepDef, step);
+            inductions.put(phi.getDest(), induction);
+            inductions.put(next, induction);
+        }
+        if (inductions.isEmpty())
+            return header;
+
+        List<Product> products = new ArrayList<>();
+        for (int node : domTree.getReversePostOrder()) {
+            if (!loop.body[node] || !(cfg.getInstruction(node) instanceof AssignInstruction assign)
+                    || DefUse.getDefOperand(assign) == null || !(assign.getRhs() instanceof BinaryOpInstruction binary)
+                    || binary.getOperation().getOpType() != OperationType.MUL)
+                continue;
+            Element[] operands = {binary.getLeftOperand(), binary.getRightOperand()};
+            for (int side = 0; side < 2; side++) {
+                if (!(operands[side] instanceof Operand operand) || operand instanceof ArrayOperand)
+                    continue;
+                Induction induction = inductions.get(operand.getName());
+                if (induction != null && isInvariantFactor(operands[1 - side], definedInLoop)) {
+                    products.add(new Product(assign, induction, operand.getName().equals(induction.next()), operands[1 - side]));
+                    break;
+                }
+            }
+        }
+        if (products.isEmpty())
+            return header;
+
+        // New header phis first, so that every change of predecessor below also rekeys their arguments
+        List<Instruction> preheader = new ArrayList<>();
+        List<Instruction[]> steps = new ArrayList<>();
+        Map<String, Derived> derived = new HashMap<>();
+        for (Product product : products) {
+            Induction induction = product.induction();
+            String key = induction.phi().getDest() + "*" + factorKey(product.factor());
+            if (derived.containsKey(key))
+                continue;
+            String variable = ssa.newVariable("iv", INT);
+            String start = ssa.newVersion(variable);
+            String current = ssa.newVersion(variable);
+            String next = ssa.newVersion(variable);
+
+            preheader.add(assign(start, new BinaryOpInstruction(new Operand(induction.init(), INT),
+                    new Operation(OperationType.MUL, INT), copyOf(product.factor()))));
+            Element stride;
+            if (product.factor() instanceof LiteralElement literal)
+                stride = new LiteralElement(String.valueOf(induction.step() * Integer.parseInt(literal.getLiteral())), INT);
+            else if (induction.step() == 1)
+                stride = copyOf(product.factor());
+            else {
+                String name = ssa.newVersion(variable);
+                preheader.add(assign(name, new BinaryOpInstruction(copyOf(product.factor()), new Operation(OperationType.MUL, INT),
+                        new LiteralElement(String.valueOf(induction.step()), INT))));
+                stride = new Operand(name, INT);
+            }
+            steps.add(new Instruction[]{induction.stepDef(), assign(next, new BinaryOpInstruction(new Operand(current, INT),
+                    new Operation(OperationType.ADD, INT), stride))});
+
+            Phi phi = new Phi(variable);
+            phi.setDest(current);
+            phi.getArgs().put(entry, start);
+            for (Instruction p : inside)
+                phi.getArgs().put(p, next);
+            ssa.getPhis(header).add(phi);
+            derived.put(key, new Derived(current, next));
+        }
+
+        for (Instruction[] step : steps) {
+            instructions.add(instructions.indexOf(step[0]) + 1, step[1]);
+            rekeyArgs(step[0], step[1]);
+        }
+
+        if (fallsIn) {
+            instructions.addAll(instructions.indexOf(header), preheader);
+            Instruction last = preheader.get(preheader.size() - 1);
+            for (Phi phi : ssa.getPhis(header)) {
+                String arg = phi.getArgs().remove(entry);
+                if (arg != null)
+                    phi.getArgs().put(last, arg);
+            }
+        } else {
+            instructions.addAll(instructions.indexOf(entry), preheader);
+            moveLabels(entry, preheader.get(0));
+            ssa.getPhis(preheader.get(0)).addAll(ssa.removePhis(entry));
+        }
+
+        for (Product product : products) {
+            Derived induction = derived.get(product.induction().phi().getDest() + "*" + factorKey(product.factor()));
+            String source = product.ofNext() ? induction.next() : induction.current();
+            Instruction copy = new AssignInstruction(product.assign().getDest(), product.assign().getTypeOfAssign(),
+                    new SingleOpInstruction(new Operand(source, INT)));
+            instructions.set(instructions.indexOf(product.assign()), copy);
+            moveLabels(product.assign(), copy);
+            rekeyArgs(product.assign(), copy);
+            ssa.getPhis(copy).addAll(ssa.removePhis(product.assign()));
+            if (product.assign() == header)
+                header = copy;
+            reduced++;
+        }
+        return header;
+    }
+
+    // Step of an instruction that defines name = variable + constant, null when it does something else
+    private static Integer getStep(Instruction inst, String variable) {
+        if (!(inst instanceof AssignInstruction assign) || !(assign.getRhs() instanceof BinaryOpInstruction binary))
+            return null;
+        OperationType op = binary.getOperation().getOpType();
+        Element left = binary.getLeftOperand();
+        Element right = binary.getRightOperand();
+        if (op == OperationType.ADD && isVariable(left, variable) && right instanceof LiteralElement literal)
+            return Integer.parseInt(literal.getLiteral());
+        if (op == OperationType.ADD && isVariable(right, variable) && left instanceof LiteralElement literal)
+            return Integer.parseInt(literal.getLiteral());
+        if (op == OperationType.SUB && isVariable(left, variable) && right instanceof LiteralElement literal)
+            return -Integer.parseInt(literal.getLiteral());
+        return null;
+    }
+
+    private static boolean isVariable(Element element, String name) {
+        return element instanceof Operand operand && !(element instanceof ArrayOperand) && operand.getName().equals(name);
+    }
+
+    private boolean isInt(String name) {
+        Descriptor descriptor = method.getVarTable().get(name);
+        return descriptor != null && descriptor.getVarType().getTypeOfElement() == ElementType.INT32;
+    }
+
+    // Multiplying by 0 or 1 is left for folding, there is nothing to step
+    private boolean isInvariantFactor(Element factor, Set<String> definedInLoop) {
+        if (factor instanceof LiteralElement literal)
+            return !literal.getLiteral().equals("0") && !literal.getLiteral().equals("1");
+        return factor instanceof Operand operand && !(factor instanceof ArrayOperand)
+                && !definedInLoop.contains(operand.getName()) && isInt(operand.getName());
+    }
+
+    private static String factorKey(Element factor) {
+        return factor instanceof LiteralElement literal ? literal.getLiteral() : "$" + ((Operand) factor).getName();
+    }
+
+    private static Element copyOf(Element factor) {
+        return factor instanceof LiteralElement literal ? new LiteralElement(literal.getLiteral(), INT)
+                : new Operand(((Operand) factor).getName(), INT);
+    }
+
+    private static AssignInstruction assign(String dest, Instruction rhs) {
+        return new AssignInstruction(new Operand(dest, INT), INT, rhs);
+    }
+
+    private void moveLabels(Instruction from, Instruction to) {
+        for (Map.Entry<String, Instruction> label : method.getLabels().entrySet())
+            if (label.getValue() == from)
+                label.setValue(to);
+    }
+
+    private void rekeyArgs(Instruction from, Instruction to) {
+        for (List<Phi> list : ssa.getAllPhis())
+            for (Phi phi : list) {
+                String arg = phi.getArgs().remove(from);
+                if (arg != null)
+                    phi.getArgs().put(to, arg);
+            }
+    }
+
+    /*
+     * A header phi read only by its own step, whose step is read only by the phi, computes nothing anyone sees. The
+     * step is only taken out when no phi argument comes from it, otherwise the edges of that phi would change shape.
+     */
+    private void removeDeadInductionVariables() {
+        List<Instruction> instructions = method.getInstructions();
+        Map<String, List<Object>> readers = new HashMap<>();
+        for (Instruction inst : instructions)
+            for (String use : DefUse.getUses(inst))
+                readers.computeIfAbsent(use, k -> new ArrayList<>()).add(inst);
+        for (List<Phi> list : ssa.getAllPhis())
+            for (Phi phi : list)
+                for (String arg : phi.getArgs().values())
+                    readers.computeIfAbsent(arg, k -> new ArrayList<>()).add(phi);
+
+        for (List<Phi> list : new ArrayList<>(ssa.getAllPhis()))
+            for (Phi phi : new ArrayList<>(list)) {
+                List<Object> phiReaders = readers.getOrDefault(phi.getDest(), List.of());
+                if (phiReaders.size() != 1 || !(phiReaders.get(0) instanceof Instruction stepDef)
+                        || getStep(stepDef, phi.getDest()) == null)
+                    continue;
+                String next = DefUse.getDef(stepDef);
+                List<Object> nextReaders = readers.getOrDefault(next, List.of());
+                if (nextReaders.isEmpty() || nextReaders.stream().anyMatch(reader -> reader != phi))
+                    continue;
+                int at = instructions.indexOf(stepDef);
+                if (at < 0 || at + 1 >= instructions.size() || !ssa.getPhis(stepDef).isEmpty()
+                        || ssa.getPhis(instructions.get(at + 1)).stream().anyMatch(p -> p.getArgs().containsKey(stepDef)))
+                    continue;
+                list.remove(phi);
+                moveLabels(stepDef, instructions.get(at + 1));
+                instructions.remove(at);
+                removed++;
+            }
+    }
+
+    private void useShifts() {
+        FlowGraph cfg = ssa.getFlowGraph();
+        DominatorTree domTree = ssa.getDominatorTree();
+        Map<String, Instruction> defs = new HashMap<>();
+        Map<String, List<Integer>> indexedAt = new HashMap<>();
+        for (int node = 0; node < cfg.size(); node++) {
+            Instruction inst = cfg.getInstruction(node);
+            String def = DefUse.getDef(inst);
+            if (def != null)
+                defs.put(def, inst);
+            for (Operand use : DefUse.getUseOperands(inst))
+                if (use instanceof ArrayOperand array)
+                    for (Element index : array.getIndexOperands())
+                        if (index instanceof Operand operand)
+                            indexedAt.computeIfAbsent(operand.getName(), k -> new ArrayList<>()).add(node);
+        }
+
+        for (int node = 0; node < cfg.size(); node++) {
+            if (!(cfg.getInstruction(node) instanceof AssignInstruction assign)
+                    || !(assign.getRhs() instanceof BinaryOpInstruction binary))
+                continue;
+            Element left = binary.getLeftOperand();
+            Element right = binary.getRightOperand();
+            switch (binary.getOperation().getOpType()) {
+                case MUL -> {
+                    if (log2(right) > 0 && !left.isLiteral())
+                        toShift(binary, OperationType.SHL, left, log2(right));
+                    else if (log2(left) > 0 && !right.isLiteral())
+                        toShift(binary, OperationType.SHL, right, log2(left));
+                }
+                case DIV -> {
+                    if (log2(right) > 0 && !left.isLiteral() && isNonNegative(left, node, defs, indexedAt, domTree))
+                        toShift(binary, OperationType.SHR, left, log2(right));
+                }
+                default -> {}
+            }
+        }
+    }
+
+    private void toShift(BinaryOpInstruction binary, OperationType shift, Element value, int distance) {
+        binary.getOperation().setOpType(shift);
+        binary.setLeftOperand(value);
+        binary.setRightOperand(new LiteralElement(String.valueOf(distance), INT));
+        shifts++;
+    }
+
+    // Exponent of a positive power of two literal, -1 for anything else
+    private static int log2(Element element) {
+        if (!(element instanceof LiteralElement literal))
+            return -1;
+        int value;
+        try {
+            value = Integer.parseInt(literal.getLiteral());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        return value > 0 && Integer.bitCount(value) == 1 ? Integer.numberOfTrailingZeros(value) : -1;
+    }
+
+    // Array lengths are never negative, and neither is a value that already indexed an array on every way here
+    private static boolean isNonNegative(Element element, int node, Map<String, Instruction> defs,
+                                         Map<String, List<Integer>> indexedAt, DominatorTree domTree) {
+        if (!(element instanceof Operand operand) || element instanceof ArrayOperand)
+            return false;
+        if (defs.get(operand.getName()) instanceof AssignInstruction assign && assign.getRhs() instanceof CallInstruction call
+                && call.getInvocationType() == CallType.arraylength)
+            return true;
+        for (int at : indexedAt.getOrDefault(operand.getName(), List.of()))
+            if (at != node && domTree.dominates(at, node))
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,300 @@
+package pt.up.fe.comp2023.ssa;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2023.regAlloc.DefUse;
+import pt.up.fe.comp2023.regAlloc.FlowGraph;
+
+import java.util.*;
+
+/**
+ * Dominator based global value numbering over a method in SSA form.
+ * The dominator tree is walked keeping the expressions computed on the way down, an assignment whose expression was
+ * already computed by a dominating one takes its name instead, and so does a copy of another variable. Their uses are
+ * renamed and the assignments removed.
+ * <p>
+ * Loads from fields and array elements are only the same while memory stays the same: every field, and array elements
+ * as a whole, get a state that changes on each store to them and each call, and is new where different states meet.
+ */
+public class ValueNumbering {
+    private static final String ELEMENTS = "[]";
+
+    private final SSAForm ssa;
+    private final Method method;
+    private final FlowGraph cfg;
+    private final Map<String, String> leaders = new HashMap<>();    // Name -> earlier name with the same value
+    private final Map<String, Integer> locations = new HashMap<>(); // Field or ELEMENTS -> index in the states
+    private final Set<Instruction> redundant = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int[][] states;
+
+    public ValueNumbering(SSAForm ssa) {
+        this.ssa = ssa;
+        this.method = ssa.getMethod();
+        ssa.refresh();
+        this.cfg = ssa.getFlowGraph();
+    }
+
+    /** Numbers and rewrites the method, returns whether anything changed. */
+    public boolean run() {
+        if (cfg.size() == 0)
+            return false;
+        computeStates();
+        number();
+        if (redundant.isEmpty())
+            return false;
+        rewrite();
+        return true;
+    }
+
+    public int getEliminated() {
+        return redundant.size();
+    }
+
+    /*
+     * Memory state of every location on entry to each instruction. 0 stands for a predecessor not yet reached, a
+     * store or call at node n starts state 2n + 2 after it, and the states meeting at n from different sides become
+     * 2n + 3.
+     */
+    private void computeStates() {
+        for (int node = 0; node < cfg.size(); node++) {
+            Instruction inst = cfg.getInstruction(node);
+            if (inst instanceof PutFieldInstruction put)
+                locations.putIfAbsent(((Operand) put.getSecondOperand()).getName(), locations.size());
+            if (getRhs(inst) instanceof GetFieldInstruction get)
+                locations.putIfAbsent(((Operand) get.getSecondOperand()).getName(), locations.size());
+        }
+        locations.putIfAbsent(ELEMENTS, locations.size());
+
+        int n = cfg.size();
+        int count = locations.size();
+        states = new int[n][count];
+        int[][] out = new int[n][count];
+        DominatorTree domTree = ssa.getDominatorTree();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int node : domTree.getReversePostOrder()) {
+                Instruction inst = cfg.getInstruction(node);
+                for (int l = 0; l < count; l++) {
+                    int state = node == domTree.getEntry() ? 1 : 0;
+                    for (int p : cfg.getPredecessors(node)) {
+                        int incoming = out[p][l];
+                        if (incoming == 0 || incoming == state)
+                            continue;
+                        state = state == 0 ? incoming : 2 * node + 3;
+                    }
+                    int after = writes(inst, l) ? 2 * node + 2 : state;
+                    if (states[node][l] != state || out[node][l] != after) {
+                        states[node][l] = state;
+                        out[node][l] = after;
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean writes(Instruction inst, int location) {
+        if (mayWriteMemory(inst))
+            return true;
+        if (inst instanceof PutFieldInstruction put)
+            return locations.get(((Operand) put.getSecondOperand()).getName()) == location;
+        return inst instanceof AssignInstruction assign && assign.getDest() instanceof ArrayOperand
+                && locations.get(ELEMENTS) == location;
+    }
+
+    // Calls into other code may write any field and any array
+    private static boolean mayWriteMemory(Instruction inst) {
+        if (!(getRhs(inst) instanceof CallInstruction call))
+            return false;
+        return call.getInvocationType() != CallType.arraylength && call.getInvocationType() != CallType.NEW
+                && call.getInvocationType() != CallType.ldc;
+    }
+
+    private static Instruction getRhs(Instruction inst) {
+        return inst instanceof AssignInstruction assign ? assign.getRhs() : inst;
+    }
+
+    // Walks the dominator tree, the expressions of a subtree are forgotten when the walk leaves it
+    private void number() {
+        DominatorTree domTree = ssa.getDominatorTree();
+        Map<String, String> available = new HashMap<>();
+        Deque<int[]> walk = new ArrayDeque<>();      // {node, next child}
+        Deque<String> added = new ArrayDeque<>();    // Expression added by each node on the walk, or null
+        walk.push(new int[]{domTree.getEntry(), 0});
+        added.push(Objects.requireNonNullElse(numberNode(domTree.getEntry(), available), ""));
+        while (!walk.isEmpty()) {
+            int[] frame = walk.peek();
+            int[] children = domTree.getChildren(frame[0]);
+            if (frame[1] < children.length) {
+                int child = children[frame[1]++];
+                walk.push(new int[]{child, 0});
+                added.push(Objects.requireNonNullElse(numberNode(child, available), ""));
+            } else {
+                walk.pop();
+                available.remove(added.pop());
+            }
+        }
+    }
+
+    // Returns the expression the node made available, if any
+    private String numberNode(int node, Map<String, String> available) {
+        if (!(cfg.getInstruction(node) instanceof AssignInstruction assign) || assign.getDest() instanceof ArrayOperand
+                || !(assign.getDest() instanceof Operand dest) || ssa.getVariable(dest.getName()) == null)
+            return null;
+
+        Instruction rhs = assign.getRhs();
+        if (rhs instanceof SingleOpInstruction copy && copy.getSingleOperand() instanceof Operand source
+                && !(source instanceof ArrayOperand) && ssa.getVariable(source.getName()) != null) {
+            leaders.put(dest.getName(), leader(source.getName()));
+            redundant.add(assign);
+            return null;
+        }
+
+        String key = expression(node, rhs);
+        if (key == null)
+            return null;
+        String leader = available.get(key);
+        if (leader != null) {
+            leaders.put(dest.getName(), leader);
+            redundant.add(assign);
+            return null;
+        }
+        available.put(key, dest.getName());
+        return key;
+    }
+
+    private String leader(String name) {
+        String leader = leaders.get(name);
+        return leader == null ? name : leader;
+    }
+
+    // Key shared by the expressions computing the same value, null for the ones never reused
+    private String expression(int node, Instruction rhs) {
+        switch (rhs.getInstType()) {
+            case BINARYOPER -> {
+                BinaryOpInstruction binary = (BinaryOpInstruction) rhs;
+                String left = value(binary.getLeftOperand());
+                String right = value(binary.getRightOperand());
+                if (left == null || right == null)
+                    return null;
+                OperationType op = binary.getOperation().getOpType();
+                if (isCommutative(op) && left.compareTo(right) > 0) {
+                    String swap = left;
+                    left = right;
+                    right = swap;
+                }
+                return op + " " + left + " " + right;
+            }
+            case UNARYOPER -> {
+                UnaryOpInstruction unary = (UnaryOpInstruction) rhs;
+                String operand = value(unary.getOperand());
+                return operand == null ? null : unary.getOperation().getOpType() + " " + operand;
+            }
+            case NOPER -> {
+                // Array elements, only the loads, the other single operands are copies and constants
+                if (!(((SingleOpInstruction) rhs).getSingleOperand() instanceof ArrayOperand array)
+                        || array.getIndexOperands().size() != 1)
+                    return null;
+                String index = value(array.getIndexOperands().get(0));
+                return index == null ? null : "load " + leader(array.getName()) + "[" + index + "] @"
+                        + states[node][locations.get(ELEMENTS)];
+            }
+            case GETFIELD -> {
+                GetFieldInstruction get = (GetFieldInstruction) rhs;
+                String object = value(get.getFirstOperand());
+                String field = ((Operand) get.getSecondOperand()).getName();
+                return object == null ? null : "getfield " + object + "." + field + " @" + states[node][locations.get(field)];
+            }
+            case CALL -> {
+                // Lengths never change, an array always has the one it was created with
+                CallInstruction call = (CallInstruction) rhs;
+                if (call.getInvocationType() != CallType.arraylength)
+                    return null;
+                String array = value(call.getFirstArg());
+                return array == null ? null : "length " + array;
+            }
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    private String value(Element element) {
+        if (element instanceof ArrayOperand)
+            return null;
+        if (element instanceof LiteralElement literal)
+            return literal.getLiteral() + "." + literal.getType().getTypeOfElement();
+        if (element instanceof Operand operand)
+            return leader(operand.getName());
+        return null;
+    }
+
+    private static boolean isCommutative(OperationType op) {
+        return switch (op) {
+            case ADD, MUL, AND, OR, XOR, ANDB, ORB, EQ, NEQ -> true;
+            default -> false;
+        };
+    }
+
+    /*
+     * Renames every use to its leader and removes the redundant assignments. The ones next to phis stay as copies,
+     * removing them would reshape the phi edges, and are left for dead code elimination.
+     */
+    private void rewrite() {
+        for (Instruction inst : method.getInstructions())
+            for (Operand use : DefUse.getUseOperands(inst))
+                use.setName(leader(use.getName()));
+        for (List<Phi> list : ssa.getAllPhis())
+            for (Phi phi : list)
+                phi.getArgs().replaceAll((pred, arg) -> leader(arg));
+
+        Map<Instruction, Integer> index = new IdentityHashMap<>();
+        for (int node = 0; node < cfg.size(); node++)
+            index.put(cfg.getInstruction(node), node);
+        List<Instruction> instructions = method.getInstructions();
+        for (int i = instructions.size() - 2; i >= 0; i--) {
+            Instruction inst = instructions.get(i);
+            if (!redundant.contains(inst))
+                continue;
+            AssignInstruction assign = (AssignInstruction) inst;
+            Operand dest = (Operand) assign.getDest();
+            if (nextToPhis(index.get(inst))) {
+                AssignInstruction copy = new AssignInstruction(dest, assign.getTypeOfAssign(),
+                        new SingleOpInstruction(new Operand(leader(dest.getName()), dest.getType())));
+                instructions.set(i, copy);
+                moveLabels(inst, copy);
+                rekeyPhis(inst, copy);
+            } else {
+                moveLabels(inst, instructions.get(i + 1));
+                instructions.remove(i);
+            }
+        }
+        ssa.refresh();
+    }
+
+    private boolean nextToPhis(int node) {
+        if (!ssa.getPhis(cfg.getInstruction(node)).isEmpty())
+            return true;
+        for (int s : cfg.getSuccessors(node))
+            if (!ssa.getPhis(cfg.getInstruction(s)).isEmpty())
+                return true;
+        return false;
+    }
+
+    private void moveLabels(Instruction from, Instruction to) {
+        for (Map.Entry<String, Instruction> label : method.getLabels().entrySet())
+            if (label.getValue() == from)
+                label.setValue(to);
+    }
+
+    // Hands the phis and the phi arguments of an instruction to the one taking its place
+    private void rekeyPhis(Instruction from, Instruction to) {
+        for (List<Phi> list : ssa.getAllPhis())
+            for (Phi phi : list) {
+                String arg = phi.getArgs().remove(from);
+                if (arg != null)
+                    phi.getArgs().put(to, arg);
+            }
+        ssa.getPhis(to).addAll(ssa.removePhis(from));
+    }
+}
@@ -0,0 +1,115 @@
+package pt.up.fe.comp2023;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Lexer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pt.up.fe.comp.TestUtils;
+import pt.up.fe.comp.jmm.ast.JmmNode;
+import pt.up.fe.comp.jmm.ast.antlr.AntlrParser;
+import pt.up.fe.comp.jmm.parser.JmmParserResult;
+import pt.up.fe.specs.util.SpecsIo;
+import utils.ProjectTestUtils;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class AParserTest {
+    private static final List<String> PROGRAMS = List.of(
+            "pt/up/fe/comp/cp2/apps/HelloWorld.jmm",
+            "pt/up/fe/comp/cp2/apps/Simple.jmm",
+            "pt/up/fe/comp2023/jasmin/Backends.jmm",
+            "pt/up/fe/comp2023/ssa/Swaps.jmm",
+            "pt/up/fe/comp2023/ssa/Aliasing.jmm",
+            "pt/up/fe/comp2023/ssa/Passes.jmm",
+            "pt/up/fe/comp2023/inlining/Inlining.jmm");
+
+    private File folder;
+
+    @Before
+    public void setUp() {
+        folder = ProjectTestUtils.getRandomFolder();
+    }
+
+    @After
+    public void tearDown() {
+        SpecsIo.deleteFolder(folder);
+    }
+
+    private Path write(String code) {
+        File file = new File(folder, "Input.jmm");
+        SpecsIo.write(file, code);
+        return file.toPath();
+    }
+
+    private static String toTree(JmmParserResult result) {
+        assertEquals(result.getReports().toString(), 0, TestUtils.getNumErrors(result.getReports()));
+        return toTree(result.getRootNode());
+    }
+
+    // Like JmmNode.toTree(), but with every attribute, the positions it leaves out included
+    private static String toTree(JmmNode root) {
+        StringBuilder tree = new StringBuilder();
+        toTree(root, tree, "");
+        return tree.toString();
+    }
+
+    private static void toTree(JmmNode node, StringBuilder tree, String prefix) {
+        tree.append(prefix).append(node.getKind());
+        for (String attribute : new TreeSet<>(node.getAttributes()))
+            tree.append(' ').append(attribute).append('=').append(node.get(attribute));
+        tree.append('\n');
+        for (JmmNode child : node.getChildren())
+            toTree(child, tree, prefix + "   ");
+    }
+
+    /** Read from a file as it is parsed or from a string, in SLL first or in full LL, the tree is the same. */
+    @Test
+    public void testSameTreeFromPathAndString() {
+        Map<String, String> sll = JmmPrograms.config();
+        Map<String, String> ll = JmmPrograms.config("parserMode=ll");
+        for (String program : PROGRAMS) {
+            String code = SpecsIo.getResource(program);
+            Path file = write(code);
+            String expected = toTree(new AParser().parse(code, sll));
+
+            assertEquals(program, expected, toTree(new AParser().parse(code, ll)));
+            assertEquals(program, expected, toTree(new AParser().parse(file, sll)));
+            assertEquals(program, expected, toTree(new AParser().parse(file, ll)));
+        }
+    }
+
+    /** The tree converter builds the same nodes, positions and attributes as the one of the course library. */
+    @Test
+    public void testSameTreeAsLibraryConverter() {
+        for (String program : PROGRAMS) {
+            String code = SpecsIo.getResource(program);
+            JavammParser parser = new JavammParser(new CommonTokenStream(new JavammLexer(new ANTLRInputStream(code))));
+            JmmNode library = AntlrParser.parse((Lexer) parser.getTokenStream().getTokenSource(), parser,
+                    "program").orElseThrow();
+
+            assertEquals(program, toTree(library), toTree(new AParser().parse(code, JmmPrograms.config())));
+        }
+    }
+
+    /** A syntax error fails the SLL stage and then the LL one, and is reported the same whichever way it is read. */
+    @Test
+    public void testSyntaxError() {
+        String code = "class A {\n public int f() {\n return 1 +;\n }\n}";
+        Path file = write(code);
+        for (Map<String, String> config : List.of(JmmPrograms.config(), JmmPrograms.config("parserMode=ll"))) {
+            JmmParserResult fromString = new AParser().parse(code, config);
+            JmmParserResult fromPath = new AParser().parse(file, config);
+
+            assertEquals(1, TestUtils.getNumErrors(fromString.getReports()));
+            assertEquals(fromString.getReports().toString(), fromPath.getReports().toString());
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package pt.up.fe.comp2023;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pt.up.fe.specs.util.SpecsIo;
+import utils.ProjectTestUtils;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BatchCompilerTest {
+    private File folder;
+
+    @Before
+    public void setUp() {
+        folder = ProjectTestUtils.getRandomFolder();
+    }
+
+    @After
+    public void tearDown() {
+        SpecsIo.deleteFolder(folder);
+    }
+
+    @Test
+    public void testFolder() {
+        File inputs = new File(folder, "inputs");
+        File outputs = new File(folder, "outputs");
+        SpecsIo.write(new File(inputs, "a/Simple.jmm"), SpecsIo.getResource("pt/up/fe/comp/cp2/apps/Simple.jmm"));
+        SpecsIo.write(new File(inputs, "b/Backends.jmm"), JmmPrograms.getResource("jasmin/Backends.jmm"));
+        SpecsIo.write(new File(inputs, "c/Wrong.jmm"), "class Wrong { public int f() { return true; } }");
+
+        List<File> files = BatchCompiler.collectInputs(List.of(inputs.getPath()));
+        assertEquals(3, files.size());
+        int failed = new BatchCompiler(JmmPrograms.config(), outputs, 2).compile(files);
+        assertEquals(1, failed);
+
+        for (String name : List.of("Simple", "Backends")) {
+            assertTrue(name + ".ollir", new File(outputs, name + ".ollir").isFile());
+            assertTrue(name + ".j", new File(outputs, name + ".j").isFile());
+            assertTrue(name + ".class", new File(outputs, name + ".class").isFile());
+        }
+        assertFalse(new File(outputs, "Wrong.class").exists());
+
+        // Every file in the order given, each followed by its reports
+        String reports = SpecsIo.read(new File(outputs, "reports.txt"));
+        int simple = reports.indexOf(files.get(0).getPath() + "\n");
+        int backends = reports.indexOf(files.get(1).getPath() + "\n");
+        int wrong = reports.indexOf(files.get(2).getPath() + "\n");
+        assertTrue(reports, simple != -1 && simple < backends && backends < wrong);
+        assertFalse(reports, reports.substring(0, wrong).contains("ERROR"));
+        assertTrue(reports, reports.substring(wrong).contains("ERROR"));
+    }
+}
@@ -0,0 +1,95 @@
+package pt.up.fe.comp2023;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+import pt.up.fe.specs.util.SpecsIo;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompilerServerTest {
+
+    private static JsonObject compileRequest(int id, String code, String backend) {
+        JsonObject request = new JsonObject();
+        request.addProperty("id", id);
+        request.addProperty("code", code);
+        JsonObject config = new JsonObject();
+        config.addProperty("backend", backend);
+        request.add("config", config);
+        return request;
+    }
+
+    // The responses the server writes for the given request lines, one per line
+    private static List<JsonObject> serve(String... requests) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new CompilerServer().serve(new BufferedReader(new StringReader(String.join("\n", requests))),
+                new PrintStream(output, true, StandardCharsets.UTF_8));
+
+        List<JsonObject> responses = new ArrayList<>();
+        for (String line : output.toString(StandardCharsets.UTF_8).split("\n"))
+            if (!line.isBlank())
+                responses.add(JsonParser.parseString(line).getAsJsonObject());
+        return responses;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        String code = SpecsIo.getResource("pt/up/fe/comp/cp2/apps/Simple.jmm");
+        List<JsonObject> responses = serve(compileRequest(1, code, "jasmin").toString(),
+                compileRequest(2, code, "bytecode").toString());
+
+        assertEquals(2, responses.size());
+        JsonObject jasmin = responses.get(0);
+        assertEquals(1, jasmin.get("id").getAsInt());
+        assertTrue(jasmin.toString(), jasmin.get("ok").getAsBoolean());
+        assertTrue(jasmin.get("ollir").getAsString().contains(".method"));
+        assertTrue(jasmin.get("jasmin").getAsString().contains(".class public Simple"));
+        assertFalse(jasmin.has("classBytes"));
+
+        JsonObject bytecode = responses.get(1);
+        assertEquals(2, bytecode.get("id").getAsInt());
+        assertTrue(bytecode.toString(), bytecode.get("ok").getAsBoolean());
+        byte[] classBytes = Base64.getDecoder().decode(bytecode.get("classBytes").getAsString());
+        assertEquals(0xCAFEBABE, new DataInputStream(new ByteArrayInputStream(classBytes)).readInt());
+    }
+
+    @Test
+    public void testErrors() throws IOException {
+        List<JsonObject> responses = serve("{not json",
+                compileRequest(1, "class A { public int f() { return true; } }", "jasmin").toString(),
+                "{\"id\": 2}");
+
+        assertEquals(3, responses.size());
+        assertFalse(responses.get(0).get("ok").getAsBoolean());
+        assertTrue(responses.get(0).get("error").getAsString().startsWith("Malformed request"));
+
+        JsonObject semantic = responses.get(1);
+        assertFalse(semantic.get("ok").getAsBoolean());
+        JsonArray reports = semantic.getAsJsonArray("reports");
+        assertTrue(reports.size() > 0);
+        assertEquals("ERROR", reports.get(0).getAsJsonObject().get("type").getAsString());
+        assertFalse(semantic.has("jasmin"));
+
+        assertFalse(responses.get(2).get("ok").getAsBoolean());
+        assertEquals("Request without code", responses.get(2).get("error").getAsString());
+    }
+
+    /** Requests after a shutdown are left unanswered. */
+    @Test
+    public void testShutdown() throws IOException {
+        List<JsonObject> responses = serve("{\"id\": 1, \"command\": \"ping\"}", "{\"id\": 2, \"command\": \"shutdown\"}",
+                "{\"id\": 3, \"command\": \"ping\"}");
+
+        assertEquals(2, responses.size());
+        assertTrue(responses.get(0).get("ok").getAsBoolean());
+        assertEquals(2, responses.get(1).get("id").getAsInt());
+        assertTrue(responses.get(1).get("ok").getAsBoolean());
+    }
+}
@@ -0,0 +1,54 @@
+package pt.up.fe.comp2023;
+
+import org.junit.Assert;
+import pt.up.fe.specs.util.SpecsIo;
+import pt.up.fe.specs.util.SpecsStrings;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compiles the Java-- programs of these tests through the whole pipeline and runs them, with the options given as
+ * they end up in the config of the Launcher.
+ */
+public class JmmPrograms {
+
+    public static String getResource(String resource) {
+        return SpecsIo.getResource("pt/up/fe/comp2023/" + resource);
+    }
+
+    /** Options as "key=value", like "optimize=true" or "registerAllocation=4". */
+    public static Map<String, String> config(String... options) {
+        Map<String, String> config = new HashMap<>();
+        config.put("optimize", "false");
+        config.put("registerAllocation", "-1");
+        for (String option : options) {
+            int equals = option.indexOf('=');
+            config.put(option.substring(0, equals), option.substring(equals + 1));
+        }
+        return config;
+    }
+
+    public static Pipeline.Result compile(String code, Map<String, String> config) {
+        Pipeline.Result result = new Pipeline().compile(code, config);
+        Assert.assertFalse("Expected the program to compile with " + config + ", got:\n" + result.getReports(),
+                result.hasErrors());
+        return result;
+    }
+
+    /** What the compiled program prints, without the trailing newline. */
+    public static String run(Pipeline.Result result) {
+        return SpecsStrings.normalizeFileContents(result.getJasminResult().run(), true);
+    }
+
+    public static String run(String code, Map<String, String> config) {
+        return run(compile(code, config));
+    }
+
+    /** Runs the program as compiled without options and with each set of options, checking it always prints the same. */
+    public static void assertOutput(String code, String expected, String[]... optionSets) {
+        Assert.assertEquals("Output without options", expected, run(code, config()));
+        for (String[] options : optionSets)
+            Assert.assertEquals("Output with " + String.join(" ", options), expected, run(code, config(options)));
+    }
+}
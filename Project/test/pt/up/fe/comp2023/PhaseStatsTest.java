@@ -0,0 +1,79 @@
+package pt.up.fe.comp2023;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PhaseStatsTest {
+
+    // Phase name -> its object in the JSON, with the whole compilation as "total"
+    private static Map<String, JsonObject> getPhases(PhaseStats stats) {
+        JsonObject json = JsonParser.parseString(stats.toJson()).getAsJsonObject();
+        Map<String, JsonObject> phases = new HashMap<>();
+        for (JsonElement phase : json.getAsJsonArray("phases"))
+            phases.put(phase.getAsJsonObject().get("phase").getAsString(), phase.getAsJsonObject());
+        phases.put("total", json.getAsJsonObject("total"));
+        return phases;
+    }
+
+    @Test
+    public void testNoStatsByDefault() {
+        Pipeline.Result result = JmmPrograms.compile(JmmPrograms.getResource("ssa/Swaps.jmm"), JmmPrograms.config());
+        assertNull(result.getStats());
+    }
+
+    @Test
+    public void testPhases() {
+        Pipeline.Result result = JmmPrograms.compile(JmmPrograms.getResource("ssa/Swaps.jmm"),
+                JmmPrograms.config("stats=json", "optimize=true", "registerAllocation=0", "constantPropagation=ast"));
+        Map<String, JsonObject> phases = getPhases(result.getStats());
+
+        for (String phase : new String[]{"parse", "symbol table", "semantic analysis", "ast optimization",
+                "ollir generation", "ollir parsing", "ollir optimization", "liveness", "coloring", "jasmin emission"})
+            assertTrue("Missing " + phase + " in " + phases.keySet(), phases.containsKey(phase));
+        // One run per fixpoint iteration, and the last one changes nothing
+        assertTrue(phases.get("ast optimization").get("runs").getAsInt() >= 1);
+        // Once per method, the constructor included
+        int methods = result.getOllirResult().getOllirClass().getNumMethods();
+        assertEquals(methods, phases.get("liveness").get("runs").getAsInt());
+        assertEquals(methods, phases.get("coloring").get("runs").getAsInt());
+
+        long wall = 0;
+        for (Map.Entry<String, JsonObject> phase : phases.entrySet())
+            if (!phase.getKey().equals("total"))
+                wall += phase.getValue().get("wallNanos").getAsLong();
+        assertTrue(wall <= phases.get("total").get("wallNanos").getAsLong());
+        assertTrue(phases.get("total").get("allocatedBytes").getAsLong() > 0);
+    }
+
+    /** Time spent in a phase measured inside another only counts for the inner one. */
+    @Test
+    public void testNestedPhases() {
+        PhaseStats stats = new PhaseStats();
+        stats.collect(() -> {
+            PhaseStats.measure("outer", () -> PhaseStats.measure("inner", () -> sleep(200)));
+            PhaseStats.measure("inner", () -> sleep(0));
+            return null;
+        });
+        Map<String, JsonObject> phases = getPhases(stats);
+
+        assertEquals(1, phases.get("outer").get("runs").getAsInt());
+        assertEquals(2, phases.get("inner").get("runs").getAsInt());
+        assertTrue(phases.get("inner").get("wallNanos").getAsLong() >= 200_000_000L);
+        assertTrue(phases.get("outer").get("wallNanos").getAsLong() < 100_000_000L);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package pt.up.fe.comp2023.incremental;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pt.up.fe.comp2023.JmmPrograms;
+import pt.up.fe.specs.util.SpecsIo;
+import utils.ProjectTestUtils;
+
+import java.io.File;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class MethodCacheTest {
+    private File cacheDir;
+
+    @Before
+    public void setUp() {
+        cacheDir = ProjectTestUtils.getRandomFolder();
+    }
+
+    @After
+    public void tearDown() {
+        SpecsIo.deleteFolder(cacheDir);
+    }
+
+    /**
+     * spilly() needs more than 4 registers and spills to fields of the class. Editing only other() takes spilly()
+     * from the cache, which must still find its fields in the recompiled class.
+     */
+    @Test
+    public void testSpilledMethodAfterEditingAnother() {
+        String code = JmmPrograms.getResource("incremental/SpilledMethod.jmm");
+        Map<String, String> config = JmmPrograms.config("registerAllocation=4", "cacheDir=" + cacheDir.getPath());
+
+        assertEquals("42\n3", JmmPrograms.run(code, config));
+        assertEquals("42\n4", JmmPrograms.run(code.replace("return 3;", "return 4;"), config));
+        assertEquals("42\n4", JmmPrograms.run(code.replace("return 3;", "return 4;"), config));
+    }
+
+    @Test
+    public void testSpilledMethodAfterEditingAnotherBytecode() {
+        String code = JmmPrograms.getResource("incremental/SpilledMethod.jmm");
+        Map<String, String> config = JmmPrograms.config("registerAllocation=4", "cacheDir=" + cacheDir.getPath(),
+                "backend=bytecode");
+
+        assertEquals("42\n3", JmmPrograms.run(code, config));
+        assertEquals("42\n4", JmmPrograms.run(code.replace("return 3;", "return 4;"), config));
+    }
+}
@@ -0,0 +1,49 @@
+package pt.up.fe.comp2023.incremental;
+
+import org.junit.Test;
+import pt.up.fe.comp.jmm.ast.JmmNode;
+import pt.up.fe.comp2023.AParser;
+import pt.up.fe.comp2023.Analysis;
+import pt.up.fe.comp2023.JmmPrograms;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class MethodKeysTest {
+
+    private static MethodKeys getKeys(String code, Map<String, String> config) {
+        JmmNode root = new AParser().parse(code, config).getRootNode();
+        JmmNode classNode = root.getJmmChild(root.getNumChildren() - 1);
+        return new MethodKeys(classNode, Analysis.buildSymbolTable(root), config);
+    }
+
+    /** Only the edited method gets a new key when nothing depends on it. */
+    @Test
+    public void testEditKeepsOtherKeys() {
+        String code = JmmPrograms.getResource("incremental/SpilledMethod.jmm");
+        Map<String, String> config = JmmPrograms.config("registerAllocation=4");
+        MethodKeys before = getKeys(code, config);
+        MethodKeys after = getKeys(code.replace("return 3;", "return 4;"), config);
+
+        assertEquals(before.getKey("spilly"), after.getKey("spilly"));
+        assertNotEquals(before.getKey("other"), after.getKey("other"));
+    }
+
+    /**
+     * Whether spilly() may spill to fields depends on the calls that can come back to it, so with a register budget
+     * a new call in other() changes every key, and without one only the key of other().
+     */
+    @Test
+    public void testNewCallChangesKeysWithRegisterBudget() {
+        String code = JmmPrograms.getResource("incremental/SpilledMethod.jmm");
+        String calling = code.replace("return 3;", "return this.spilly(1);");
+
+        Map<String, String> budget = JmmPrograms.config("registerAllocation=4");
+        assertNotEquals(getKeys(code, budget).getKey("spilly"), getKeys(calling, budget).getKey("spilly"));
+
+        Map<String, String> noBudget = JmmPrograms.config("registerAllocation=0");
+        assertEquals(getKeys(code, noBudget).getKey("spilly"), getKeys(calling, noBudget).getKey("spilly"));
+    }
+}
@@ -0,0 +1,47 @@
+package pt.up.fe.comp2023.inlining;
+
+import org.junit.Test;
+import pt.up.fe.comp2023.JmmPrograms;
+
+import static org.junit.Assert.*;
+
+public class InlinerTest {
+    private static final String EXPECTED = "324\n600\n10\n0";
+
+    private static CallGraph optimize(String resource, String... options) {
+        return new CallGraph(JmmPrograms.compile(JmmPrograms.getResource(resource), JmmPrograms.config(options))
+                .getOllirResult().getOllirClass());
+    }
+
+    @Test
+    public void testOutput() {
+        JmmPrograms.assertOutput(JmmPrograms.getResource("inlining/Inlining.jmm"), EXPECTED,
+                new String[]{"optimize=true"}, new String[]{"optimize=true", "registerAllocation=0"});
+    }
+
+    /** Both copies of clamp() in the loop get labels of their own, or the class would not assemble. */
+    @Test
+    public void testInlinedTwiceInLoop() {
+        CallGraph graph = optimize("inlining/Inlining.jmm", "optimize=true");
+
+        assertFalse(graph.getCallees("clampTwice").contains("clamp"));
+        assertEquals(EXPECTED, JmmPrograms.run(JmmPrograms.getResource("inlining/Inlining.jmm"),
+                JmmPrograms.config("optimize=true")));
+    }
+
+    /** The copy of addCount() updates the field of the object it was called on, not the one of the caller. */
+    @Test
+    public void testOtherReceiver() {
+        CallGraph graph = optimize("inlining/Inlining.jmm", "optimize=true");
+
+        assertFalse(graph.getCallees("onOther").contains("addCount"));
+    }
+
+    @Test
+    public void testInliningOff() {
+        CallGraph graph = optimize("inlining/Inlining.jmm", "optimize=true", "inlineSize=0");
+
+        assertTrue(graph.getCallees("clampTwice").contains("clamp"));
+        assertTrue(graph.getCallees("onOther").contains("addCount"));
+    }
+}
@@ -0,0 +1,42 @@
+package pt.up.fe.comp2023.inlining;
+
+import org.junit.Test;
+import pt.up.fe.comp2023.JmmPrograms;
+
+import static org.junit.Assert.*;
+
+public class TailCallEliminationTest {
+
+    private static CallGraph optimize() {
+        return new CallGraph(JmmPrograms.compile(JmmPrograms.getResource("inlining/TailCalls.jmm"),
+                JmmPrograms.config("optimize=true")).getOllirResult().getOllirClass());
+    }
+
+    @Test
+    public void testOutput() {
+        JmmPrograms.assertOutput(JmmPrograms.getResource("inlining/TailCalls.jmm"), "21\n21\n12\n500500\n5050",
+                new String[]{"optimize=true"}, new String[]{"optimize=true", "inlineSize=0"},
+                new String[]{"optimize=true", "registerAllocation=0"});
+    }
+
+    /** gcd(b, a - a / b * b) and countDown(n - 1, acc + n) read the old parameters while assigning the new ones. */
+    @Test
+    public void testTailCallsBecomeLoops() {
+        CallGraph graph = optimize();
+
+        assertFalse(graph.isRecursive("gcd"));
+        assertFalse(graph.isRecursive("countDown"));
+    }
+
+    /** swapArgs(b, a, n - 1) swaps two parameters, which needs the arguments read before any is assigned. */
+    @Test
+    public void testSwappedArguments() {
+        assertFalse(optimize().isRecursive("swapArgs"));
+    }
+
+    /** n + sumTo(n - 1) still has work to do after the call returns. */
+    @Test
+    public void testNonTailRecursionKept() {
+        assertTrue(optimize().isRecursive("sumTo"));
+    }
+}
@@ -0,0 +1,76 @@
+package pt.up.fe.comp2023.jasmin;
+
+import org.junit.Test;
+import pt.up.fe.comp2023.JmmPrograms;
+import pt.up.fe.comp2023.Pipeline;
+import pt.up.fe.specs.util.system.ProcessOutputAsString;
+import utils.ProjectTestUtils;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class BytecodeBackendTest {
+    private static final String EXPECTED = "14\n1\n14";
+
+    private static int getLimitStack(Pipeline.Result result, String methodName) {
+        String method = ProjectTestUtils.getJasminMethod(result.getJasminResult().getJasminCode(), methodName);
+        Matcher matcher = Pattern.compile("\\.limit\\s+stack\\s+(\\d+)").matcher(method);
+        assertTrue("No .limit stack in:\n" + method, matcher.find());
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    /** The class file written by the bytecode backend runs the same as the one Jasmin assembles. */
+    @Test
+    public void testSameOutputAsJasmin() {
+        String code = JmmPrograms.getResource("jasmin/Backends.jmm");
+
+        Pipeline.Result jasmin = JmmPrograms.compile(code, JmmPrograms.config());
+        Pipeline.Result bytecode = JmmPrograms.compile(code, JmmPrograms.config("backend=bytecode"));
+
+        assertFalse(jasmin.getJasminResult() instanceof BytecodeResult);
+        assertTrue(bytecode.getJasminResult() instanceof BytecodeResult);
+        assertEquals(EXPECTED, JmmPrograms.run(jasmin));
+        assertEquals(EXPECTED, JmmPrograms.run(bytecode));
+    }
+
+    @Test
+    public void testSameOutputAsJasminOptimized() {
+        String code = JmmPrograms.getResource("jasmin/Backends.jmm");
+
+        assertEquals(EXPECTED, JmmPrograms.run(code, JmmPrograms.config("optimize=true", "registerAllocation=0")));
+        assertEquals(EXPECTED, JmmPrograms.run(code, JmmPrograms.config("optimize=true", "registerAllocation=0",
+                "backend=bytecode")));
+    }
+
+    /** The deepest stack each method reaches, the class file verifier rejects any lower limit. */
+    @Test
+    public void testLimitStack() {
+        Pipeline.Result result = JmmPrograms.compile(JmmPrograms.getResource("jasmin/Backends.jmm"),
+                JmmPrograms.config());
+
+        // b * c into a temporary, then a + the temporary
+        assertEquals(2, getLimitStack(result, "sum3"));
+        // The array, the index and the value for iastore
+        assertEquals(3, getLimitStack(result, "store"));
+        // The object and the four arguments of store()
+        assertEquals(5, getLimitStack(result, "static main"));
+    }
+
+    /** A program that never ends is abandoned, and the programs run after it get the console back. */
+    @Test
+    public void testTimeout() {
+        String forever = "import io;\nclass Forever {\n public static void main(String[] args) {\n"
+                + "  io.println(1);\n  while (true) {\n  }\n }\n}";
+        Pipeline.Result result = JmmPrograms.compile(forever, JmmPrograms.config("backend=bytecode"));
+
+        ProcessOutputAsString output = result.getJasminResult().runWithFullOutput();
+        assertEquals(-1, output.getReturnValue());
+        assertEquals("1", output.getStdOut().strip());
+        assertTrue(output.getStdErr().contains("timed out"));
+
+        assertEquals(EXPECTED, JmmPrograms.run(JmmPrograms.getResource("jasmin/Backends.jmm"),
+                JmmPrograms.config("backend=bytecode")));
+    }
+}
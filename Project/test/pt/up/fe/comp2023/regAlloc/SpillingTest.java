@@ -0,0 +1,73 @@
+package pt.up.fe.comp2023.regAlloc;
+
+import org.junit.Test;
+import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp.jmm.report.Stage;
+import pt.up.fe.comp2023.JmmPrograms;
+import pt.up.fe.comp2023.Pipeline;
+import utils.ProjectTestUtils;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class SpillingTest {
+    private static final String EXPECTED = "164\n184";
+
+    private static int getLimitLocals(String method) {
+        Matcher matcher = Pattern.compile("\\.limit\\s+locals\\s+(\\d+)").matcher(method);
+        assertTrue("No .limit locals in:\n" + method, matcher.find());
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    private static Pipeline.Result compile(int registers) {
+        return JmmPrograms.compile(JmmPrograms.getResource("regAlloc/Spills.jmm"),
+                JmmPrograms.config("registerAllocation=" + registers));
+    }
+
+    @Test
+    public void testWithoutBudget() {
+        assertEquals(EXPECTED, JmmPrograms.run(JmmPrograms.getResource("regAlloc/Spills.jmm"), JmmPrograms.config()));
+    }
+
+    /** fieldSpill() makes no calls that could come back to it, so its spilled values live in fields of the class. */
+    @Test
+    public void testFieldSpill() {
+        Pipeline.Result result = compile(5);
+        String method = ProjectTestUtils.getJasminMethod(result.getJasminResult().getJasminCode(), "fieldSpill");
+
+        assertTrue(method, method.contains("putfield Spills/spill_fieldSpill_"));
+        assertTrue(method, getLimitLocals(method) <= 5);
+        assertEquals(EXPECTED, JmmPrograms.run(result));
+    }
+
+    /** arraySpill() calls a method of the class, which could call it again, so it spills to an array of its own. */
+    @Test
+    public void testArraySpill() {
+        Pipeline.Result result = compile(5);
+        String method = ProjectTestUtils.getJasminMethod(result.getJasminResult().getJasminCode(), "arraySpill");
+
+        assertTrue(method, method.contains("newarray int"));
+        assertFalse(method, method.contains("spill_arraySpill"));
+        assertTrue(method, getLimitLocals(method) <= 5);
+        assertEquals(EXPECTED, JmmPrograms.run(result));
+    }
+
+    /**
+     * With 2 registers, this and the parameter leave none for the locals, and spilling needs registers to load the
+     * spilled values into. The compilation fails, reporting the fewest registers each method could use.
+     */
+    @Test
+    public void testBudgetTooSmall() {
+        Pipeline.Result result = new Pipeline().compile(JmmPrograms.getResource("regAlloc/Spills.jmm"),
+                JmmPrograms.config("registerAllocation=2"));
+
+        assertTrue(result.hasErrors());
+        boolean reported = false;
+        for (Report report : result.getReports())
+            reported |= report.getStage() == Stage.OPTIMIZATION
+                    && report.getMessage().startsWith("Method fieldSpill requires at least");
+        assertTrue("Expected an error for fieldSpill, got " + result.getReports(), reported);
+    }
+}
@@ -0,0 +1,51 @@
+package pt.up.fe.comp2023.ssa;
+
+import org.junit.Test;
+import pt.up.fe.comp2023.JmmPrograms;
+
+/**
+ * Programs that go through the SSA form and the passes built on it with -o, checked against what they print when
+ * compiled without optimizations and against the expected output below, which is what each program prints when
+ * compiled as Java. Inlining is also turned off, so the passes run on each method by itself and not only on main.
+ */
+public class SSAPassesTest {
+    private static final String[][] OPTIONS = {
+            {"optimize=true"},
+            {"optimize=true", "inlineSize=0"},
+            {"optimize=true", "registerAllocation=0"},
+    };
+
+    private static void assertOutput(String resource, String expected) {
+        JmmPrograms.assertOutput(JmmPrograms.getResource("ssa/" + resource), expected, OPTIONS);
+    }
+
+    /**
+     * Out of SSA: loop-carried swaps and rotations leave phis that copy each other in a cycle, and the lost copy
+     * case reads the value a phi had before the last iteration after the loop.
+     */
+    @Test
+    public void testSwaps() {
+        assertOutput("Swaps.jmm", "21\n12\n12\n231\n312\n123\n702\n405\n1\n0\n1\n6765\n610");
+    }
+
+    /** Fields and arrays changed through calls and other references between two reads of the same value. */
+    @Test
+    public void testAliasing() {
+        assertOutput("Aliasing.jmm", "212\n120\n608\n6\n612");
+    }
+
+    /**
+     * Loop-invariant code in loops that never run, induction variables, power of two multiplications and divisions
+     * of negative numbers, constants through branches and loops, repeated expressions and dead code.
+     */
+    @Test
+    public void testPasses() {
+        assertOutput("Passes.jmm", "70\n0\n0\n12\n0\n132\n165\n-103\n204\n-78\n14\n5\n1077\n41\n42");
+    }
+
+    /** Phis that are always the same constant and still flow into a loop phi, directly or through another one. */
+    @Test
+    public void testConstantPhis() {
+        assertOutput("ConstantPhis.jmm", "4\n40\n5\n20\n48\n3");
+    }
+}